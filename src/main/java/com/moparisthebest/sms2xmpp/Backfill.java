@@ -0,0 +1,205 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies texts that are already on the phone to XMPP, the ones received only.  Sent ones would have to appear to come
+ * from the account itself, which xmpp-echo-self can't do, it bounces everything from number@gateway and XEP-0280
+ * clients rightly ignore carbons from anyone but their own account.
+ *
+ * start() fixes the range: everything in content://sms up to the newest _id right now, newer texts arrive live anyway.
+ * The rows are read in _id order, PAGE_SIZE at a time, so memory stays constant however many there are, and each page
+ * is one stanza batch to the XMPP app.  The position is persisted only after the XMPP app accepted a page, so after a
+ * process kill we resume from the last accepted page, repeating at most one.  Messages are paced by a token bucket so
+ * the XMPP server isn't flooded.
+ */
+public final class Backfill {
+
+    private static final Uri SMS = Uri.parse("content://sms");
+    // Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX
+    private static final int TYPE_INBOX = 1;
+    private static final int PAGE_SIZE = 50;
+    // keeps a page well under the binder transaction limit even if every text is long
+    private static final int MAX_PAGE_CHARS = 128 * 1024;
+    private static final double RATE_PER_SECOND = 10;
+    private static final int BURST = PAGE_SIZE;
+    private static final long RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final String POSITION_KEY = "backfill_position", END_KEY = "backfill_end";
+
+    public interface Sink {
+        /**
+         * @return route for texts from subscriptionId, or null if its XMPP app isn't ready for them right now
+         */
+        Route routeFor(int subscriptionId);
+
+        /**
+         * Sends xml through route, blocking until the XMPP app accepted or refused it.
+         */
+        boolean send(Route route, String xml) throws InterruptedException;
+    }
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final Sink sink;
+    private final TokenBucket bucket = new TokenBucket(RATE_PER_SECOND, BURST);
+
+    // guarded by this
+    private Thread thread = null;
+    // bumped by stop, a thread that was stopped may still be finishing a page but must not persist it
+    private int generation = 0;
+
+    public Backfill(final Context context, final SharedPreferences prefs, final Sink sink) {
+        this.context = context.getApplicationContext();
+        this.prefs = prefs;
+        this.sink = sink;
+    }
+
+    /**
+     * Starts over from the oldest text up to the newest one there is now.
+     */
+    public synchronized void start() {
+        stop();
+        prefs.edit().putLong(POSITION_KEY, 0).putLong(END_KEY, newestId(context.getContentResolver())).apply();
+        kick();
+    }
+
+    /**
+     * Resumes an unfinished backfill, if there is one and it isn't already running.  Call whenever a route becomes
+     * ready, the backfill thread exits whenever it has to wait for one.
+     */
+    public synchronized void kick() {
+        if (thread != null || !isPending())
+            return;
+        final int generation = this.generation;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runLoop(generation);
+                } catch (InterruptedException e) {
+                    // stopped
+                } catch (Exception e) {
+                    Log.e(Constants.TAG, "Backfill: failed", e);
+                } finally {
+                    synchronized (Backfill.this) {
+                        if (thread == Thread.currentThread())
+                            thread = null;
+                    }
+                }
+            }
+        }, "Backfill");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        ++generation;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public boolean isPending() {
+        return prefs.getLong(POSITION_KEY, 0) < prefs.getLong(END_KEY, 0);
+    }
+
+    private static long newestId(final ContentResolver resolver) {
+        final Cursor cursor = resolver.query(SMS, new String[]{"_id"}, null, null, "_id DESC LIMIT 1");
+        if (cursor == null)
+            return 0;
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return false if stopped since generation started, position wasn't persisted then
+     */
+    private synchronized boolean persist(final int generation, final long position) {
+        if (generation != this.generation)
+            return false;
+        prefs.edit().putLong(POSITION_KEY, position).apply();
+        return true;
+    }
+
+    private void runLoop(final int generation) throws InterruptedException {
+        final ContentResolver resolver = context.getContentResolver();
+        final PhoneNumbers phoneNumbers = PhoneNumbers.getInstance(context);
+        final ContactNames names = ContactNames.getInstance(context);
+        long position = prefs.getLong(POSITION_KEY, 0);
+        final long end = prefs.getLong(END_KEY, 0);
+        while (position < end) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            // the SMS provider passes the sort order straight to SQLite, the usual way to page it
+            final Cursor cursor = resolver.query(SMS, null, "_id > ? AND _id <= ? AND type = ?",
+                    new String[]{String.valueOf(position), String.valueOf(end), String.valueOf(TYPE_INBOX)},
+                    "_id ASC LIMIT " + PAGE_SIZE);
+            if (cursor == null)
+                return;
+            Route route = null;
+            long last = position;
+            int count = 0;
+            boolean blocked = false;
+            final StanzaWriter writer = StanzaWriter.get();
+            try {
+                if (!cursor.moveToFirst()) {
+                    position = end; // nothing left in range
+                    break;
+                }
+                final int idColumn = cursor.getColumnIndexOrThrow("_id"), addressColumn = cursor.getColumnIndexOrThrow("address"), bodyColumn = cursor.getColumnIndexOrThrow("body"),
+                        dateColumn = cursor.getColumnIndexOrThrow("date"), subIdColumn = cursor.getColumnIndex("sub_id");
+                do {
+                    final int subscriptionId = subIdColumn < 0 || cursor.isNull(subIdColumn) ? Route.ANY_SUBSCRIPTION : cursor.getInt(subIdColumn);
+                    final Route rowRoute = sink.routeFor(subscriptionId);
+                    if (rowRoute == null) {
+                        blocked = true;
+                        break;
+                    }
+                    if (route != null && !route.equals(rowRoute))
+                        break; // one route per page, the rest goes in the next one
+                    if (route == null)
+                        writer.direct(rowRoute.isDirect());
+                    route = rowRoute;
+                    final String address = phoneNumbers.normalize(cursor.getString(addressColumn));
+                    final String body = cursor.getString(bodyColumn);
+                    if (address != null && body != null) {
+                        bucket.acquire();
+                        writer.forwardedMessage(address, route.gatewayDomain, route.accountJid, body,
+                                names.lookup(address), cursor.getLong(dateColumn));
+                        ++count;
+                    }
+                    last = cursor.getLong(idColumn);
+                } while (writer.length() < MAX_PAGE_CHARS && cursor.moveToNext());
+            } finally {
+                cursor.close();
+            }
+            if (count > 0 && !sink.send(route, writer.toString())) {
+                Log.e(Constants.TAG, "Backfill: page after " + position + " refused, retrying in " + RETRY_DELAY_MS + "ms");
+                Thread.sleep(RETRY_DELAY_MS);
+                continue;
+            }
+            if (last > position) {
+                position = last;
+                if (!persist(generation, position))
+                    return;
+                Metrics.get().smsBackfilled.add(count);
+            }
+            if (blocked)
+                return; // waiting for that route to be ready, kick() brings us back
+        }
+        persist(generation, position);
+    }
+}
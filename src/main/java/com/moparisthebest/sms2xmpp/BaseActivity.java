@@ -23,16 +23,23 @@ import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
-import android.util.Log;
 import android.widget.Toast;
-import org.openintents.xmpp.XmppError;
 import org.openintents.xmpp.util.XmppAccountPreference;
 import org.openintents.xmpp.util.XmppAppPreference;
 
+import java.util.List;
+
 import static com.moparisthebest.sms2xmpp.Constants.ACCOUNT_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.COMPONENT_PORT_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.FLOOD_RATE_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.INBOUND_WINDOW_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.MEDIA_WORKERS_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.OUTBOUND_MAX_SEGMENTS_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.OUTBOUND_WINDOW_KEY;
 import static com.moparisthebest.sms2xmpp.Constants.PROVIDER_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.SMS_RATE_KEY;
 
-public class BaseActivity extends PreferenceActivity {
+public class BaseActivity extends PreferenceActivity implements DebugEvents.Listener {
 
     private XmppAccountPreference accountPreference;
     private XmppAppPreference appPreference;
@@ -70,17 +77,69 @@ public class BaseActivity extends PreferenceActivity {
                 return true;
             }
         });
+        // SMSService picks these up itself when they change, we just refuse garbage
+        final Preference.OnPreferenceChangeListener numberValidator = new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(final Preference preference, final Object newValue) {
+                try {
+                    Float.parseFloat((String) newValue);
+                    return true;
+                } catch (NumberFormatException e) {
+                    showToast(String.format("invalid number: '%s'", newValue));
+                    return false;
+                }
+            }
+        };
+        findPreference(SMS_RATE_KEY).setOnPreferenceChangeListener(numberValidator);
+        findPreference(INBOUND_WINDOW_KEY).setOnPreferenceChangeListener(numberValidator);
+        findPreference(MEDIA_WORKERS_KEY).setOnPreferenceChangeListener(numberValidator);
+        findPreference(OUTBOUND_WINDOW_KEY).setOnPreferenceChangeListener(numberValidator);
+        findPreference(OUTBOUND_MAX_SEGMENTS_KEY).setOnPreferenceChangeListener(numberValidator);
+        findPreference(FLOOD_RATE_KEY).setOnPreferenceChangeListener(numberValidator);
+        findPreference(COMPONENT_PORT_KEY).setOnPreferenceChangeListener(numberValidator);
+        findPreference("backfill").setOnPreferenceClickListener(new OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(final Preference preference) {
+                showToast("syncing old texts in the background");
+                final Intent intent = new Intent(getApplicationContext(), SMSService.class);
+                intent.setAction(SMSService.ACTION_BACKFILL);
+                getApplicationContext().startService(intent);
+                return true;
+            }
+        });
         maybeChanged(appPreference.getValue(), accountPreference.getValue());
 
         instance = this;
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        DebugEvents.setListener(this);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        DebugEvents.setListener(null);
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         instance = null;
     }
 
+    @Override
+    public void onEvents(final List<String> events, final int dropped) {
+        final StringBuilder sb = new StringBuilder();
+        if (dropped > 0)
+            sb.append("(").append(dropped).append(" older events dropped)\n");
+        for (final String event : events)
+            sb.append(event).append('\n');
+        Toast.makeText(this, sb.toString().trim(), events.size() > 1 ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT).show();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -92,20 +151,6 @@ public class BaseActivity extends PreferenceActivity {
         // other request codes...
     }
 
-    public void handleError(final XmppError error) {
-        runOnUiThread(new Runnable() {
-
-            @Override
-            public void run() {
-                Toast.makeText(BaseActivity.this,
-                        "onError id:" + error.getErrorId() + "\n\n" + error.getMessage(),
-                        Toast.LENGTH_LONG).show();
-                Log.e(Constants.TAG, "onError getErrorId:" + error.getErrorId());
-                Log.e(Constants.TAG, "onError getMessage:" + error.getMessage());
-            }
-        });
-    }
-
     public void showToast(final String message) {
         runOnUiThread(new Runnable() {
 
@@ -126,7 +171,7 @@ public class BaseActivity extends PreferenceActivity {
         final SMSService instance = SMSService.instance;
         if(instance != null) {
             showToast("SMSService instance running");
-            instance.maybeChanged(newPackage, newJid);
+            instance.maybeChanged();
         } else {
             showToast("starting SMSService instance");
             Intent mIntentForService = new Intent(getApplicationContext(), SMSService.class);
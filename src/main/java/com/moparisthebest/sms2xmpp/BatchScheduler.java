@@ -0,0 +1,117 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the CPU awake through batches of bridge work under one partial wakelock, so work that was started isn't
+ * stretched out by the device dozing off halfway and then finished in a burst on its next wakeup.
+ *
+ * Work is bracketed by begin and end, the first begin acquires the wakelock and the last end releases it, so texts
+ * queued together, the inbound batching window and the drain that follows it share one wakeup.  Every begin and end
+ * renews the MAX_HOLD_MS timeout, work that never ends keeps the CPU awake that long past the last progress at most.
+ *
+ * Work that can wait, retrying a failed drain, goes through an AlarmManager alarm instead, which the system lines
+ * up with other wakeups and under Doze holds for the next maintenance window.
+ */
+public final class BatchScheduler {
+
+    public static final String ACTION_DRAIN = "com.moparisthebest.sms2xmpp.DRAIN";
+
+    private static final long MAX_HOLD_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final long MAX_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(MAX_HOLD_MS);
+    private static final int REQUEST_CODE_DRAIN = 9940;
+
+    private static final BatchScheduler instance = new BatchScheduler();
+
+    public static BatchScheduler getInstance() {
+        return instance;
+    }
+
+    // all guarded by this
+    private PowerManager.WakeLock wakeLock = null;
+    private int pending = 0;
+    // held time of the current batch up to the last renewal
+    private long renewedNanos = 0, heldNanos = 0;
+
+    private BatchScheduler() {
+    }
+
+    public synchronized void init(final Context context) {
+        if (wakeLock != null)
+            return;
+        final PowerManager power = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+        wakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, Constants.TAG + ":batch");
+        // begin and end count, this only has to be held or not
+        wakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Starts work that keeps the current batch open until its end.
+     *
+     * @param messages texts or stanzas the work carries, for wakeups per message, 0 if it only holds the batch open
+     */
+    public synchronized void begin(final int messages) {
+        Metrics.get().wakeMessages.add(messages);
+        final long now = System.nanoTime();
+        if (pending++ == 0) {
+            Metrics.get().wakeups.increment();
+            heldNanos = 0;
+            renewedNanos = now;
+        }
+        renew(now);
+    }
+
+    public synchronized void end() {
+        if (pending == 0) {
+            Log.e(Constants.TAG, "BatchScheduler: end without begin");
+            return;
+        }
+        final long now = System.nanoTime();
+        if (--pending > 0) {
+            renew(now);
+            return;
+        }
+        heldNanos += Math.min(now - renewedNanos, MAX_HOLD_NANOS);
+        Metrics.get().wakeLockHold.recordNanos(heldNanos);
+        if (wakeLock != null && wakeLock.isHeld())
+            wakeLock.release();
+    }
+
+    private void renew(final long now) {
+        // the lock lapsed on its own if renewals were further apart than the timeout
+        heldNanos += Math.min(now - renewedNanos, MAX_HOLD_NANOS);
+        renewedNanos = now;
+        if (wakeLock != null)
+            wakeLock.acquire(MAX_HOLD_MS);
+    }
+
+    /**
+     * Has EventReceiver start SMSService with ACTION_DRAIN in delayMillis, or later if the device is dozing, replacing
+     * a retry that's already scheduled.
+     */
+    public void scheduleDrain(final Context context, final long delayMillis) {
+        final Intent intent = new Intent(context, EventReceiver.class).setAction(ACTION_DRAIN);
+        final PendingIntent operation = PendingIntent.getBroadcast(context, REQUEST_CODE_DRAIN, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        final AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        final long at = SystemClock.elapsedRealtime() + delayMillis;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            setAllowWhileIdle(alarms, at, operation);
+        else
+            alarms.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, operation);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void setAllowWhileIdle(final AlarmManager alarms, final long at, final PendingIntent operation) {
+        alarms.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, operation);
+    }
+}
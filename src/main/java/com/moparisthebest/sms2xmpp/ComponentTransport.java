@@ -0,0 +1,429 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.util.Log;
+import org.openintents.xmpp.XmppError;
+import org.openintents.xmpp.util.XmppServiceApi;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.openintents.xmpp.util.XmppUtils.getError;
+import static org.openintents.xmpp.util.XmppUtils.getSuccess;
+
+/**
+ * Transport straight to our own XMPP server as an XEP-0114 component for its gateway domain, skipping the XMPP app,
+ * its binder calls and the xmpp-echo-self round trip.
+ *
+ * One persistent socket with a reader and a writer thread.  Stanzas are pipelined: send() only queues them, and the
+ * writer puts everything queued so far on the wire in one write, so a burst costs a handful of syscalls rather than a
+ * call and an answer each.  XEP-0114 has no acks, so a send succeeds once it's written, and anything still queued
+ * when the connection drops fails, which makes the outbox rewind and resend it after the reconnect.
+ */
+public final class ComponentTransport implements Transport {
+
+    // what routes put as xmppAppPackage to use this
+    public static final String PROVIDER = "component";
+    public static final int DEFAULT_PORT = 5347;
+
+    private static final String STREAM_NS = "http://etherx.jabber.org/streams";
+    private static final String STANZAS_NS = "urn:ietf:params:xml:ns:xmpp-stanzas";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // most the writer concatenates into one write
+    private static final int MAX_WRITE_CHARS = 64 * 1024;
+    private static final int MAX_QUEUED = 1024;
+    // whitespace keepalive after this long without writing, also how we notice a dead connection
+    private static final long KEEPALIVE_SECONDS = 60;
+
+    private final String host, domain, secret;
+    private final int port;
+    private final Listener listener;
+
+    // null while disconnected, a dropped Session never calls the listener again
+    private volatile Session session = null;
+
+    public ComponentTransport(final String host, final int port, final String domain, final String secret,
+                              final Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.domain = domain;
+        this.secret = secret;
+        this.listener = listener;
+    }
+
+    @Override
+    public void connect() {
+        disconnect();
+        final Session newSession = new Session();
+        session = newSession;
+        newSession.reader.start();
+    }
+
+    @Override
+    public void disconnect() {
+        final Session old = session;
+        session = null;
+        if (old != null)
+            old.close(null);
+    }
+
+    @Override
+    public void send(final Route route, final String xml, final XmppServiceApi.IXmppCallback callback) {
+        final Session current = session;
+        if (current == null || !current.ready) {
+            // like XmppApiTransport unbound, the connection's problem and not the gateway's
+            callback.onReturn(getError(SMSService.CLIENT_SIDE_ERROR, "component not connected"));
+            return;
+        }
+        current.write(xml, callback);
+    }
+
+    /**
+     * The server routes everything for our domain to us anyway, nothing to register.
+     */
+    @Override
+    public void register(final Route route, final XmppServiceApi.IXmppCallback callback) {
+        callback.onReturn(getSuccess());
+    }
+
+    @Override
+    public void unregister(final Route route, final XmppServiceApi.IXmppCallback callback) {
+        callback.onReturn(getSuccess());
+    }
+
+    private static final class Pending {
+        final String xml;
+        // null for our own answers to the server
+        final XmppServiceApi.IXmppCallback callback;
+
+        Pending(final String xml, final XmppServiceApi.IXmppCallback callback) {
+            this.xml = xml;
+            this.callback = callback;
+        }
+    }
+
+    private final class Session {
+        final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "ComponentTransport reader");
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "ComponentTransport writer");
+
+        // guarded by this
+        private SocketChannel channel = null;
+        private boolean closed = false;
+        volatile boolean ready = false;
+
+        Session() {
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+        }
+
+        void write(final String xml, final XmppServiceApi.IXmppCallback callback) {
+            if (!queue.offer(new Pending(xml, callback))) {
+                if (callback != null)
+                    callback.onReturn(getError(XmppError.GENERIC_ERROR, "component send queue full"));
+                return;
+            }
+            if (isClosed())
+                failPending(); // lost the race with close(), nobody else will fail it
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @param reason why the connection broke, reported to the listener if this is still the current session,
+         *               null when we closed it ourselves
+         */
+        void close(final String reason) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                ready = false;
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // closing anyway
+                    }
+                }
+            }
+            writer.interrupt();
+            failPending();
+            if (reason != null && session == this) {
+                Log.e(Constants.TAG, "ComponentTransport: " + reason);
+                listener.failed(reason);
+            }
+        }
+
+        private void failPending() {
+            Pending pending;
+            while ((pending = queue.poll()) != null)
+                if (pending.callback != null)
+                    pending.callback.onReturn(getError(SMSService.CLIENT_SIDE_ERROR, "component connection lost"));
+        }
+
+        private void read() {
+            try {
+                final SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                synchronized (this) {
+                    if (closed) {
+                        channel.close();
+                        return;
+                    }
+                    this.channel = channel;
+                }
+                final StringBuilder header = new StringBuilder("<?xml version='1.0'?><stream:stream xmlns='jabber:component:accept' xmlns:stream='")
+                        .append(STREAM_NS).append("' to='");
+                StanzaWriter.appendEscaped(header, domain);
+                writeFully(header.append("'>").toString());
+
+                final XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                final XmlPullParser parser = factory.newPullParser();
+                parser.setInput(Channels.newInputStream(channel), "UTF-8");
+
+                nextStanza(parser, 1);
+                if (!"stream".equals(parser.getName()) || !STREAM_NS.equals(parser.getNamespace()))
+                    throw new IOException("not an XMPP stream: " + parser.getName());
+                final String id = parser.getAttributeValue(null, "id");
+                if (id == null)
+                    throw new IOException("stream header without id");
+                writeFully("<handshake>" + handshake(id, secret) + "</handshake>");
+
+                nextStanza(parser, 2);
+                if (!"handshake".equals(parser.getName()))
+                    throw new IOException(streamError(parser));
+                skip(parser);
+
+                synchronized (this) {
+                    if (closed)
+                        return;
+                    ready = true;
+                }
+                writer.start();
+                listener.connected();
+
+                while (true) {
+                    nextStanza(parser, 2);
+                    if ("message".equals(parser.getName()))
+                        message(parser);
+                    else if ("iq".equals(parser.getName()))
+                        iq(parser);
+                    else if (STREAM_NS.equals(parser.getNamespace()))
+                        throw new IOException(streamError(parser));
+                    else
+                        skip(parser); // presence and whatever else, we don't care
+                }
+            } catch (IOException | XmlPullParserException e) {
+                close(e.toString());
+            } catch (RuntimeException e) {
+                // UnresolvedAddressException for a host that doesn't resolve, IllegalArgumentException for a bad port
+                close(e.toString());
+            }
+        }
+
+        private void write() {
+            final List<Pending> batch = new ArrayList<>();
+            final StringBuilder sb = new StringBuilder();
+            try {
+                while (!isClosed()) {
+                    final Pending first = queue.poll(KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+                    if (first == null) {
+                        writeFully(" ");
+                        continue;
+                    }
+                    batch.add(first);
+                    sb.append(first.xml);
+                    Pending next;
+                    while (sb.length() < MAX_WRITE_CHARS && (next = queue.poll()) != null) {
+                        batch.add(next);
+                        sb.append(next.xml);
+                    }
+                    try {
+                        writeFully(sb.toString());
+                    } catch (IOException e) {
+                        for (final Pending pending : batch)
+                            if (pending.callback != null)
+                                pending.callback.onReturn(getError(XmppError.GENERIC_ERROR, "component write failed: " + e));
+                        throw e;
+                    }
+                    for (final Pending pending : batch)
+                        if (pending.callback != null)
+                            pending.callback.onReturn(getSuccess());
+                    batch.clear();
+                    sb.setLength(0);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException e) {
+                close(e.toString());
+            }
+        }
+
+        private void writeFully(final String xml) throws IOException {
+            final SocketChannel channel;
+            synchronized (this) {
+                channel = this.channel;
+            }
+            if (channel == null)
+                throw new IOException("not connected");
+            final ByteBuffer buf = UTF_8.encode(xml);
+            while (buf.hasRemaining())
+                channel.write(buf);
+        }
+
+        private void message(final XmlPullParser parser) throws IOException, XmlPullParserException {
+            final String type = parser.getAttributeValue(null, "type");
+            final String from = parser.getAttributeValue(null, "from"), to = parser.getAttributeValue(null, "to"),
+                    id = parser.getAttributeValue(null, "id");
+            String body = null;
+            while (nextChild(parser)) {
+                if ("body".equals(parser.getName()) && body == null)
+                    body = parser.nextText();
+                else
+                    skip(parser);
+            }
+            if (body == null || from == null || to == null || "error".equals(type))
+                return; // chat states, receipts and bounces
+            final String error = listener.messageReceived(Jid.fromString(from), Jid.fromString(to), body, id);
+            if (error != null) {
+                // the only reason so far is a full send queue
+                final StringBuilder sb = new StringBuilder("<message type=\"error\" from=\"");
+                StanzaWriter.appendEscaped(sb, to);
+                sb.append("\" to=\"");
+                StanzaWriter.appendEscaped(sb, from);
+                sb.append('"');
+                if (id != null) {
+                    sb.append(" id=\"");
+                    StanzaWriter.appendEscaped(sb, id);
+                    sb.append('"');
+                }
+                sb.append("><error type=\"wait\"><resource-constraint xmlns=\"").append(STANZAS_NS)
+                        .append("\"/><text xmlns=\"").append(STANZAS_NS).append("\">");
+                StanzaWriter.appendEscaped(sb, error);
+                sb.append("</text></error></message>");
+                write(sb.toString(), null);
+            }
+        }
+
+        private void iq(final XmlPullParser parser) throws IOException, XmlPullParserException {
+            final String type = parser.getAttributeValue(null, "type");
+            final String from = parser.getAttributeValue(null, "from"), to = parser.getAttributeValue(null, "to"),
+                    id = parser.getAttributeValue(null, "id");
+            String child = null, childNs = null;
+            while (nextChild(parser)) {
+                if (child == null) {
+                    child = parser.getName();
+                    childNs = parser.getNamespace();
+                }
+                skip(parser);
+            }
+            if (from == null || to == null || id == null || !("get".equals(type) || "set".equals(type)))
+                return;
+            final StringBuilder sb = new StringBuilder("<iq from=\"");
+            StanzaWriter.appendEscaped(sb, to);
+            sb.append("\" to=\"");
+            StanzaWriter.appendEscaped(sb, from);
+            sb.append("\" id=\"");
+            StanzaWriter.appendEscaped(sb, id);
+            if ("ping".equals(child) && "urn:xmpp:ping".equals(childNs))
+                sb.append("\" type=\"result\"/>");
+            else
+                sb.append("\" type=\"error\"><error type=\"cancel\"><service-unavailable xmlns=\"").append(STANZAS_NS)
+                        .append("\"/></error></iq>");
+            write(sb.toString(), null);
+        }
+    }
+
+    // moves to the next start tag at depth, the end of the stream is an error
+    private static void nextStanza(final XmlPullParser parser, final int depth) throws IOException, XmlPullParserException {
+        while (true) {
+            final int event = parser.next();
+            if (event == XmlPullParser.START_TAG && parser.getDepth() == depth)
+                return;
+            if (event == XmlPullParser.END_DOCUMENT || (event == XmlPullParser.END_TAG && parser.getDepth() < depth))
+                throw new IOException("stream closed by server");
+        }
+    }
+
+    // moves to the next child of the element we're in, false once at its end tag
+    private static boolean nextChild(final XmlPullParser parser) throws IOException, XmlPullParserException {
+        final int depth = parser.getDepth();
+        while (true) {
+            final int event = parser.next();
+            if (event == XmlPullParser.START_TAG)
+                return true;
+            if (event == XmlPullParser.END_TAG && parser.getDepth() <= depth)
+                return false;
+            if (event == XmlPullParser.END_DOCUMENT)
+                throw new IOException("stream closed by server");
+        }
+    }
+
+    // from a start tag to its end tag
+    private static void skip(final XmlPullParser parser) throws IOException, XmlPullParserException {
+        final int depth = parser.getDepth();
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_TAG || parser.getDepth() != depth)
+            if (event == XmlPullParser.END_DOCUMENT)
+                throw new IOException("stream closed by server");
+    }
+
+    private static String streamError(final XmlPullParser parser) throws IOException, XmlPullParserException {
+        final StringBuilder sb = new StringBuilder("stream error:");
+        final int depth = parser.getDepth();
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_TAG || parser.getDepth() != depth) {
+            if (event == XmlPullParser.END_DOCUMENT)
+                break;
+            if (event == XmlPullParser.START_TAG)
+                sb.append(' ').append(parser.getName());
+            else if (event == XmlPullParser.TEXT)
+                sb.append(' ').append(parser.getText().trim());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * XEP-0114 handshake: lowercase hex SHA-1 of the stream id followed by the secret.
+     */
+    static String handshake(final String streamId, final String secret) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest((streamId + secret).getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("no SHA-1", e);
+        }
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; ++i) {
+            hex[i * 2] = Character.forDigit((digest[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(digest[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+}
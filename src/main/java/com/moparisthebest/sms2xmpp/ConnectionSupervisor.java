@@ -0,0 +1,256 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one Transport, the binding to an XMPP app or a component connection, alive.
+ *
+ * XmppServiceConnection only reports a bind that failed outright and hides the binder, so next to it we hold a second,
+ * standing binding to the same service.  Its binder gives us the death notification when the XMPP app crashes, is
+ * killed or upgraded, and since it is BIND_AUTO_CREATE Android restarts the service and calls us back as soon as it is
+ * up again, at which point we reconnect without waiting out the backoff.  Otherwise failed binds are retried with
+ * jittered exponential backoff.  Every state change happens on one thread, so the listener may take its own locks.
+ */
+public final class ConnectionSupervisor {
+
+    public static final int DISCONNECTED = 0, CONNECTING = 1, CONNECTED = 2, WAITING = 3;
+
+    // what XmppServiceConnection binds to
+    private static final String SERVICE_INTENT = "org.openintents.xmpp.IXmppService";
+    private static final long MIN_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(5);
+    // a bind that neither succeeds nor fails in this long is treated as failed
+    private static final long CONNECT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    public interface Listener {
+        /**
+         * Connects the Transport, which then has to call connected() or failed().
+         */
+        void bind();
+
+        void unbind();
+
+        /**
+         * The connection is gone until the next bind succeeds, stop using it.
+         */
+        void lost();
+    }
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "ConnectionSupervisor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Context context;
+    private final String providerPackage;
+    private final boolean watchService;
+    private final Listener listener;
+    private final Random random = new Random();
+
+    // all confined to the timer thread except state, which anyone may read
+    private volatile int state = DISCONNECTED;
+    private boolean started = false, watching = false;
+    private int failures = 0;
+    private long lostNanos = 0;
+    private ScheduledFuture<?> retry = null;
+    private IBinder watched = null;
+
+    private final IBinder.DeathRecipient deathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            failed("binder died");
+        }
+    };
+
+    private final ServiceConnection watchdog = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder service) {
+            timer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    watch(service);
+                }
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            failed("service disconnected");
+        }
+    };
+
+    /**
+     * @param watchService whether providerPackage is an XMPP app whose service we can watch, otherwise only failures
+     *                     reported to failed() are noticed
+     */
+    public ConnectionSupervisor(final Context context, final String providerPackage, final boolean watchService,
+                                final Listener listener) {
+        this.context = context.getApplicationContext();
+        this.providerPackage = providerPackage;
+        this.watchService = watchService;
+        this.listener = listener;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void start() {
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (started)
+                    return;
+                started = true;
+                if (watchService) {
+                    try {
+                        watching = context.bindService(new Intent(SERVICE_INTENT).setPackage(providerPackage), watchdog, Context.BIND_AUTO_CREATE);
+                    } catch (SecurityException e) {
+                        Log.e(Constants.TAG, "ConnectionSupervisor: cannot watch " + providerPackage, e);
+                    }
+                }
+                connect();
+            }
+        });
+    }
+
+    public void stop() {
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!started)
+                    return;
+                started = false;
+                cancelRetry();
+                unwatch();
+                if (watching) {
+                    context.unbindService(watchdog);
+                    watching = false;
+                }
+                listener.unbind();
+                state = DISCONNECTED;
+            }
+        });
+    }
+
+    /**
+     * Called once the Transport is connected.
+     */
+    public void connected() {
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!started || state != CONNECTING)
+                    return;
+                cancelRetry();
+                state = CONNECTED;
+                failures = 0;
+                if (lostNanos != 0) {
+                    Metrics.get().reconnectTime.recordSince(lostNanos);
+                    lostNanos = 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when binding failed or the connection turned out to be dead, reconnects after a backoff.
+     */
+    public void failed(final String reason) {
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!started || state == WAITING)
+                    return;
+                Log.e(Constants.TAG, "ConnectionSupervisor: " + providerPackage + ": " + reason);
+                if (state == CONNECTED) {
+                    Metrics.get().reconnects.increment();
+                    lostNanos = System.nanoTime();
+                }
+                state = WAITING;
+                listener.lost();
+                listener.unbind();
+                cancelRetry();
+                retry = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        retry = null;
+                        connect();
+                    }
+                }, backoff(failures++), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void connect() {
+        if (!started)
+            return;
+        state = CONNECTING;
+        listener.bind();
+        retry = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retry = null;
+                if (state == CONNECTING)
+                    failed("bind timed out");
+            }
+        }, CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void watch(final IBinder service) {
+        if (!started)
+            return;
+        unwatch();
+        try {
+            service.linkToDeath(deathRecipient, 0);
+            watched = service;
+        } catch (RemoteException e) {
+            // died already, onServiceDisconnected follows
+            return;
+        }
+        if (state == WAITING) {
+            // the XMPP app is back, no need to wait out the backoff
+            cancelRetry();
+            connect();
+        }
+    }
+
+    private void unwatch() {
+        if (watched != null) {
+            watched.unlinkToDeath(deathRecipient, 0);
+            watched = null;
+        }
+    }
+
+    private void cancelRetry() {
+        if (retry != null) {
+            retry.cancel(false);
+            retry = null;
+        }
+    }
+
+    /**
+     * Exponential, with the upper half of every step randomized so many clients don't retry in lockstep.
+     */
+    private long backoff(final int failures) {
+        final long delay = Math.min(MAX_DELAY_MS, MIN_DELAY_MS << Math.min(failures, 20));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+}
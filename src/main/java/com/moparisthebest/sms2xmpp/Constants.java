@@ -20,4 +20,25 @@ public final class Constants {
     public static final String TAG = "sms2xmpp";
     public static final String PROVIDER_KEY = "xmpp_provider";
     public static final String ACCOUNT_KEY = "xmpp_account";
+    public static final String SMS_RATE_KEY = "sms_rate_per_second";
+    public static final String INBOUND_WINDOW_KEY = "inbound_batch_window_ms";
+    public static final String ROUTES_KEY = "extra_routes";
+    public static final String GATEWAYS_KEY = "gateway_domains";
+    public static final String DEBUG_VERBOSITY_KEY = "debug_verbosity";
+    public static final String SMS_ENCODING_KEY = "sms_encoding";
+    public static final String SMS_ENCODING_OVERRIDES_KEY = "sms_encoding_overrides";
+    public static final String MEDIA_UPLOAD_URL_KEY = "media_upload_url";
+    public static final String MEDIA_WORKERS_KEY = "media_workers";
+    public static final String OUTBOUND_WINDOW_KEY = "outbound_coalesce_window_ms";
+    public static final String OUTBOUND_MAX_SEGMENTS_KEY = "outbound_coalesce_max_segments";
+    public static final String CONTACT_NAMES_KEY = "resolve_contact_names";
+    public static final String FLOOD_RATE_KEY = "inbound_flood_per_minute";
+    public static final String COMPONENT_HOST_KEY = "component_host";
+    public static final String COMPONENT_PORT_KEY = "component_port";
+    public static final String COMPONENT_SECRET_KEY = "component_secret";
+    public static final String SIM_STICKY_KEY = "sim_sticky_contacts";
+    public static final String SIM_BALANCE_KEY = "sim_balance";
+
+    // stanza id of the message, xmpp-api doesn't define this extra yet, clients that set it get XEP-0184 receipts
+    public static final String EXTRA_MESSAGE_ID = "message_id";
 }
@@ -0,0 +1,119 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Display names of the address book, so forwarded texts can carry the sender's name as a XEP-0172 nick.
+ *
+ * Instead of one PhoneLookup query per message the whole phone number table is read in a single query the first time
+ * a name is needed and kept in a map keyed by normalized number.  A ContentObserver on the contacts provider throws
+ * the map away whenever the address book changes, the next lookup reads it again.
+ */
+public final class ContactNames {
+
+    private static ContactNames instance = null;
+
+    public static synchronized ContactNames getInstance(final Context context) {
+        if (instance == null)
+            instance = new ContactNames(context.getApplicationContext());
+        return instance;
+    }
+
+    private final Context context;
+    private final ContentObserver observer = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(final boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private volatile boolean enabled = false;
+    // null until loaded, or after the address book changed
+    private volatile Map<String, String> names = null;
+    // bumped on every change so a load that raced with one isn't kept
+    private int generation = 0;
+
+    private ContactNames(final Context context) {
+        this.context = context;
+    }
+
+    public synchronized void setEnabled(final boolean enabled) {
+        if (enabled == this.enabled)
+            return;
+        this.enabled = enabled;
+        if (enabled) {
+            context.getContentResolver().registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, observer);
+        } else {
+            context.getContentResolver().unregisterContentObserver(observer);
+            invalidate();
+        }
+    }
+
+    private synchronized void invalidate() {
+        ++generation;
+        names = null;
+    }
+
+    /**
+     * @param number as returned by PhoneNumbers.normalize
+     * @return the contact's display name, or null if disabled or unknown
+     */
+    public String lookup(final String number) {
+        if (!enabled || number == null)
+            return null;
+        Map<String, String> names = this.names;
+        if (names == null)
+            names = load();
+        return names.get(number);
+    }
+
+    @SuppressLint("InlinedApi")
+    private Map<String, String> load() {
+        final int loading;
+        synchronized (this) {
+            if (names != null)
+                return names; // someone else loaded it while we waited
+            loading = generation;
+        }
+        final Map<String, String> loaded = new HashMap<>();
+        final PhoneNumbers phoneNumbers = PhoneNumbers.getInstance(context);
+        final boolean hasNormalized = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        final String[] projection = hasNormalized ?
+                new String[]{ContactsContract.CommonDataKinds.Phone.NUMBER, ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
+                        ContactsContract.CommonDataKinds.Phone.NORMALIZED_NUMBER} :
+                new String[]{ContactsContract.CommonDataKinds.Phone.NUMBER, ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME};
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, projection, null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                final String name = cursor.getString(1);
+                if (name == null)
+                    continue;
+                final String number = hasNormalized && !cursor.isNull(2) ? cursor.getString(2) : phoneNumbers.normalizeUncached(cursor.getString(0));
+                if (number != null)
+                    loaded.put(number, name);
+            }
+        } catch (SecurityException e) {
+            Log.e(Constants.TAG, "ContactNames: no permission to read contacts", e);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        synchronized (this) {
+            if (loading == generation)
+                names = loaded;
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,120 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Channel for the human readable "what is the bridge doing" events that used to be a toast each.
+ *
+ * Nothing is formatted, queued or posted to the UI thread unless a Listener is attached and the event is within the
+ * configured verbosity, so callers on hot paths guard with isEnabled() before building arguments.  Events are kept as
+ * format + arguments and only formatted on the UI thread, where they are delivered in one batch at most every
+ * FLUSH_INTERVAL_MS.  If the UI can't keep up the oldest events are dropped, never the caller blocked.
+ */
+public final class DebugEvents {
+
+    public static final int OFF = 0, ERROR = 1, INFO = 2, VERBOSE = 3;
+
+    public static final int DEFAULT_VERBOSITY = INFO;
+
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final int MAX_QUEUED = 64;
+
+    public interface Listener {
+        /**
+         * Called on the UI thread with every event since the last call, oldest first.
+         *
+         * @param dropped how many events were discarded since the last call because the queue was full
+         */
+        void onEvents(List<String> events, int dropped);
+    }
+
+    private static final class Event {
+        final String format;
+        final Object[] args;
+
+        Event(final String format, final Object[] args) {
+            this.format = format;
+            this.args = args;
+        }
+
+        @Override
+        public String toString() {
+            return args == null || args.length == 0 ? format : String.format(Locale.US, format, args);
+        }
+    }
+
+    private static volatile Listener listener = null;
+    private static volatile int verbosity = DEFAULT_VERBOSITY;
+
+    private static final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // guarded by queue
+    private static int dropped = 0;
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private DebugEvents() {
+    }
+
+    public static void setListener(final Listener newListener) {
+        listener = newListener;
+        if (newListener == null)
+            queue.clear();
+    }
+
+    public static void setVerbosity(final int newVerbosity) {
+        verbosity = newVerbosity;
+    }
+
+    public static boolean isEnabled(final int level) {
+        return level <= verbosity && listener != null;
+    }
+
+    /**
+     * @param format String.format pattern, formatted later on the UI thread, only if the event is delivered at all
+     */
+    public static void post(final int level, final String format, final Object... args) {
+        if (!isEnabled(level))
+            return;
+        final Event event = new Event(format, args);
+        synchronized (queue) {
+            while (!queue.offer(event)) {
+                queue.poll();
+                ++dropped;
+            }
+        }
+        if (flushScheduled.compareAndSet(false, true))
+            uiHandler.postDelayed(flushTask, FLUSH_INTERVAL_MS);
+    }
+
+    private static void flush() {
+        flushScheduled.set(false);
+        final List<Event> events = new ArrayList<>(MAX_QUEUED);
+        final int droppedNow;
+        synchronized (queue) {
+            queue.drainTo(events);
+            droppedNow = dropped;
+            dropped = 0;
+        }
+        final Listener listener = DebugEvents.listener;
+        if (listener == null || events.isEmpty())
+            return;
+        final List<String> formatted = new ArrayList<>(events.size());
+        for (final Event event : events)
+            formatted.add(event.toString());
+        listener.onEvents(formatted, droppedNow);
+    }
+}
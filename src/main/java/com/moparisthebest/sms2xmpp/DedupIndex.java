@@ -0,0 +1,147 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Remembers the last CAPACITY received texts so one that shows up again isn't forwarded twice.
+ *
+ * Some ROMs broadcast SMS_RECEIVED twice for the same text.  Each text is reduced to a 64-bit hash of (address,
+ * timestamp, body), computed straight from the chars, and the hashes live in a ring in a small memory-mapped file, so
+ * they survive the process being killed, with the oldest overwritten once it's full.  Lookups go through an
+ * open-addressing long[] table rebuilt from the ring on open, no boxing or allocation per text.
+ */
+public final class DedupIndex {
+
+    private static final int CAPACITY = 4096;
+    // power of two, at most half full
+    private static final int TABLE_SIZE = CAPACITY * 2;
+    private static final int MAGIC = 0x534d5331;
+    // int magic, int next ring slot
+    private static final int HEADER_SIZE = 8;
+    private static final long EMPTY = 0;
+
+    private static DedupIndex instance = null;
+
+    public static synchronized DedupIndex getInstance(final Context context) throws IOException {
+        if (instance == null)
+            instance = new DedupIndex(new File(context.getApplicationContext().getFilesDir(), "dedup.idx"));
+        return instance;
+    }
+
+    private final MappedByteBuffer file;
+    private final LongBuffer ring;
+    private final long[] table = new long[TABLE_SIZE];
+    private int next;
+
+    public DedupIndex(final File path) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            file = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + CAPACITY * 8);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+        if (file.getInt(0) != MAGIC || file.getInt(4) < 0 || file.getInt(4) >= CAPACITY) {
+            for (int i = 0; i < HEADER_SIZE + CAPACITY * 8; i += 8)
+                file.putLong(i, 0);
+            file.putInt(0, MAGIC);
+        }
+        next = file.getInt(4);
+        file.position(HEADER_SIZE);
+        ring = file.slice().asLongBuffer();
+        for (int i = 0; i < CAPACITY; ++i) {
+            final long key = ring.get(i);
+            if (key != EMPTY)
+                insert(key);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the address, timestamp and body, never EMPTY.
+     */
+    public static long key(final String address, final long timestampMillis, final String body) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, address);
+        for (int i = 0; i < 64; i += 8)
+            hash = (hash ^ ((timestampMillis >>> i) & 0xFF)) * 0x100000001b3L;
+        hash = mix(hash, body);
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private static long mix(long hash, final String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * 0x100000001b3L;
+            hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        // separator so ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xFF) * 0x100000001b3L;
+    }
+
+    public synchronized boolean contains(final long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return true if key wasn't seen among the last CAPACITY keys, it is remembered now
+     */
+    public synchronized boolean add(final long key) {
+        if (indexOf(key) >= 0)
+            return false;
+        final long evicted = ring.get(next);
+        if (evicted != EMPTY)
+            remove(evicted);
+        ring.put(next, key);
+        insert(key);
+        next = (next + 1) % CAPACITY;
+        file.putInt(4, next);
+        return true;
+    }
+
+    private static int slot(final long key) {
+        // keys are already hashes, fold the high bits in anyway
+        return (int) (key ^ (key >>> 32)) & (TABLE_SIZE - 1);
+    }
+
+    private int indexOf(final long key) {
+        for (int i = slot(key); ; i = (i + 1) & (TABLE_SIZE - 1)) {
+            if (table[i] == key)
+                return i;
+            if (table[i] == EMPTY)
+                return -1;
+        }
+    }
+
+    private void insert(final long key) {
+        int i = slot(key);
+        while (table[i] != EMPTY) {
+            if (table[i] == key)
+                return; // only possible with a corrupt file, one entry is enough
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        table[i] = key;
+    }
+
+    private void remove(final long key) {
+        int hole = indexOf(key);
+        if (hole < 0)
+            return;
+        // backward shift deletion, keeps every probe chain intact without tombstones
+        table[hole] = EMPTY;
+        for (int i = (hole + 1) & (TABLE_SIZE - 1); table[i] != EMPTY; i = (i + 1) & (TABLE_SIZE - 1)) {
+            final int home = slot(table[i]);
+            // move it back unless its home lies cyclically within (hole, i]
+            if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+                table[hole] = table[i];
+                table[i] = EMPTY;
+                hole = i;
+            }
+        }
+    }
+}
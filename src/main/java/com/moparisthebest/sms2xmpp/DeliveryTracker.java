@@ -0,0 +1,310 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.telephony.SmsManager;
+import android.telephony.SmsMessage;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows every outgoing text from SmsManager to the recipient's handset.
+ *
+ * Each text gets a request id and one sent and one delivered PendingIntent per part, which come back through
+ * SmsStatusReceiver.  Once every part is delivered the Listener is told so it can send an XEP-0184 receipt.  Parts
+ * the radio failed to send get the whole text resent with exponential backoff, up to MAX_ATTEMPTS, after which the
+ * Listener is told it failed.  Resends go to the head of the SIM's SmsSender lane, which holds back the texts to the
+ * same recipient still queued there until the resend went out.  Texts to them already submitted before the failed sent
+ * intent came back are out of reach though, those arrive before the resend.  A text SmsSender couldn't even encode
+ * fails right away, it would fail the same way every time.  Carriers that never send delivery reports would otherwise
+ * leak entries, so anything still in flight after IN_FLIGHT_TIMEOUT_MS is evicted.
+ */
+public final class DeliveryTracker {
+
+    public static final int NO_REQUEST = 0;
+
+    public static final String ACTION_SMS_SENT = "com.moparisthebest.sms2xmpp.SMS_SENT";
+    public static final String ACTION_SMS_DELIVERED = "com.moparisthebest.sms2xmpp.SMS_DELIVERED";
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_BASE_MS = 5000;
+    private static final long IN_FLIGHT_TIMEOUT_MS = TimeUnit.HOURS.toMillis(2);
+    private static final long SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Called once per message id a text carried, a coalesced text carries several.
+     */
+    public interface Listener {
+        void delivered(Route route, String toNumber, String messageId);
+
+        /**
+         * @param messageId null if the text carried none, still called once so the sender hears about it
+         */
+        void failed(Route route, String toNumber, String messageId, String reason);
+    }
+
+    private static final class TrackedSms {
+        final Route route;
+        final String toNumber, body;
+        final List<String> messageIds;
+        final long createdNanos = System.nanoTime();
+        final long createdMillis = System.currentTimeMillis();
+        int attempts = 0, parts = 0, sent = 0, delivered = 0;
+        // SIM and time of the latest attempt
+        int subscriptionId = Route.ANY_SUBSCRIPTION;
+        long submittedNanos = 0;
+        boolean sendFailed = false;
+
+        TrackedSms(final Route route, final String toNumber, final String body, final List<String> messageIds) {
+            this.route = route;
+            this.toNumber = toNumber;
+            this.body = body;
+            this.messageIds = messageIds;
+        }
+    }
+
+    private static final DeliveryTracker instance = new DeliveryTracker();
+
+    public static DeliveryTracker getInstance() {
+        return instance;
+    }
+
+    // guarded by this
+    private final SparseArray<TrackedSms> inFlight = new SparseArray<>();
+    // pending intents outlive the process, starting where the last one did would match its reports to our texts,
+    // elapsedRealtime keeps going up across restarts within a boot
+    private int nextRequestId = (int) Math.max(1, SystemClock.elapsedRealtime() & Integer.MAX_VALUE);
+
+    private final Random random = new Random();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "DeliveryTracker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile Context context = null;
+    private volatile Listener listener = null;
+
+    private DeliveryTracker() {
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictExpired();
+            }
+        }, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void init(final Context context, final Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+    }
+
+    /**
+     * @param messageIds stanza ids of the XMPP messages that make up body, none may be null
+     * @return request id to queue the text with, or NO_REQUEST if we can't track right now
+     */
+    public synchronized int track(final Route route, final String toNumber, final String body, final List<String> messageIds) {
+        if (context == null)
+            return NO_REQUEST;
+        final int requestId = nextRequestId;
+        nextRequestId = nextRequestId == Integer.MAX_VALUE ? 1 : nextRequestId + 1;
+        inFlight.put(requestId, new TrackedSms(route, toNumber, body, messageIds));
+        return requestId;
+    }
+
+    /**
+     * Stops tracking a text that never made it into SmsSender's queue.
+     */
+    public synchronized void forget(final int requestId) {
+        inFlight.remove(requestId);
+    }
+
+    /**
+     * Called by SmsSender right before handing a text to SmsManager.
+     *
+     * @param subscriptionId SIM it goes out from
+     * @return {sent intents, delivery intents}, one per part, or null if requestId isn't tracked
+     */
+    public ArrayList<PendingIntent>[] intentsFor(final int requestId, final int parts, final int subscriptionId) {
+        final Context context = this.context;
+        if (requestId == NO_REQUEST || context == null)
+            return null;
+        synchronized (this) {
+            final TrackedSms sms = inFlight.get(requestId);
+            if (sms == null)
+                return null;
+            ++sms.attempts;
+            sms.subscriptionId = subscriptionId;
+            sms.submittedNanos = System.nanoTime();
+            sms.parts = parts;
+            sms.sent = sms.delivered = 0;
+            sms.sendFailed = false;
+        }
+        @SuppressWarnings("unchecked")
+        final ArrayList<PendingIntent>[] ret = new ArrayList[]{new ArrayList<PendingIntent>(parts), new ArrayList<PendingIntent>(parts)};
+        for (int part = 0; part < parts; ++part) {
+            ret[0].add(pendingIntent(context, ACTION_SMS_SENT, requestId, part));
+            ret[1].add(pendingIntent(context, ACTION_SMS_DELIVERED, requestId, part));
+        }
+        return ret;
+    }
+
+    private static PendingIntent pendingIntent(final Context context, final String action, final int requestId, final int part) {
+        // the data uri only exists to make every intent distinct, otherwise PendingIntent would hand back the same one
+        final Intent intent = new Intent(action, Uri.parse("sms2xmpp://" + action + "/" + requestId + "/" + part),
+                context, SmsStatusReceiver.class);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_ONE_SHOT);
+    }
+
+    public static int requestId(final Intent intent) {
+        final Uri data = intent.getData();
+        if (data == null || data.getPathSegments().size() < 1)
+            return NO_REQUEST;
+        try {
+            return Integer.parseInt(data.getPathSegments().get(0));
+        } catch (NumberFormatException e) {
+            return NO_REQUEST;
+        }
+    }
+
+    /**
+     * Called for every part's sent intent, and by SmsSender when SmsManager threw.  When encoding the text threw
+     * instead, before intentsFor, SmsSender calls fail.
+     */
+    public void onSent(final int requestId, final int resultCode) {
+        TraceRecorder.record(TraceFormat.SMS_SENT, resultCode, requestId);
+        final TrackedSms sms;
+        final boolean retry;
+        final int subscriptionId, attempts;
+        synchronized (this) {
+            sms = inFlight.get(requestId);
+            if (sms == null)
+                return;
+            if (resultCode == Activity.RESULT_OK) {
+                if (++sms.sent == sms.parts) {
+                    Metrics.get().smsSentConfirmed.increment();
+                    SmsSender.getInstance().sent(sms.subscriptionId, System.nanoTime() - sms.submittedNanos);
+                }
+                return;
+            }
+            if (sms.sendFailed)
+                return; // already handled for another part of this attempt
+            sms.sendFailed = true;
+            SmsSender.getInstance().sendFailed(sms.subscriptionId);
+            retry = sms.attempts < MAX_ATTEMPTS && isTransient(resultCode);
+            subscriptionId = sms.subscriptionId;
+            attempts = sms.attempts;
+        }
+        if (retry) {
+            final long delay = (RETRY_BASE_MS << Math.min(Math.max(attempts - 1, 0), MAX_ATTEMPTS))
+                    + random.nextInt((int) RETRY_BASE_MS);
+            Log.e(Constants.TAG, "SMS send failed with " + resultCode + ", retrying in " + delay + "ms");
+            Metrics.get().smsRetries.increment();
+            if (!SmsSender.getInstance().retry(sms.toNumber, sms.body, subscriptionId, requestId, delay))
+                fail(requestId, "send queue full");
+        } else {
+            fail(requestId, "send failed with error " + resultCode);
+        }
+    }
+
+    /**
+     * Gives up on requestId right away, telling the Listener.
+     */
+    public void fail(final int requestId, final String reason) {
+        final TrackedSms sms;
+        synchronized (this) {
+            sms = inFlight.get(requestId);
+            if (sms == null)
+                return;
+            inFlight.remove(requestId);
+        }
+        Metrics.get().smsFailed.increment();
+        final Listener listener = this.listener;
+        if (listener == null)
+            return;
+        if (sms.messageIds.isEmpty())
+            listener.failed(sms.route, sms.toNumber, null, reason);
+        for (final String messageId : sms.messageIds)
+            listener.failed(sms.route, sms.toNumber, messageId, reason);
+    }
+
+    private static boolean isTransient(final int resultCode) {
+        switch (resultCode) {
+            case SmsManager.RESULT_ERROR_GENERIC_FAILURE:
+            case SmsManager.RESULT_ERROR_NO_SERVICE:
+            case SmsManager.RESULT_ERROR_RADIO_OFF:
+                return true;
+            default:
+                // RESULT_ERROR_NULL_PDU and anything unknown won't get better by trying again
+                return false;
+        }
+    }
+
+    /**
+     * Called for every part's delivery report.
+     */
+    public void onDelivered(final int requestId, final byte[] pdu) {
+        final TrackedSms sms;
+        String failure = null;
+        synchronized (this) {
+            sms = inFlight.get(requestId);
+            if (sms == null)
+                return;
+            if (pdu != null) {
+                final SmsMessage report = SmsMessage.createFromPdu(pdu);
+                // TP-Status: 0x00-0x1F completed, 0x20-0x3F SC still trying, more reports will come
+                if (report != null && (report.getStatus() & 0x60) != 0) {
+                    if ((report.getStatus() & 0x40) == 0)
+                        return;
+                    failure = "delivery failed with status " + report.getStatus();
+                }
+            }
+            if (failure == null) {
+                if (++sms.delivered < sms.parts)
+                    return;
+                inFlight.remove(requestId);
+            }
+        }
+        if (failure != null) {
+            // not under our lock, the Listener calls back into SMSService
+            fail(requestId, failure);
+            return;
+        }
+        Metrics.get().smsDelivered.increment();
+        TraceRecorder.record(TraceFormat.SMS_DELIVERED, 0, requestId);
+        Metrics.get().deliveryReport.recordSince(sms.createdNanos);
+        final Listener listener = this.listener;
+        if (listener != null)
+            for (final String messageId : sms.messageIds)
+                listener.delivered(sms.route, sms.toNumber, messageId);
+    }
+
+    private synchronized void evictExpired() {
+        final long cutoff = System.currentTimeMillis() - IN_FLIGHT_TIMEOUT_MS;
+        for (int i = inFlight.size() - 1; i >= 0; --i) {
+            if (inFlight.valueAt(i).createdMillis < cutoff) {
+                inFlight.removeAt(i);
+                Metrics.get().deliveryTimeouts.increment();
+            }
+        }
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight.size();
+    }
+}
@@ -16,6 +16,11 @@ public class EventReceiver extends BroadcastReceiver {
             mIntentForService.setAction("other");
         }
         final String action = intent.getAction();
+        if (BatchScheduler.ACTION_DRAIN.equals(action)) {
+            // the alarm only keeps the CPU awake until we return, SMSService.onStartCommand ends this
+            BatchScheduler.getInstance().init(context);
+            BatchScheduler.getInstance().begin(0);
+        }
         //if (action.equals("ui") || hasEnabledAccounts(context)) {
         if (true) { // todo: check for setup here
             context.startService(mIntentForService);
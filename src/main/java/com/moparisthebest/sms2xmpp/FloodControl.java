@@ -0,0 +1,241 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-sender and overall limits on how fast received texts are forwarded, so a misbehaving short code or a storm of
+ * one time codes can't flood the XMPP client and server.
+ *
+ * Every originating address gets a token bucket, burst BURST and refilled at the configured rate, and all of them
+ * share one more with a GLOBAL_PER_MINUTE ceiling.  A bucket is a single long, the time of its last refill and how
+ * far below full it is packed together, updated with compare-and-set, and the buckets live in a fixed size table
+ * keyed by a 64-bit hash of the address, so the common, allowed, path takes no lock and allocates nothing.  The table
+ * is probed a few slots at most, a new sender takes over the least recently used of them, so it is bounded but
+ * approximate under heavy churn.
+ *
+ * Texts over the limit are held per sender and forwarded as one digest HOLD_MILLIS after the first, only that path
+ * locks.  Once a sender has texts held everything else from them is held too until the digest is taken, so nothing
+ * overtakes it.  Held texts live in memory only, they're lost if the process dies before the digest goes out.
+ */
+public final class FloodControl {
+
+    public static final int DEFAULT_PER_MINUTE = 20;
+
+    private static final int BURST = 10;
+    private static final int GLOBAL_PER_MINUTE = 120, GLOBAL_BURST = 60;
+    private static final long HOLD_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // senders held at once and chars kept per digest, beyond that texts are only counted
+    private static final int MAX_HELD_SENDERS = 256, MAX_DIGEST_CHARS = 4096;
+
+    private static final int SLOTS = 1024; // power of 2
+    private static final int PROBES = 8;
+    // a bucket's state: millis since start << DEFICIT_BITS | how many UNITs it is below full, 0 is a full bucket
+    private static final int DEFICIT_BITS = 20;
+    private static final long DEFICIT_MASK = (1L << DEFICIT_BITS) - 1;
+    private static final long UNIT = 1024; // per token, so BURST can be up to 1023
+
+    public interface Sink {
+        /**
+         * Texts from fromNumber are due, the sink must call digest(fromNumber) in order with offers for fromNumber and
+         * forward what it returns, bypassing flood control.
+         */
+        void release(String fromNumber);
+    }
+
+    private static final class Held {
+        final InboundSms first;
+        final StringBuilder bodies = new StringBuilder();
+        int count = 0, shown = 0;
+
+        Held(final InboundSms first) {
+            this.first = first;
+        }
+    }
+
+    private final Sink sink;
+    private final long start = System.currentTimeMillis();
+    private final AtomicLongArray keys = new AtomicLongArray(SLOTS), states = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray global = new AtomicLongArray(1);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "FloodControl");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final double GLOBAL_UNITS_PER_MILLI = rate(GLOBAL_PER_MINUTE);
+
+    // UNITs per milli, 0 is off
+    private volatile double unitsPerMilli = rate(DEFAULT_PER_MINUTE);
+
+    // guarded by itself
+    private final Map<String, Held> held = new HashMap<>();
+    // held.size(), read without the lock so offer only locks while someone is held
+    private volatile int heldSenders = 0;
+
+    public FloodControl(final Sink sink) {
+        this.sink = sink;
+    }
+
+    private static double rate(final int perMinute) {
+        return perMinute <= 0 ? 0 : (double) perMinute * UNIT / TimeUnit.MINUTES.toMillis(1);
+    }
+
+    /**
+     * @param perMinute texts each sender may keep sending per minute after a burst of BURST, 0 turns flood control off
+     */
+    public void setRate(final int perMinute) {
+        unitsPerMilli = rate(perMinute);
+    }
+
+    /**
+     * @return true if sms may be forwarded now, otherwise it's held for a digest and the caller must drop it
+     */
+    public boolean offer(final InboundSms sms) {
+        final double unitsPerMilli = this.unitsPerMilli;
+        if (unitsPerMilli == 0)
+            return true;
+        if (heldSenders > 0 && holdIfHeld(sms))
+            return false;
+        final long now = System.currentTimeMillis() - start;
+        final int slot = slotFor(hash(sms.fromNumber));
+        if (take(states, slot, now, unitsPerMilli, BURST)) {
+            if (take(global, 0, now, GLOBAL_UNITS_PER_MILLI, GLOBAL_BURST))
+                return true;
+            // not sent, the sender shouldn't pay for it
+            refund(states, slot);
+        }
+        hold(sms);
+        return false;
+    }
+
+    private static boolean take(final AtomicLongArray states, final int i, final long now, final double unitsPerMilli,
+                                final int burst) {
+        while (true) {
+            final long state = states.get(i);
+            final long last = state >>> DEFICIT_BITS;
+            final long refilled = now > last ? (long) ((now - last) * unitsPerMilli) : 0;
+            final long deficit = Math.max(0, (state & DEFICIT_MASK) - refilled);
+            if (deficit + UNIT > burst * UNIT)
+                return false;
+            if (states.compareAndSet(i, state, (Math.max(now, last) << DEFICIT_BITS) | (deficit + UNIT)))
+                return true;
+        }
+    }
+
+    private static void refund(final AtomicLongArray states, final int i) {
+        while (true) {
+            final long state = states.get(i);
+            final long deficit = state & DEFICIT_MASK;
+            if (states.compareAndSet(i, state, (state & ~DEFICIT_MASK) | Math.max(0, deficit - UNIT)))
+                return;
+        }
+    }
+
+    private static long hash(final String address) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < address.length(); ++i)
+            hash = (hash ^ address.charAt(i)) * 0x100000001b3L;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private int slotFor(final long key) {
+        final int home = (int) (key ^ (key >>> 32)) & (SLOTS - 1);
+        int oldest = home;
+        long oldestLast = Long.MAX_VALUE;
+        for (int p = 0; p < PROBES; ++p) {
+            final int i = (home + p) & (SLOTS - 1);
+            final long k = keys.get(i);
+            if (k == key)
+                return i;
+            if (k == 0 && keys.compareAndSet(i, 0, key)) {
+                states.set(i, 0);
+                return i;
+            }
+            final long last = states.get(i) >>> DEFICIT_BITS;
+            if (last < oldestLast) {
+                oldestLast = last;
+                oldest = i;
+            }
+        }
+        // evict the least recently used, whoever loses a race here just shares a bucket for a moment
+        final long evicted = keys.get(oldest);
+        if (keys.compareAndSet(oldest, evicted, key))
+            states.set(oldest, 0);
+        return oldest;
+    }
+
+    private boolean holdIfHeld(final InboundSms sms) {
+        synchronized (held) {
+            final Held h = held.get(sms.fromNumber);
+            if (h == null)
+                return false;
+            Metrics.get().smsThrottled.increment();
+            add(h, sms);
+            return true;
+        }
+    }
+
+    private void hold(final InboundSms sms) {
+        Metrics.get().smsThrottled.increment();
+        final String from = sms.fromNumber;
+        synchronized (held) {
+            Held h = held.get(from);
+            if (h == null) {
+                if (held.size() >= MAX_HELD_SENDERS) {
+                    Metrics.get().smsThrottledDropped.increment();
+                    return;
+                }
+                held.put(from, h = new Held(sms));
+                heldSenders = held.size();
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sink.release(from);
+                    }
+                }, HOLD_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            add(h, sms);
+        }
+    }
+
+    // guarded by held
+    private static void add(final Held h, final InboundSms sms) {
+        ++h.count;
+        if (h.bodies.length() + sms.body.length() <= MAX_DIGEST_CHARS) {
+            if (h.bodies.length() > 0)
+                h.bodies.append("\n\n");
+            h.bodies.append(sms.body);
+            ++h.shown;
+        }
+    }
+
+    /**
+     * Stops holding texts from from, for the Sink.
+     *
+     * @return one text standing in for everything held from from, null if nothing is
+     */
+    public InboundSms digest(final String from) {
+        final Held h;
+        synchronized (held) {
+            h = held.remove(from);
+            heldSenders = held.size();
+        }
+        if (h == null)
+            return null;
+        final StringBuilder body = new StringBuilder(h.bodies.length() + 64);
+        body.append(h.count).append(h.count == 1 ? " text" : " texts").append(" held back by flood control:\n\n").append(h.bodies);
+        if (h.shown < h.count)
+            body.append("\n\n(").append(h.count - h.shown).append(" more not shown)");
+        Metrics.get().floodDigests.increment();
+        return new InboundSms(from, body.toString(), h.first.timestampMillis, h.first.subscriptionId, h.first.receivedMillis);
+    }
+}
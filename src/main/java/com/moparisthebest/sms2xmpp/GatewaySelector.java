@@ -0,0 +1,215 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the gateway domain, an xmpp-echo-self component, that routes without a fixed one send through, from the ones
+ * configured, in order of preference.
+ *
+ * SMSService bounces a probe through every domain now and then and reports when it comes back, or that a call through
+ * a domain failed.  A probe's id is its stanza id and its body, through xmpp-api only the body makes it back to us.  A domain that fails is skipped for a backoff that doubles with every failure in a row, a probe
+ * coming back clears that and feeds a moving average of its round trip.  The current domain is kept until it fails
+ * or another one is SWITCH_RATIO faster, so a bit of jitter doesn't flip every text between domains.  If every domain
+ * is failing the one that should recover first is used.
+ *
+ * Plain Java and the caller passes the time in, so it can be driven by anything, real or simulated.
+ */
+public final class GatewaySelector {
+
+    // stanza ids of probes start with this
+    public static final String PROBE_PREFIX = "sms2xmpp-probe-";
+
+    public static final long PROBE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long MIN_DOWN_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long MAX_DOWN_NANOS = TimeUnit.MINUTES.toNanos(30);
+    private static final double SWITCH_RATIO = 0.8;
+
+    private static final GatewaySelector instance = new GatewaySelector();
+
+    public static GatewaySelector getInstance() {
+        return instance;
+    }
+
+    private static final class Health {
+        // moving average, 0 until a probe came back
+        long rttNanos = 0;
+        int failures = 0;
+        long downUntil = 0;
+        // when the newest probe that came back was sent
+        long lastReturnedSent = 0;
+        long probes = 0, probesReturned = 0, errors = 0;
+    }
+
+    private static final class Probe {
+        final String domain;
+        final long sentNanos;
+
+        Probe(final String domain, final long sentNanos) {
+            this.domain = domain;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    // all guarded by this
+    private List<String> domains = Collections.emptyList();
+    private final Map<String, Health> health = new HashMap<>();
+    private final Map<String, Probe> probes = new HashMap<>();
+    private String selected = null;
+    private long switches = 0, nextProbeId = 0;
+
+    public GatewaySelector() {
+    }
+
+    /**
+     * Keeps what was learned about domains that stay.
+     */
+    public synchronized void setDomains(final List<String> domains) {
+        this.domains = Collections.unmodifiableList(new ArrayList<>(domains));
+        health.keySet().retainAll(domains);
+        for (final String domain : domains)
+            if (!health.containsKey(domain))
+                health.put(domain, new Health());
+        for (final Iterator<Probe> it = probes.values().iterator(); it.hasNext(); )
+            if (!health.containsKey(it.next().domain))
+                it.remove();
+        if (selected != null && !health.containsKey(selected))
+            selected = null;
+    }
+
+    public synchronized List<String> getDomains() {
+        return domains;
+    }
+
+    /**
+     * @return domain to send through now, null if none are configured
+     */
+    public synchronized String current(final long now) {
+        if (domains.isEmpty())
+            return null;
+        String best = null;
+        for (final String domain : domains) {
+            final Health h = health.get(domain);
+            if (h.downUntil > now)
+                continue;
+            // known round trips first, unknown ones in order of preference
+            if (best == null || (h.rttNanos != 0 && (health.get(best).rttNanos == 0 || h.rttNanos < health.get(best).rttNanos)))
+                best = domain;
+        }
+        if (best == null) {
+            for (final String domain : domains)
+                if (best == null || health.get(domain).downUntil < health.get(best).downUntil)
+                    best = domain;
+        } else if (selected != null && !best.equals(selected) && health.get(selected).downUntil <= now) {
+            final long selectedRtt = health.get(selected).rttNanos, bestRtt = health.get(best).rttNanos;
+            if (selectedRtt == 0 || bestRtt == 0 || bestRtt > selectedRtt * SWITCH_RATIO)
+                best = selected; // not enough of a difference to move
+        }
+        if (selected != null && !best.equals(selected))
+            ++switches;
+        selected = best;
+        return best;
+    }
+
+    /**
+     * @return id of the probe a message that came back is, null if it isn't one
+     */
+    public static String probeId(final String messageId, final String body) {
+        if (messageId != null && messageId.startsWith(PROBE_PREFIX))
+            return messageId;
+        if (body != null && body.startsWith(PROBE_PREFIX))
+            return body;
+        return null;
+    }
+
+    /**
+     * @return stanza id to send the probe through domain with
+     */
+    public synchronized String probeSent(final String domain, final long now) {
+        final String id = PROBE_PREFIX + (++nextProbeId);
+        probes.put(id, new Probe(domain, now));
+        final Health h = health.get(domain);
+        if (h != null)
+            ++h.probes;
+        return id;
+    }
+
+    /**
+     * @return false if id wasn't a probe we're waiting for
+     */
+    public synchronized boolean probeReturned(final String id, final long now) {
+        final Probe probe = probes.remove(id);
+        if (probe == null)
+            return false;
+        final Health h = health.get(probe.domain);
+        if (h == null)
+            return true;
+        final long rtt = Math.max(1, now - probe.sentNanos);
+        h.rttNanos = h.rttNanos == 0 ? rtt : h.rttNanos + (rtt - h.rttNanos) / 4;
+        h.failures = 0;
+        h.downUntil = 0;
+        if (h.probesReturned == 0 || probe.sentNanos - h.lastReturnedSent > 0)
+            h.lastReturnedSent = probe.sentNanos;
+        ++h.probesReturned;
+        return true;
+    }
+
+    /**
+     * Counts probes that didn't come back in PROBE_TIMEOUT_NANOS as failures of their domain, unless none ever came
+     * back through it, then the XMPP app just doesn't hand them to us, or a later one already did.
+     */
+    public synchronized void expireProbes(final long now) {
+        for (final Iterator<Probe> it = probes.values().iterator(); it.hasNext(); ) {
+            final Probe probe = it.next();
+            if (now - probe.sentNanos >= PROBE_TIMEOUT_NANOS) {
+                it.remove();
+                final Health h = health.get(probe.domain);
+                if (h != null && h.probesReturned > 0 && h.lastReturnedSent - probe.sentNanos <= 0)
+                    failure(probe.domain, now);
+            }
+        }
+    }
+
+    /**
+     * A call through domain failed, or a probe through it never came back.
+     */
+    public synchronized void failure(final String domain, final long now) {
+        final Health h = health.get(domain);
+        if (h == null)
+            return;
+        ++h.errors;
+        h.downUntil = now + Math.min(MAX_DOWN_NANOS, MIN_DOWN_NANOS << Math.min(h.failures, 20));
+        ++h.failures;
+    }
+
+    public synchronized long getSwitches() {
+        return switches;
+    }
+
+    /**
+     * Appends {"domain":{stats},...}.
+     */
+    public synchronized void appendJson(final StringBuilder sb, final long now) {
+        sb.append('{');
+        boolean first = true;
+        for (final String domain : domains) {
+            final Health h = health.get(domain);
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append('"').append(domain).append("\":{\"selected\":").append(domain.equals(selected))
+                    .append(",\"up\":").append(h.downUntil <= now)
+                    .append(",\"rttMs\":").append(TimeUnit.NANOSECONDS.toMillis(h.rttNanos))
+                    .append(",\"probes\":").append(h.probes)
+                    .append(",\"probesReturned\":").append(h.probesReturned)
+                    .append(",\"errors\":").append(h.errors)
+                    .append('}');
+        }
+        sb.append('}');
+    }
+}
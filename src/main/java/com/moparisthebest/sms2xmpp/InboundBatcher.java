@@ -0,0 +1,93 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when received texts waiting in the Outbox get drained, so they reach the XMPP client in as few IPC calls
+ * as possible.
+ *
+ * With a window of 0 every SMS_RECEIVED broadcast triggers a drain straight away, otherwise the drain happens
+ * windowMillis after the first text arrives so bursts spread over several broadcasts are coalesced too.  The window
+ * is held open in a BatchScheduler batch, so a dozing device doesn't stretch it.
+ */
+public final class InboundBatcher {
+
+    // keep a single payload comfortably under the binder transaction limit
+    public static final int MAX_BATCH_SIZE = 50;
+
+    public interface Sink {
+        void flush();
+    }
+
+    private final Sink sink;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "InboundBatcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (Exception e) {
+                Log.e(Constants.TAG, "InboundBatcher: ", e);
+            }
+        }
+    };
+
+    private ScheduledFuture<?> scheduledFlush = null;
+    private volatile long windowMillis;
+
+    public InboundBatcher(final Sink sink, final long windowMillis) {
+        this.sink = sink;
+        this.windowMillis = windowMillis;
+    }
+
+    public void setWindowMillis(final long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Called once per broadcast after its texts were appended to the Outbox.
+     */
+    public void added() {
+        synchronized (this) {
+            if (windowMillis > 0) {
+                if (scheduledFlush == null) {
+                    // ends in flush
+                    BatchScheduler.getInstance().begin(0);
+                    scheduledFlush = timer.schedule(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    public void flush() {
+        final boolean scheduled;
+        synchronized (this) {
+            scheduled = scheduledFlush != null;
+            if (scheduled) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        }
+        try {
+            sink.flush();
+        } finally {
+            if (scheduled)
+                BatchScheduler.getInstance().end();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.telephony.SmsMessage;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything SMSReceiver used to do on the main thread, on background threads while the broadcast is kept alive with
+ * goAsync().
+ *
+ * One parser thread decodes the PDUs of each broadcast in arrival order and joins the parts per originating address,
+ * then hands every text to one of SHARDS single threaded executors picked by address.  Texts from one sender therefore
+ * stay in order while different senders are deduplicated and written to the Outbox in parallel.  The broadcast is
+ * finished once every text from it has been handled.
+ */
+public final class InboundPipeline {
+
+    private static final int SHARDS = 4;
+
+    private static final InboundPipeline instance = new InboundPipeline();
+
+    public static InboundPipeline getInstance() {
+        return instance;
+    }
+
+    private final ExecutorService parser = Executors.newSingleThreadExecutor(threadFactory("InboundPipeline-parse"));
+    private final ThreadPoolExecutor[] shards = new ThreadPoolExecutor[SHARDS];
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    // set on the first submit, digests only exist after one
+    private volatile Context context = null;
+
+    private final FloodControl floodControl = new FloodControl(new FloodControl.Sink() {
+        @Override
+        public void release(final String fromNumber) {
+            // on the sender's shard, so texts handled before this are in the digest and ones after come after it
+            shardFor(fromNumber).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final InboundSms digest = floodControl.digest(fromNumber);
+                        if (digest != null)
+                            forward(context, digest);
+                    } catch (Exception e) {
+                        Log.e(Constants.TAG, "InboundPipeline: cannot forward flood digest", e);
+                    }
+                }
+            });
+        }
+    });
+
+    private InboundPipeline() {
+        for (int i = 0; i < SHARDS; ++i)
+            shards[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    threadFactory("InboundPipeline-" + i));
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Takes over one SMS_RECEIVED broadcast, finishing result once it's handled.
+     */
+    public void submit(final Context context, final Object[] pdus, final int subscriptionId,
+                       final BroadcastReceiver.PendingResult result) {
+        final Context appContext = context.getApplicationContext();
+        this.context = appContext;
+        TraceRecorder.open(appContext);
+        final long receivedMillis = System.currentTimeMillis();
+        final long queuedNanos = System.nanoTime();
+        parser.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean handedOff = false;
+                try {
+                    handedOff = parse(appContext, pdus, subscriptionId, receivedMillis, queuedNanos, result);
+                } catch (Exception e) {
+                    Log.e(Constants.TAG, "InboundPipeline: cannot parse broadcast", e);
+                } finally {
+                    if (!handedOff)
+                        result.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Like submit, for texts that are already decoded and joined, package private for tests to play the radio.
+     *
+     * @param finished run once every text was handled
+     */
+    void submit(final Context context, final Collection<InboundSms> texts, final Runnable finished) {
+        final Context appContext = context.getApplicationContext();
+        this.context = appContext;
+        TraceRecorder.open(appContext);
+        final long queuedNanos = System.nanoTime();
+        parser.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!dispatch(appContext, texts, queuedNanos, finished))
+                    finished.run();
+            }
+        });
+    }
+
+    /**
+     * @return true if the texts were handed to the shards, which then finish result
+     */
+    private boolean parse(final Context context, final Object[] pdus, final int subscriptionId, final long receivedMillis,
+                          final long queuedNanos, final BroadcastReceiver.PendingResult result) {
+        // every part of a concatenated SMS arrives in the same broadcast, in order, so joining bodies per originating
+        // address reassembles them
+        final Map<String, InboundSms> texts = new LinkedHashMap<>();
+        final PhoneNumbers phoneNumbers = PhoneNumbers.getInstance(context);
+        for (final Object pdu : pdus) {
+            final SmsMessage msg = SmsMessage.createFromPdu((byte[]) pdu);
+            final String from = phoneNumbers.normalize(msg.getOriginatingAddress());
+            final String message = msg.getMessageBody();
+            if (from == null || message == null)
+                continue;
+            final InboundSms previous = texts.get(from);
+            texts.put(from, previous == null ? new InboundSms(from, message, msg.getTimestampMillis(), subscriptionId, receivedMillis) :
+                    new InboundSms(from, previous.body + message, previous.timestampMillis, subscriptionId, receivedMillis));
+        }
+        return dispatch(context, texts.values(), queuedNanos, new Runnable() {
+            @Override
+            public void run() {
+                result.finish();
+            }
+        });
+    }
+
+    /**
+     * @return true if the texts were handed to the shards, which then run finished
+     */
+    private boolean dispatch(final Context context, final Collection<InboundSms> texts, final long queuedNanos,
+                             final Runnable finished) {
+        if (texts.isEmpty())
+            return false;
+        Metrics.get().broadcasts.increment();
+        final AtomicInteger remaining = new AtomicInteger(texts.size());
+        for (final InboundSms sms : texts) {
+            final ThreadPoolExecutor shard = shardFor(sms.fromNumber);
+            shard.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(context, sms);
+                    } catch (Exception e) {
+                        Log.e(Constants.TAG, "InboundPipeline: cannot handle text", e);
+                    } finally {
+                        Metrics.get().inboundProcessing.recordSince(queuedNanos);
+                        if (remaining.decrementAndGet() == 0)
+                            finished.run();
+                    }
+                }
+            });
+            updateMax(shard.getQueue().size());
+        }
+        return true;
+    }
+
+    private ThreadPoolExecutor shardFor(final String fromNumber) {
+        return shards[(fromNumber.hashCode() & 0x7FFFFFFF) % SHARDS];
+    }
+
+    public FloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    private void handle(final Context context, final InboundSms sms) throws IOException {
+        final DedupIndex dedup = DedupIndex.getInstance(context);
+        final long key = DedupIndex.key(sms.fromNumber, sms.timestampMillis, sms.body);
+        // a duplicate has the same address so it's on this shard too, nothing can slip in between contains and add
+        if (dedup.contains(key)) {
+            Metrics.get().smsDuplicates.increment();
+            TraceRecorder.record(TraceFormat.SMS_DUPLICATE, sms.body.length(), TraceRecorder.hash(sms.fromNumber));
+            return;
+        }
+        Metrics.get().smsReceived.increment();
+        SimDispatcher.getInstance().received(sms.fromNumber, sms.subscriptionId);
+        if (!floodControl.offer(sms)) {
+            TraceRecorder.record(TraceFormat.SMS_THROTTLED, sms.body.length(), TraceRecorder.hash(sms.fromNumber));
+            // held for a digest, a redelivery mustn't count against the sender again
+            dedup.add(key);
+            return;
+        }
+        TraceRecorder.record(TraceFormat.SMS_RECEIVED, sms.body.length(), TraceRecorder.hash(sms.fromNumber));
+        forward(context, sms);
+        // only remembered once safely in the outbox, a redelivery after a failed append still gets through
+        dedup.add(key);
+    }
+
+    private static void forward(final Context context, final InboundSms sms) throws IOException {
+        // written ahead so nothing is lost if SMSService isn't running or bound yet, it drains once registered
+        Outbox.getInstance(context).append(Collections.singletonList(sms));
+        final SMSService instance = SMSService.instance;
+        if (instance != null) {
+            instance.receivedTexts();
+        } else {
+            final Intent mIntentForService = new Intent(context, SMSService.class);
+            mIntentForService.setAction("other");
+            context.startService(mIntentForService);
+        }
+    }
+
+    private void updateMax(final long depth) {
+        long current;
+        while (depth > (current = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(current, depth)) {
+            // retry
+        }
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (final ThreadPoolExecutor shard : shards)
+            depth += shard.getQueue().size();
+        return depth;
+    }
+
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+}
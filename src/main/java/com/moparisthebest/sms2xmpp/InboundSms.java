@@ -0,0 +1,23 @@
+package com.moparisthebest.sms2xmpp;
+
+/**
+ * One received text, with all parts of a concatenated SMS already joined.
+ */
+public final class InboundSms {
+
+    public final String fromNumber, body;
+    public final long timestampMillis;
+    // SIM it was received on, or Route.ANY_SUBSCRIPTION if the platform didn't say
+    public final int subscriptionId;
+    // our clock when the broadcast arrived, timestampMillis is the SMSC's
+    public final long receivedMillis;
+
+    public InboundSms(final String fromNumber, final String body, final long timestampMillis, final int subscriptionId,
+                      final long receivedMillis) {
+        this.fromNumber = fromNumber;
+        this.body = body;
+        this.timestampMillis = timestampMillis;
+        this.subscriptionId = subscriptionId;
+        this.receivedMillis = receivedMillis;
+    }
+}
@@ -1,7 +1,5 @@
 package com.moparisthebest.sms2xmpp;
 
-import android.util.LruCache;
-
 import java.net.IDN;
 
 /**
@@ -9,11 +7,13 @@ import java.net.IDN;
  */
 public final class Jid {
 
-    private static LruCache<String,Jid> cache = new LruCache<>(1024);
+    private static final JidCache cache = new JidCache(1024);
 
     private final String localpart;
     private final String domainpart;
     private final String resourcepart;
+    // getDomainpart() is on the hot path of every outgoing message, don't run IDN.toUnicode every time
+    private final String unicodeDomainpart;
 
     private static final char[] JID_ESCAPING_CHARS = {' ','"','&','\'','/',':','<','>','@','\\'};
 
@@ -38,7 +38,7 @@ public final class Jid {
     }
 
     public String getDomainpart() {
-        return IDN.toUnicode(domainpart);
+        return unicodeDomainpart;
     }
 
     public String getResourcepart() {
@@ -61,41 +61,49 @@ public final class Jid {
     }
 
     public static Jid fromString(final String jid) {
-        Jid ret = Jid.cache.get(jid);
-        if(ret != null)
-            return ret;
-        ret = new Jid(jid);
-        Jid.cache.put(jid, ret);
-        return ret;
+        if (jid == null) throw new NullPointerException();
+        return Jid.cache.get(jid);
     }
 
-    private Jid(final String jid) {
-        if (jid == null) throw new NullPointerException();
+    public static JidCache getCache() {
+        return cache;
+    }
 
-        // Hackish Android way to count the number of chars in a string... should work everywhere.
-        final int atCount = jid.length() - jid.replace("@", "").length();
-        final int slashCount = jid.length() - jid.replace("/", "").length();
+    Jid(final String jid) {
+        if (jid == null) throw new NullPointerException();
 
         // Throw an error if there's anything obvious wrong with the JID...
-        if (jid.isEmpty() || jid.length() > 3071) {
+        final int length = jid.length();
+        if (length == 0 || length > 3071) {
             throw new IllegalArgumentException("invalid length");
         }
 
+        // One scan for the separators, all we need is the first "@", the first "/" and whether there is a second "/".
+        int atLoc = -1, slashLoc = -1;
+        boolean multipleSlashes = false;
+        for (int i = 0; i < length; ++i) {
+            final char c = jid.charAt(i);
+            if (c == '@') {
+                if (atLoc == -1) atLoc = i;
+            } else if (c == '/') {
+                if (slashLoc == -1) slashLoc = i;
+                else multipleSlashes = true;
+            }
+        }
+
         // Go ahead and check if the localpart or resourcepart is empty.
-        if (jid.startsWith("@") || (jid.endsWith("@") && slashCount == 0) || jid.startsWith("/") || (jid.endsWith("/") && slashCount < 2)) {
+        final char first = jid.charAt(0), last = jid.charAt(length - 1);
+        if (first == '@' || (last == '@' && slashLoc == -1) || first == '/' || (last == '/' && !multipleSlashes)) {
             throw new IllegalArgumentException("invalid character");
         }
 
-        String finaljid;
+        final StringBuilder finaljid = new StringBuilder(length);
 
         final int domainpartStart;
-        final int atLoc = jid.indexOf("@");
-        final int slashLoc = jid.indexOf("/");
         // If there is no "@" in the JID (eg. "example.net" or "example.net/resource")
         // or there are one or more "@" signs but they're all in the resourcepart (eg. "example.net/@/rp@"):
-        if (atCount == 0 || (atCount > 0 && slashLoc != -1 && atLoc > slashLoc)) {
+        if (atLoc == -1 || (slashLoc != -1 && atLoc > slashLoc)) {
             localpart = "";
-            finaljid = "";
             domainpartStart = 0;
         } else {
             localpart = jid.substring(0, atLoc);
@@ -103,28 +111,40 @@ public final class Jid {
                 throw new IllegalArgumentException("invalid part length");
             }
             domainpartStart = atLoc + 1;
-            finaljid = localpart + "@";
+            finaljid.append(localpart).append('@');
         }
 
-        final String dp;
-        if (slashCount > 0) {
-            resourcepart = jid.substring(slashLoc + 1, jid.length());
+        final int domainpartEnd;
+        if (slashLoc != -1) {
+            resourcepart = jid.substring(slashLoc + 1, length);
             if (resourcepart.isEmpty() || resourcepart.length() > 1023) {
                 throw new IllegalArgumentException("invalid part length");
             }
-            dp = IDN.toUnicode(jid.substring(domainpartStart, slashLoc), IDN.USE_STD3_ASCII_RULES);
-            finaljid = finaljid + dp + "/" + resourcepart;
+            domainpartEnd = slashLoc;
         } else {
             resourcepart = "";
-            dp = IDN.toUnicode(jid.substring(domainpartStart, jid.length()), IDN.USE_STD3_ASCII_RULES);
-            finaljid = finaljid + dp;
+            domainpartEnd = length;
         }
 
-        // Remove trailing "." before storing the domain part.
-        if (dp.endsWith(".")) {
-            domainpart = IDN.toASCII(dp.substring(0, dp.length() - 1), IDN.USE_STD3_ASCII_RULES);
+        final String dp = jid.substring(domainpartStart, domainpartEnd);
+        if (isPlainAsciiDomain(dp)) {
+            // IDN.toUnicode and IDN.toASCII would both hand this back untouched
+            finaljid.append(dp);
+            domainpart = dp.endsWith(".") ? dp.substring(0, dp.length() - 1) : dp;
+            unicodeDomainpart = domainpart;
         } else {
-            domainpart = IDN.toASCII(dp, IDN.USE_STD3_ASCII_RULES);
+            final String unicode = IDN.toUnicode(dp, IDN.USE_STD3_ASCII_RULES);
+            finaljid.append(unicode);
+            // Remove trailing "." before storing the domain part.
+            if (unicode.endsWith(".")) {
+                domainpart = IDN.toASCII(unicode.substring(0, unicode.length() - 1), IDN.USE_STD3_ASCII_RULES);
+            } else {
+                domainpart = IDN.toASCII(unicode, IDN.USE_STD3_ASCII_RULES);
+            }
+            unicodeDomainpart = IDN.toUnicode(domainpart);
+        }
+        if (slashLoc != -1) {
+            finaljid.append('/').append(resourcepart);
         }
 
         // TODO: Find a proper domain validation library; validate individual parts, separators, etc.
@@ -132,7 +152,34 @@ public final class Jid {
             throw new IllegalArgumentException("invalid part length");
         }
 
-        this.displayjid = finaljid;
+        this.displayjid = finaljid.toString();
+    }
+
+    /**
+     * @return true if domain is made only of non-empty lowercase letter/digit/hyphen labels of at most 63 chars, none
+     * starting or ending with a hyphen or starting with the "xn--" ACE prefix, optionally with one trailing dot; the
+     * IDN conversions are the identity for exactly these
+     */
+    private static boolean isPlainAsciiDomain(final String domain) {
+        final int length = domain.length();
+        int labelStart = 0;
+        for (int i = 0; i <= length; ++i) {
+            final char c = i == length ? '.' : domain.charAt(i);
+            if (c == '.') {
+                final int labelLength = i - labelStart;
+                if (labelLength == 0) {
+                    // only allowed as the single trailing dot of a non-empty domain
+                    if (i != length || labelStart == 0) return false;
+                } else if (labelLength > 63 || domain.charAt(labelStart) == '-' || domain.charAt(i - 1) == '-'
+                        || domain.startsWith("xn--", labelStart)) {
+                    return false;
+                }
+                labelStart = i + 1;
+            } else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-')) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public Jid toBareJid() {
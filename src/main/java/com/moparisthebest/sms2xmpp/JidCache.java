@@ -0,0 +1,101 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free intern cache from JID strings to parsed Jids.
+ *
+ * The table is 2-way set associative: a key can only live in the 2 slots of its set, so a lookup is at most 2
+ * reads and a hit allocates nothing.  On a miss in a full set the entry that wasn't used since the last eviction in
+ * that set goes (CLOCK style).  Racing writers can overwrite each other, which only costs an extra parse later since
+ * Jids are immutable and equal by value.
+ */
+public final class JidCache {
+
+    private static final int WAYS = 2;
+
+    private static final class Entry {
+        final String key;
+        final Jid jid;
+        // benign race, this is only a hint for eviction
+        boolean referenced;
+
+        Entry(final String key, final Jid jid) {
+            this.key = key;
+            this.jid = jid;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int setMask;
+
+    private final StripedCounter hits = new StripedCounter(), misses = new StripedCounter(),
+            evictions = new StripedCounter();
+
+    /**
+     * @param capacity rounded up to a power of 2, at least 2
+     */
+    public JidCache(final int capacity) {
+        int sets = 1;
+        while (sets * WAYS < capacity)
+            sets <<= 1;
+        this.table = new AtomicReferenceArray<>(sets * WAYS);
+        this.setMask = sets - 1;
+    }
+
+    public Jid get(final String jid) {
+        int h = jid.hashCode();
+        h ^= (h >>> 16);
+        final int set = (h & setMask) * WAYS;
+
+        final Entry first = table.get(set);
+        if (first != null && first.key.equals(jid)) {
+            hit(first);
+            return first.jid;
+        }
+        final Entry second = table.get(set + 1);
+        if (second != null && second.key.equals(jid)) {
+            hit(second);
+            return second.jid;
+        }
+
+        misses.increment();
+        final Jid ret = new Jid(jid);
+        final Entry entry = new Entry(jid, ret);
+        if (first == null) {
+            table.set(set, entry);
+        } else if (second == null) {
+            table.set(set + 1, entry);
+        } else {
+            evictions.increment();
+            // evict the unreferenced one, or the first if both were used, and start the clock over for the set
+            final int victim = first.referenced && !second.referenced ? set + 1 : set;
+            first.referenced = false;
+            second.referenced = false;
+            table.set(victim, entry);
+        }
+        return ret;
+    }
+
+    private void hit(final Entry entry) {
+        if (!entry.referenced)
+            entry.referenced = true;
+        hits.increment();
+    }
+
+    public int capacity() {
+        return table.length();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,84 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket latency histogram safe to record into from any thread without locking or allocating.
+ *
+ * Values are kept in microseconds, in log2 buckets each split into 4 linear sub-buckets, so any percentile is
+ * reported at most 25% high, from 1us up to about an hour (anything longer lands in the last bucket).
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 128;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter(), totalMicros = new StripedCounter();
+
+    static int bucketFor(final long micros) {
+        if (micros < 4)
+            return micros < 0 ? 0 : (int) micros;
+        final int exp = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int) (micros >> (exp - 2)) - 4;
+        return Math.min(BUCKETS - 1, 4 + (exp - 2) * 4 + sub);
+    }
+
+    static long upperBoundMicros(final int bucket) {
+        if (bucket < 4)
+            return bucket;
+        final int exp = (bucket - 4) / 4 + 2, sub = (bucket - 4) % 4;
+        return ((5L + sub) << (exp - 2)) - 1;
+    }
+
+    public void recordNanos(final long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        buckets.incrementAndGet(bucketFor(micros));
+        count.increment();
+        totalMicros.add(micros);
+    }
+
+    public void recordSince(final long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMicros() {
+        final long count = this.count.get();
+        return count == 0 ? 0 : totalMicros.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding that percentile, 0 if nothing was recorded
+     */
+    public long getPercentileMicros(final double percentile) {
+        long total = 0;
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i)
+            total += snapshot[i] = buckets.get(i);
+        if (total == 0)
+            return 0;
+        final long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return upperBoundMicros(i);
+        }
+        return upperBoundMicros(BUCKETS - 1);
+    }
+
+    void appendJson(final StringBuilder sb) {
+        sb.append("{\"count\":").append(getCount())
+                .append(",\"meanUs\":").append(getMeanMicros())
+                .append(",\"p50Us\":").append(getPercentileMicros(50))
+                .append(",\"p90Us\":").append(getPercentileMicros(90))
+                .append(",\"p99Us\":").append(getPercentileMicros(99))
+                .append(",\"maxUs\":").append(getPercentileMicros(100))
+                .append('}');
+    }
+}
@@ -0,0 +1,485 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Forwards pictures and other attachments of received MMS to XMPP as XEP-0066 out of band links.
+ *
+ * We aren't the default SMS app so we never see MMS arrive, instead a ContentObserver on the MMS provider triggers a
+ * scan for inbox messages newer than the last one we handled.  Every attachment is streamed from the provider straight
+ * to an HTTP PUT on the configured upload URL in BUFFER_SIZE chunks, never held whole in memory.  Images bigger than
+ * MAX_PLAIN_UPLOAD_BYTES are first decoded subsampled to at most MAX_DIMENSION and recompressed into a temporary file.
+ * Scans run on their own thread, the attachments of one MMS are uploaded in parallel on a small worker pool with a
+ * bounded queue, resizable at runtime, and when that is full the scan thread uploads itself.  So a burst of 12 MB
+ * camera pictures neither runs us out of memory nor ties up the binder or main threads.
+ *
+ * An MMS that failed to go through, or that the Listener couldn't take, is scanned again on a doubling timer, up to
+ * MAX_ATTEMPTS times.  An upload the server refused with a 4xx, or a part the provider can't open, won't get better by
+ * trying again, that MMS is given up on right away.  Either way a given up MMS is counted in Metrics and skipped, so it
+ * can't hold up the ones after it.
+ */
+public final class MediaPipeline {
+
+    public static final int DEFAULT_WORKERS = 1;
+
+    private static final Uri MMS_INBOX = Uri.parse("content://mms/inbox");
+    private static final Uri MMS_PART = Uri.parse("content://mms/part");
+    // PduHeaders.FROM
+    private static final int ADDRESS_TYPE_FROM = 137;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_PLAIN_UPLOAD_BYTES = 1024 * 1024;
+    private static final int MAX_DIMENSION = 2048;
+    private static final int JPEG_QUALITY = 80;
+    private static final int MAX_QUEUED = 16;
+    private static final String HIGH_WATER_KEY = "media_high_water";
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BASE_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Trying the same MMS again would fail the same way.
+     */
+    private static final class PermanentFailure extends IOException {
+        PermanentFailure(final String message) {
+            super(message);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the scanner thread once every attachment of one MMS was uploaded.
+         *
+         * @param caption text parts of the MMS, or null
+         * @param urls    one per attachment, with contentTypes at the same index
+         * @return false if it couldn't be sent on right now, the MMS is tried again later
+         */
+        boolean mediaReceived(String fromNumber, int subscriptionId, long timestampMillis, String caption,
+                           List<String> urls, List<String> contentTypes);
+    }
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final Listener listener;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadFactory threadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "MediaPipeline");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
+    private final ScheduledExecutorService scanner = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(DEFAULT_WORKERS, DEFAULT_WORKERS,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED), threadFactory,
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    private final AtomicBoolean scanQueued = new AtomicBoolean();
+    private final Runnable scanTask = new Runnable() {
+        @Override
+        public void run() {
+            scanQueued.set(false);
+            try {
+                scan();
+            } catch (Exception e) {
+                Log.e(Constants.TAG, "MediaPipeline: scan failed", e);
+            }
+        }
+    };
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            requestScan();
+        }
+    };
+    private final ContentObserver observer = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(final boolean selfChange) {
+            requestScan();
+        }
+    };
+
+    private volatile String uploadUrl = null;
+    // only touched by the scanner thread
+    private long highWater;
+    // the MMS that failed last and how often in a row, only touched by the scanner thread
+    private long failedId = -1;
+    private int failures = 0;
+
+    public MediaPipeline(final Context context, final SharedPreferences prefs, final Listener listener) {
+        this.context = context.getApplicationContext();
+        this.prefs = prefs;
+        this.listener = listener;
+        workers.allowCoreThreadTimeOut(true);
+        highWater = prefs.getLong(HIGH_WATER_KEY, -1);
+    }
+
+    /**
+     * @param uploadUrl base URL attachments are PUT under, null or empty to turn media forwarding off
+     */
+    public synchronized void configure(final String uploadUrl, final int workerCount) {
+        final boolean wasOn = this.uploadUrl != null;
+        this.uploadUrl = uploadUrl == null || uploadUrl.trim().isEmpty() ? null : uploadUrl.trim().replaceAll("/+$", "");
+        final int size = Math.max(1, workerCount);
+        // the core size may never exceed the maximum, even in between the two calls
+        if (size > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(size);
+            workers.setCorePoolSize(size);
+        } else {
+            workers.setCorePoolSize(size);
+            workers.setMaximumPoolSize(size);
+        }
+        final ContentResolver resolver = context.getContentResolver();
+        if (this.uploadUrl != null && !wasOn) {
+            resolver.registerContentObserver(Uri.parse("content://mms"), true, observer);
+            requestScan();
+        } else if (this.uploadUrl == null && wasOn) {
+            resolver.unregisterContentObserver(observer);
+        }
+    }
+
+    public void stop() {
+        configure(null, DEFAULT_WORKERS);
+    }
+
+    private void requestScan() {
+        if (scanQueued.compareAndSet(false, true))
+            scanner.execute(scanTask);
+    }
+
+    private void scan() {
+        final ContentResolver resolver = context.getContentResolver();
+        if (highWater < 0) {
+            // first run, only forward what arrives from now on
+            highWater = maxId(resolver);
+            prefs.edit().putLong(HIGH_WATER_KEY, highWater).apply();
+            return;
+        }
+        final Cursor mms = resolver.query(MMS_INBOX, null, "_id > ?", new String[]{String.valueOf(highWater)}, "_id ASC");
+        if (mms == null)
+            return;
+        try {
+            final int subIdColumn = mms.getColumnIndex("sub_id");
+            while (mms.moveToNext() && uploadUrl != null) {
+                final long id = mms.getLong(mms.getColumnIndexOrThrow("_id"));
+                final long date = mms.getLong(mms.getColumnIndexOrThrow("date")) * 1000;
+                final int subscriptionId = subIdColumn < 0 ? Route.ANY_SUBSCRIPTION : mms.getInt(subIdColumn);
+                try {
+                    if (!forward(resolver, id, date, subscriptionId) && retryLater(id, "not taken"))
+                        return;
+                } catch (PermanentFailure e) {
+                    Log.e(Constants.TAG, "MediaPipeline: giving up on mms " + id, e);
+                    Metrics.get().mediaDropped.increment();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "MediaPipeline: cannot forward mms " + id, e);
+                    // leave the high water mark here so the retry starts with it
+                    if (retryLater(id, e.toString()))
+                        return;
+                }
+                failedId = -1;
+                failures = 0;
+                highWater = id;
+                prefs.edit().putLong(HIGH_WATER_KEY, highWater).apply();
+            }
+        } finally {
+            mms.close();
+        }
+    }
+
+    /**
+     * Scans again after a backoff that doubles with every failure of mmsId in a row.
+     *
+     * @return false if mmsId failed MAX_ATTEMPTS times now, it's dropped instead
+     */
+    private boolean retryLater(final long mmsId, final String reason) {
+        if (mmsId != failedId) {
+            failedId = mmsId;
+            failures = 0;
+        }
+        if (++failures >= MAX_ATTEMPTS) {
+            Log.e(Constants.TAG, "MediaPipeline: giving up on mms " + mmsId + " after " + failures + " attempts: " + reason);
+            Metrics.get().mediaDropped.increment();
+            return false;
+        }
+        final long delay = RETRY_BASE_MS << (failures - 1);
+        Log.e(Constants.TAG, "MediaPipeline: mms " + mmsId + " " + reason + ", retrying in " + delay + "ms");
+        Metrics.get().mediaRetries.increment();
+        scanner.schedule(retryTask, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private static long maxId(final ContentResolver resolver) {
+        final Cursor cursor = resolver.query(MMS_INBOX, new String[]{"_id"}, null, null, "_id DESC");
+        if (cursor == null)
+            return 0;
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private boolean forward(final ContentResolver resolver, final long mmsId, final long timestampMillis,
+                         final int subscriptionId) throws IOException {
+        final String from = fromAddress(resolver, mmsId);
+        if (from == null)
+            return true;
+        final StringBuilder caption = new StringBuilder();
+        final List<Future<String>> uploads = new ArrayList<>();
+        final List<String> contentTypes = new ArrayList<>();
+        final Cursor parts = resolver.query(MMS_PART, new String[]{"_id", "ct", "text"}, "mid = ?",
+                new String[]{String.valueOf(mmsId)}, "seq ASC");
+        if (parts == null)
+            return true;
+        try {
+            while (parts.moveToNext()) {
+                final String contentType = parts.getString(1);
+                if (contentType == null || "application/smil".equals(contentType))
+                    continue;
+                if ("text/plain".equals(contentType)) {
+                    if (!parts.isNull(2)) {
+                        if (caption.length() > 0)
+                            caption.append('\n');
+                        caption.append(parts.getString(2));
+                    }
+                    continue;
+                }
+                final Uri part = Uri.withAppendedPath(MMS_PART, parts.getString(0));
+                uploads.add(workers.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return upload(resolver, part, contentType);
+                    }
+                }));
+                contentTypes.add(contentType);
+            }
+        } finally {
+            parts.close();
+        }
+        final List<String> urls = new ArrayList<>(uploads.size());
+        IOException failure = null;
+        // wait for all of them even after one failed, so nothing is still streaming once we retry
+        for (final Future<String> upload : uploads) {
+            try {
+                urls.add(upload.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!(failure instanceof PermanentFailure))
+                    failure = new IOException("interrupted");
+            } catch (ExecutionException e) {
+                // one part that can never go through dooms the whole MMS, whatever the others did
+                if (!(failure instanceof PermanentFailure))
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return urls.isEmpty() && caption.length() == 0 || listener.mediaReceived(from, subscriptionId, timestampMillis,
+                caption.length() == 0 ? null : caption.toString(), urls, contentTypes);
+    }
+
+    private static String fromAddress(final ContentResolver resolver, final long mmsId) {
+        final Cursor addr = resolver.query(Uri.parse("content://mms/" + mmsId + "/addr"), new String[]{"address"},
+                "type = " + ADDRESS_TYPE_FROM, null, null);
+        if (addr == null)
+            return null;
+        try {
+            return addr.moveToFirst() ? addr.getString(0) : null;
+        } finally {
+            addr.close();
+        }
+    }
+
+    /**
+     * @return URL the attachment can be fetched from
+     */
+    private String upload(final ContentResolver resolver, final Uri part, final String contentType) throws IOException {
+        File shrunk = null;
+        try {
+            long length = length(resolver, part);
+            String type = contentType;
+            if (contentType.startsWith("image/") && (length < 0 || length > MAX_PLAIN_UPLOAD_BYTES)) {
+                shrunk = shrink(resolver, part);
+                if (shrunk != null) {
+                    length = shrunk.length();
+                    type = "image/jpeg";
+                }
+            }
+            final String base = uploadUrl;
+            if (base == null)
+                throw new IOException("media forwarding turned off");
+            final String url = base + "/" + randomName() + extension(type);
+            final InputStream in;
+            try {
+                in = shrunk != null ? new FileInputStream(shrunk) : resolver.openInputStream(part);
+            } catch (FileNotFoundException e) {
+                throw new PermanentFailure("cannot open " + part + ": " + e);
+            }
+            if (in == null)
+                throw new PermanentFailure("cannot open " + part);
+            try {
+                put(url, in, length, type);
+            } finally {
+                in.close();
+            }
+            Metrics.get().mediaUploaded.increment();
+            return url;
+        } finally {
+            if (shrunk != null && !shrunk.delete())
+                Log.e(Constants.TAG, "MediaPipeline: cannot delete " + shrunk);
+        }
+    }
+
+    private static long length(final ContentResolver resolver, final Uri part) {
+        try {
+            final AssetFileDescriptor fd = resolver.openAssetFileDescriptor(part, "r");
+            if (fd == null)
+                return -1;
+            try {
+                return fd.getLength();
+            } finally {
+                fd.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Decodes the image subsampled so neither side exceeds MAX_DIMENSION and writes it out as JPEG.
+     *
+     * @return temporary file the caller has to delete, or null if it couldn't be decoded and should go up as is
+     */
+    private File shrink(final ContentResolver resolver, final Uri part) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = resolver.openInputStream(part);
+        if (in == null)
+            return null;
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / sampleSize > MAX_DIMENSION)
+            sampleSize *= 2;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        in = resolver.openInputStream(part);
+        if (in == null)
+            return null;
+        final Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (bitmap == null)
+            return null;
+        final File file = File.createTempFile("media", ".jpg", context.getCacheDir());
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            bitmap.recycle();
+        }
+        return file;
+    }
+
+    private static void put(final String url, final InputStream in, final long length, final String contentType) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType);
+            // stream it, HttpURLConnection buffers the whole body otherwise
+            if (length >= 0 && length <= Integer.MAX_VALUE)
+                connection.setFixedLengthStreamingMode((int) length);
+            else
+                connection.setChunkedStreamingMode(BUFFER_SIZE);
+            final OutputStream out = connection.getOutputStream();
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+            } finally {
+                out.close();
+            }
+            final int code = connection.getResponseCode();
+            if (isPermanent(code))
+                throw new PermanentFailure("upload to " + url + " refused with HTTP " + code);
+            if (code < 200 || code >= 300)
+                throw new IOException("upload to " + url + " failed with HTTP " + code);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * A 4xx means the server won't take this upload, too large, forbidden or whatever, except for timeouts and rate
+     * limiting.  5xx and everything else may well work later.
+     */
+    static boolean isPermanent(final int httpCode) {
+        return httpCode >= 400 && httpCode < 500 && httpCode != HttpURLConnection.HTTP_CLIENT_TIMEOUT && httpCode != 429;
+    }
+
+    private String randomName() {
+        final byte[] bytes = new byte[12];
+        random.nextBytes(bytes);
+        final StringBuilder sb = new StringBuilder(24);
+        for (final byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    private static String extension(final String contentType) {
+        final String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(contentType);
+        return extension == null ? "" : "." + extension;
+    }
+}
@@ -0,0 +1,175 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for both directions of the bridge, cheap enough to leave on in production.
+ *
+ * Inbound: SMS_RECEIVED broadcast -> outbox -> executeApiAsync -> MyCallback.onReturn.
+ * Outbound: pluginCallback.execute -> SmsSender queue -> SmsManager.
+ */
+public final class Metrics {
+
+    private static final Metrics instance = new Metrics();
+
+    public static Metrics get() {
+        return instance;
+    }
+
+    // XmppError ids we count individually, -1 (client side) up to this, anything else lands in the last slot
+    private static final int MAX_ERROR_ID = 30;
+
+    public final StripedCounter smsReceived = new StripedCounter(), broadcasts = new StripedCounter(),
+            apiCalls = new StripedCounter(), apiSuccess = new StripedCounter(), apiErrors = new StripedCounter(),
+            apiUserInteraction = new StripedCounter(), xmppMessages = new StripedCounter(),
+            smsQueued = new StripedCounter(), smsRejected = new StripedCounter(), smsSubmitted = new StripedCounter(),
+            smsSubmitFailed = new StripedCounter(), smsSentConfirmed = new StripedCounter(),
+            smsDelivered = new StripedCounter(), smsRetries = new StripedCounter(), smsFailed = new StripedCounter(),
+            deliveryTimeouts = new StripedCounter(), smsSegments = new StripedCounter(),
+            smsTransliterated = new StripedCounter(), segmentsSaved = new StripedCounter(),
+            mediaUploaded = new StripedCounter(), mediaRetries = new StripedCounter(),
+            mediaDropped = new StripedCounter(), smsCoalesced = new StripedCounter(),
+            coalescedSegmentsSaved = new StripedCounter(), smsBackfilled = new StripedCounter(),
+            smsDuplicates = new StripedCounter(), reconnects = new StripedCounter(),
+            smsThrottled = new StripedCounter(),
+            smsThrottledDropped = new StripedCounter(), floodDigests = new StripedCounter(),
+            wakeups = new StripedCounter(), wakeMessages = new StripedCounter();
+
+    // time spent in SMSReceiver.onReceive, on the main thread
+    public final LatencyHistogram receiveHandling = new LatencyHistogram();
+    // SMSReceiver.onReceive until InboundPipeline handled a text, queueing included
+    public final LatencyHistogram inboundProcessing = new LatencyHistogram();
+    // executeApiAsync until MyCallback.onReturn
+    public final LatencyHistogram apiLatency = new LatencyHistogram();
+    // SMS_RECEIVED broadcast until the XMPP client accepted the stanza
+    public final LatencyHistogram inboundDelivery = new LatencyHistogram();
+    // pluginCallback.execute until SmsManager accepted the text
+    public final LatencyHistogram outboundDelivery = new LatencyHistogram();
+    // pluginCallback.execute until the carrier reported every part delivered
+    public final LatencyHistogram deliveryReport = new LatencyHistogram();
+    // XMPP app connection lost until bound again
+    public final LatencyHistogram reconnectTime = new LatencyHistogram();
+    // BatchScheduler wakelock held per batch
+    public final LatencyHistogram wakeLockHold = new LatencyHistogram();
+
+    private final AtomicLongArray errorsById = new AtomicLongArray(MAX_ERROR_ID + 3);
+
+    private Metrics() {
+    }
+
+    public void apiError(final int errorId) {
+        apiErrors.increment();
+        errorsById.incrementAndGet(errorId < -1 || errorId > MAX_ERROR_ID ? errorsById.length() - 1 : errorId + 1);
+    }
+
+    public String toJson() {
+        final StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"timestampMillis\":").append(System.currentTimeMillis());
+        counter(sb, "broadcasts", broadcasts);
+        counter(sb, "smsReceived", smsReceived);
+        counter(sb, "apiCalls", apiCalls);
+        counter(sb, "apiSuccess", apiSuccess);
+        counter(sb, "apiErrors", apiErrors);
+        counter(sb, "apiUserInteraction", apiUserInteraction);
+        counter(sb, "xmppMessages", xmppMessages);
+        counter(sb, "smsQueued", smsQueued);
+        counter(sb, "smsRejected", smsRejected);
+        counter(sb, "smsSubmitted", smsSubmitted);
+        counter(sb, "smsSubmitFailed", smsSubmitFailed);
+        counter(sb, "smsSentConfirmed", smsSentConfirmed);
+        counter(sb, "smsDelivered", smsDelivered);
+        counter(sb, "smsRetries", smsRetries);
+        counter(sb, "smsFailed", smsFailed);
+        counter(sb, "deliveryTimeouts", deliveryTimeouts);
+        counter(sb, "smsSegments", smsSegments);
+        counter(sb, "smsTransliterated", smsTransliterated);
+        counter(sb, "segmentsSaved", segmentsSaved);
+        counter(sb, "mediaUploaded", mediaUploaded);
+        counter(sb, "mediaRetries", mediaRetries);
+        counter(sb, "mediaDropped", mediaDropped);
+        counter(sb, "smsCoalesced", smsCoalesced);
+        counter(sb, "coalescedSegmentsSaved", coalescedSegmentsSaved);
+        counter(sb, "smsBackfilled", smsBackfilled);
+        counter(sb, "smsDuplicates", smsDuplicates);
+        counter(sb, "reconnects", reconnects);
+        counter(sb, "smsThrottled", smsThrottled);
+        counter(sb, "smsThrottledDropped", smsThrottledDropped);
+        counter(sb, "floodDigests", floodDigests);
+        counter(sb, "wakeups", wakeups);
+        counter(sb, "wakeMessages", wakeMessages);
+        final long messages = wakeMessages.get();
+        sb.append(",\"wakeupsPerMessage\":").append(messages == 0 ? 0 : (double) wakeups.get() / messages);
+        sb.append(",\"inboundQueueDepth\":").append(InboundPipeline.getInstance().getQueueDepth());
+        sb.append(",\"inboundMaxQueueDepth\":").append(InboundPipeline.getInstance().getMaxQueueDepth());
+        sb.append(",\"smsInFlight\":").append(DeliveryTracker.getInstance().getInFlight());
+        sb.append(",\"smsQueueDepth\":").append(SmsSender.getInstance().getQueueDepth());
+        sb.append(",\"smsMaxQueueDepth\":").append(SmsSender.getInstance().getMaxQueueDepth());
+        sb.append(",\"sims\":");
+        SmsSender.getInstance().appendLanesJson(sb);
+        sb.append(",\"gatewaySwitches\":").append(GatewaySelector.getInstance().getSwitches());
+        sb.append(",\"gateways\":");
+        GatewaySelector.getInstance().appendJson(sb, System.nanoTime());
+        sb.append(",\"apiErrorsById\":{");
+        boolean first = true;
+        for (int i = 0; i < errorsById.length(); ++i) {
+            final long count = errorsById.get(i);
+            if (count == 0)
+                continue;
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append('"').append(i == errorsById.length() - 1 ? "other" : String.valueOf(i - 1)).append("\":").append(count);
+        }
+        sb.append('}');
+        histogram(sb, "receiveHandling", receiveHandling);
+        histogram(sb, "inboundProcessing", inboundProcessing);
+        histogram(sb, "apiLatency", apiLatency);
+        histogram(sb, "inboundDelivery", inboundDelivery);
+        histogram(sb, "outboundDelivery", outboundDelivery);
+        histogram(sb, "deliveryReport", deliveryReport);
+        histogram(sb, "reconnectTime", reconnectTime);
+        histogram(sb, "wakeLockHold", wakeLockHold);
+        return sb.append('}').toString();
+    }
+
+    private static void counter(final StringBuilder sb, final String name, final StripedCounter counter) {
+        sb.append(",\"").append(name).append("\":").append(counter.get());
+    }
+
+    private static void histogram(final StringBuilder sb, final String name, final LatencyHistogram histogram) {
+        sb.append(",\"").append(name).append("\":");
+        histogram.appendJson(sb);
+    }
+
+    /**
+     * Atomically replaces file with a snapshot, by writing a temporary file next to it and renaming it over.
+     */
+    public void writeSnapshot(final File file) {
+        final File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(toJson().getBytes("UTF-8"));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file))
+                Log.e(Constants.TAG, "cannot rename metrics snapshot to " + file);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "cannot write metrics snapshot", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // already failed
+                }
+            }
+        }
+    }
+}
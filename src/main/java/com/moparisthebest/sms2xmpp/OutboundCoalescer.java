@@ -0,0 +1,229 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges XMPP messages sent to the same number in quick succession into one text.
+ *
+ * People type several short lines in a row, each would be its own carrier submission.  With a window > 0 a message is
+ * held until nothing more was sent to that number for windowMillis, or at most MAX_HOLD_WINDOWS windows after the
+ * first, and every following message is joined on with a newline as long as the result stays within maxSegments and
+ * takes fewer segments than sending them apart.  A message that doesn't fit flushes what is held and starts over.
+ * Every message keeps its own id, so each still gets its delivery receipt.  With a window of 0 nothing is held.
+ *
+ * Messages are only merged if they came through the same route, receipts and errors go back the way the first came.
+ * Flushed texts are handed, in order and while still holding the lock, to one submitter thread that queues them with
+ * SmsSender, so one that was replaced can't reach SmsSender after the next, and a full SmsSender lane only holds up
+ * that thread rather than every binder thread and the timer.  Messages without a body have nothing to text.
+ */
+public final class OutboundCoalescer {
+
+    public static final int DEFAULT_MAX_SEGMENTS = 3;
+
+    private static final int MAX_HOLD_WINDOWS = 4;
+
+    private static final class Key {
+        final Route route;
+        final String toNumber;
+
+        Key(final Route route, final String toNumber) {
+            this.route = route;
+            this.toNumber = toNumber;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return route.equals(key.route) && toNumber.equals(key.toNumber);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * route.hashCode() + toNumber.hashCode();
+        }
+    }
+
+    private static final class Pending {
+        final Route route;
+        final String toNumber;
+        final StringBuilder body = new StringBuilder();
+        final List<String> messageIds = new ArrayList<>();
+        final long firstNanos = System.nanoTime();
+        int messages = 0, separateSegments = 0;
+        ScheduledFuture<?> flush = null;
+
+        Pending(final Route route, final String toNumber) {
+            this.route = route;
+            this.toNumber = toNumber;
+        }
+    }
+
+    private static final OutboundCoalescer instance = new OutboundCoalescer();
+
+    public static OutboundCoalescer getInstance() {
+        return instance;
+    }
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "OutboundCoalescer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // queues flushed texts with SmsSender, which may block, in the order they were flushed
+    private final ExecutorService submitter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "OutboundCoalescer submitter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // guarded by this
+    private final Map<Key, Pending> pending = new HashMap<>();
+
+    private volatile long windowMillis = 0;
+    private volatile int maxSegments = DEFAULT_MAX_SEGMENTS;
+
+    private OutboundCoalescer() {
+    }
+
+    public void configure(final long windowMillis, final int maxSegments) {
+        this.windowMillis = windowMillis;
+        this.maxSegments = Math.max(1, maxSegments);
+        if (windowMillis <= 0)
+            flushAll();
+    }
+
+    /**
+     * @param messageId stanza id of the XMPP message, or null
+     * @return false if the text could not be queued, only possible when it wasn't held
+     */
+    public boolean send(final Route route, final String toNumber, final String body, final String messageId) {
+        if (body == null)
+            return true; // chat states and receipts, nothing to text
+        final long windowMillis = this.windowMillis;
+        if (windowMillis <= 0)
+            return submit(route, toNumber, body, messageId == null ? Collections.<String>emptyList() : Collections.singletonList(messageId), false);
+
+        final SmsEncoder encoder = SmsSender.getInstance().getEncoder();
+        final int segments = encoder.encode(toNumber, body).segments;
+        final Key key = new Key(route, toNumber);
+        synchronized (this) {
+            Pending held = pending.get(key);
+            if (held != null) {
+                final int merged = encoder.encode(toNumber, held.body + "\n" + body).segments;
+                if (merged > maxSegments || merged >= held.separateSegments + segments) {
+                    // doesn't pay off, send what we have and start over with this one
+                    cancel(held);
+                    pending.remove(key);
+                    flush(held);
+                    held = null;
+                }
+            }
+            if (held == null) {
+                held = new Pending(route, toNumber);
+                pending.put(key, held);
+                // ends in flush, the batch stays open while texts are held
+                BatchScheduler.getInstance().begin(0);
+            } else {
+                held.body.append('\n');
+            }
+            held.body.append(body);
+            if (messageId != null)
+                held.messageIds.add(messageId);
+            ++held.messages;
+            held.separateSegments += segments;
+            cancel(held);
+            final long heldNanos = System.nanoTime() - held.firstNanos;
+            final long delay = Math.max(0, Math.min(windowMillis,
+                    windowMillis * MAX_HOLD_WINDOWS - TimeUnit.NANOSECONDS.toMillis(heldNanos)));
+            held.flush = timer.schedule(flushTask(key, held), delay, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private Runnable flushTask(final Key key, final Pending held) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (OutboundCoalescer.this) {
+                    if (pending.get(key) != held)
+                        return; // flushed early
+                    pending.remove(key);
+                    flush(held);
+                }
+            }
+        };
+    }
+
+    private static void cancel(final Pending held) {
+        if (held.flush != null) {
+            held.flush.cancel(false);
+            held.flush = null;
+        }
+    }
+
+    public synchronized void flushAll() {
+        for (final Pending held : pending.values()) {
+            cancel(held);
+            flush(held);
+        }
+        pending.clear();
+    }
+
+    // guarded by this, only queues held with the submitter
+    private void flush(final Pending held) {
+        submitter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String body = held.body.toString();
+                if (held.messages > 1) {
+                    final int merged = SmsSender.getInstance().getEncoder().encode(held.toNumber, body).segments;
+                    Metrics.get().smsCoalesced.add(held.messages - 1);
+                    Metrics.get().coalescedSegmentsSaved.add(Math.max(0, held.separateSegments - merged));
+                }
+                try {
+                    if (!submit(held.route, held.toNumber, body, held.messageIds, true))
+                        Log.e(Constants.TAG, "OutboundCoalescer: send queue full, dropped " + held.messages + " messages to " + held.toNumber);
+                } finally {
+                    BatchScheduler.getInstance().end();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param held true if the XMPP client was already told the message was accepted, so a failure has to reach it
+     *             as an error message instead
+     */
+    private static boolean submit(final Route route, final String toNumber, final String body,
+                                  final List<String> messageIds, final boolean held) {
+        final int requestId = DeliveryTracker.getInstance().track(route, toNumber, body, messageIds);
+        if (SMSReceiver.sendSms(toNumber, body, route.subscriptionId, requestId))
+            return true;
+        if (held)
+            DeliveryTracker.getInstance().fail(requestId, "send queue full");
+        else
+            DeliveryTracker.getInstance().forget(requestId);
+        return false;
+    }
+}
@@ -0,0 +1,282 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of received texts that haven't been accepted by the XMPP client yet.
+ *
+ * Texts are appended as soon as they are received, whether or not SMSService is running or bound, and read back in
+ * order by the drain.  Only one batch is ever in flight: read() hands out pending records and ack() marks them done
+ * once the XMPP client accepted them, while rewind() puts them back after a failure.  read() skips texts the Acceptor
+ * refuses, those of an account that isn't connected, and leaves them pending for a later read, so one account can't
+ * hold up the others while each still gets its texts in order.  The committed position, everything before it done,
+ * lives in a separate 8 byte file and only moves past a done record once every record before it is done too, so a
+ * crash while an account is away repeats what was delivered after its texts, never loses anything.  Once everything
+ * is committed both files are truncated, so the log only ever holds what is still pending.  Which records are after
+ * the committed position, where, for which SIM and in what state is kept in memory, so skipping costs no reads.
+ *
+ * Record layout: int payload length, int CRC32 of payload, then the payload: long timestamp, long received time,
+ * int subscription id, short from length, from (UTF-8), int body length, body (UTF-8).  A torn or corrupt tail is dropped on open.
+ */
+public final class Outbox {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 8;
+    // fsync after this many unsynced records, or FORCE_DELAY_MS after the first one, whichever comes first
+    private static final int FORCE_BATCH = 32;
+    private static final long FORCE_DELAY_MS = 100;
+
+    // minimum payload length, everything but the strings
+    private static final int FIXED_SIZE = 8 + 8 + 4 + 2 + 4;
+
+    public interface Acceptor {
+        /**
+         * Called at most once per subscription id and read(), so everything from one SIM is taken or left together.
+         *
+         * @return false to leave texts received on subscriptionId for a later read()
+         */
+        boolean accept(int subscriptionId);
+    }
+
+    private static final int PENDING = 0, IN_FLIGHT = 1, DONE = 2;
+
+    // a record after the committed position
+    private static final class Entry {
+        final long position;
+        final int subscriptionId;
+        int state = PENDING;
+
+        Entry(final long position, final int subscriptionId) {
+            this.position = position;
+            this.subscriptionId = subscriptionId;
+        }
+    }
+
+    private static Outbox instance = null;
+
+    public static synchronized Outbox getInstance(final Context context) throws IOException {
+        if (instance == null)
+            instance = new Outbox(context.getApplicationContext().getFilesDir());
+        return instance;
+    }
+
+    private final FileChannel log, ack;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(8);
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final ScheduledExecutorService forcer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "Outbox");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Runnable forceTask = new Runnable() {
+        @Override
+        public void run() {
+            force();
+        }
+    };
+
+    // every record from the committed position to end, in log order
+    private final List<Entry> entries = new ArrayList<>();
+    private long committed, end;
+    private int unforced = 0;
+    private boolean forceScheduled = false;
+
+    public Outbox(final File dir) throws IOException {
+        log = new RandomAccessFile(new File(dir, "outbox.log"), "rw").getChannel();
+        ack = new RandomAccessFile(new File(dir, "outbox.ack"), "rw").getChannel();
+        if (ack.size() >= 8) {
+            ackBuffer.clear();
+            ack.read(ackBuffer, 0);
+            committed = ackBuffer.getLong(0);
+        }
+        if (committed < 0 || committed > log.size())
+            committed = 0;
+        end = recover();
+    }
+
+    /**
+     * @return the end of the last intact record, truncating anything after it
+     */
+    private long recover() throws IOException {
+        long position = committed;
+        final long size = log.size();
+        while (position + HEADER_SIZE <= size) {
+            final ByteBuffer record = readRecord(position, size);
+            if (record == null)
+                break;
+            entries.add(new Entry(position, record.getInt(16)));
+            position += HEADER_SIZE + record.capacity();
+        }
+        if (position != size) {
+            Log.e(Constants.TAG, "Outbox: dropping " + (size - position) + " corrupt bytes at " + position);
+            log.truncate(position);
+        }
+        return position;
+    }
+
+    private ByteBuffer readRecord(final long position, final long limit) throws IOException {
+        header.clear();
+        if (readFully(header, position) < HEADER_SIZE)
+            return null;
+        final int length = header.getInt(0);
+        if (length < FIXED_SIZE || position + HEADER_SIZE + length > limit)
+            return null;
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        if (readFully(record, position + HEADER_SIZE) < length)
+            return null;
+        crc.reset();
+        crc.update(record.array(), 0, length);
+        if ((int) crc.getValue() != header.getInt(4))
+            return null;
+        record.flip();
+        return record;
+    }
+
+    private int readFully(final ByteBuffer buffer, final long position) throws IOException {
+        int total = 0, read;
+        while (buffer.hasRemaining() && (read = log.read(buffer, position + total)) > 0)
+            total += read;
+        return total;
+    }
+
+    public synchronized void append(final List<InboundSms> texts) throws IOException {
+        for (final InboundSms sms : texts) {
+            final byte[] from = sms.fromNumber.getBytes(UTF_8), body = sms.body.getBytes(UTF_8);
+            final int length = FIXED_SIZE + from.length + body.length;
+            final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+            record.position(HEADER_SIZE);
+            record.putLong(sms.timestampMillis).putLong(sms.receivedMillis).putInt(sms.subscriptionId).putShort((short) from.length).put(from).putInt(body.length).put(body);
+            crc.reset();
+            crc.update(record.array(), HEADER_SIZE, length);
+            record.putInt(0, length).putInt(4, (int) crc.getValue());
+            record.flip();
+            final long position = end;
+            while (record.hasRemaining())
+                end += log.write(record, end);
+            entries.add(new Entry(position, sms.subscriptionId));
+        }
+        unforced += texts.size();
+        if (unforced >= FORCE_BATCH) {
+            force();
+        } else if (!forceScheduled) {
+            forceScheduled = true;
+            forcer.schedule(forceTask, FORCE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void force() {
+        forceScheduled = false;
+        if (unforced == 0)
+            return;
+        try {
+            log.force(false);
+            unforced = 0;
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Outbox: force failed", e);
+        }
+    }
+
+    /**
+     * Hands out up to max pending texts in the order they were appended, skipping those acceptor refuses.
+     */
+    public synchronized List<InboundSms> read(final int max, final Acceptor acceptor) throws IOException {
+        final List<InboundSms> texts = new ArrayList<>();
+        // subscription id to whether acceptor took it
+        final Map<Integer, Boolean> accepted = new HashMap<>();
+        for (int i = 0; i < entries.size() && texts.size() < max; ++i) {
+            final Entry entry = entries.get(i);
+            if (entry.state != PENDING)
+                continue;
+            Boolean accept = accepted.get(entry.subscriptionId);
+            if (accept == null)
+                accepted.put(entry.subscriptionId, accept = acceptor.accept(entry.subscriptionId));
+            if (!accept)
+                continue;
+            final ByteBuffer record = readRecord(entry.position, end);
+            if (record == null)
+                throw new IOException("corrupt outbox record at " + entry.position);
+            final long timestamp = record.getLong();
+            final long received = record.getLong();
+            final int subscriptionId = record.getInt();
+            final byte[] from = new byte[record.getShort() & 0xFFFF];
+            record.get(from);
+            final byte[] body = new byte[record.getInt()];
+            record.get(body);
+            texts.add(new InboundSms(new String(from, UTF_8), new String(body, UTF_8), timestamp, subscriptionId, received));
+            entry.state = IN_FLIGHT;
+        }
+        return texts;
+    }
+
+    /**
+     * Marks everything handed out by read() so far done, it will never be read again, and commits up to the first
+     * record that isn't.
+     */
+    public synchronized void ack() throws IOException {
+        for (final Entry entry : entries)
+            if (entry.state == IN_FLIGHT)
+                entry.state = DONE;
+        int done = 0;
+        while (done < entries.size() && entries.get(done).state == DONE)
+            ++done;
+        entries.subList(0, done).clear();
+        committed = entries.isEmpty() ? end : entries.get(0).position;
+        if (committed == end) {
+            // everything delivered, start over with empty files
+            log.truncate(0);
+            committed = end = 0;
+            unforced = 0;
+        }
+        ackBuffer.clear();
+        ackBuffer.putLong(0, committed);
+        ack.write(ackBuffer, 0);
+        ack.force(false);
+    }
+
+    /**
+     * Puts everything handed out by read() since the last ack() back, to be read again.
+     */
+    public synchronized void rewind() {
+        for (final Entry entry : entries)
+            if (entry.state == IN_FLIGHT)
+                entry.state = PENDING;
+    }
+
+    /**
+     * @return true if there's nothing left to read()
+     */
+    public synchronized boolean isEmpty() {
+        for (final Entry entry : entries)
+            if (entry.state == PENDING)
+                return false;
+        return true;
+    }
+
+    /**
+     * @return bytes appended but not yet committed
+     */
+    public synchronized long getPendingBytes() {
+        return end - committed;
+    }
+}
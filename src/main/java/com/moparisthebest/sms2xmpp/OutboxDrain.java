@@ -0,0 +1,176 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.util.Log;
+
+import org.openintents.xmpp.util.XmppServiceApi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends received texts from the Outbox on to the XMPP accounts of the routes they came in on.
+ *
+ * Only one batch from the outbox is ever in flight, possibly split over several routes with one call each.  It's acked
+ * once every part succeeded, or rewound as a whole if any failed.  Texts whose route isn't registered with its XMPP app
+ * yet are left for later without holding up the other routes.  Everything here is guarded by the Host's lock, so the
+ * routes can't change halfway through picking a batch.
+ */
+final class OutboxDrain {
+
+    interface Host {
+        /**
+         * Called with the lock held.
+         *
+         * @return the route texts received on subscriptionId go to, null if it isn't registered with its XMPP app
+         */
+        Route registeredRoute(int subscriptionId);
+
+        /**
+         * Called with the lock held.
+         */
+        Transport transport(Route route);
+
+        /**
+         * @return route with the gateway domain to write its stanzas from
+         */
+        Route resolve(Route route);
+
+        /**
+         * @return callback for the part of batch generation sent to route, which has to end up in drained
+         */
+        XmppServiceApi.IXmppCallback callback(Route route, int generation);
+
+        /**
+         * A batch failed and was put back, called with the lock held.
+         */
+        void retryLater();
+    }
+
+    private final Object lock;
+    private final Outbox outbox;
+    private final ContactNames names;
+    private final Host host;
+
+    // generation lets us ignore results from connections we already tore down
+    private boolean draining = false, failed = false;
+    private int generation = 0, pending = 0;
+    private List<InboundSms> batch = null;
+
+    OutboxDrain(final Object lock, final Outbox outbox, final ContactNames names, final Host host) {
+        this.lock = lock;
+        this.outbox = outbox;
+        this.names = names;
+        this.host = host;
+    }
+
+    /**
+     * Sends the next batch from the outbox if nothing is in flight.
+     */
+    void drain() {
+        final Map<Route, List<InboundSms>> byRoute = new LinkedHashMap<>();
+        final Map<Route, Transport> transports = new HashMap<>();
+        final int generation;
+        synchronized (lock) {
+            if (draining)
+                return;
+            final Map<Integer, Route> accepted = new HashMap<>();
+            final List<InboundSms> batch;
+            try {
+                batch = outbox.read(InboundBatcher.MAX_BATCH_SIZE, new Outbox.Acceptor() {
+                    @Override
+                    public boolean accept(final int subscriptionId) {
+                        final Route route = host.registeredRoute(subscriptionId);
+                        accepted.put(subscriptionId, route);
+                        return route != null;
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "cannot read outbox", e);
+                return;
+            }
+            if (batch.isEmpty())
+                return;
+            for (final InboundSms sms : batch) {
+                final Route route = accepted.get(sms.subscriptionId);
+                List<InboundSms> texts = byRoute.get(route);
+                if (texts == null) {
+                    byRoute.put(route, texts = new ArrayList<>());
+                    transports.put(route, host.transport(route));
+                }
+                texts.add(sms);
+            }
+            draining = true;
+            // ends in drained or abort
+            BatchScheduler.getInstance().begin(batch.size());
+            failed = false;
+            this.batch = batch;
+            pending = byRoute.size();
+            generation = this.generation;
+        }
+
+        for (final Map.Entry<Route, List<InboundSms>> entry : byRoute.entrySet()) {
+            final Route route = host.resolve(entry.getKey());
+            final StanzaWriter writer = StanzaWriter.get(route);
+            for (final InboundSms sms : entry.getValue())
+                writer.forwardedMessage(sms.fromNumber, route.gatewayDomain, route.accountJid, sms.body,
+                        names.lookup(sms.fromNumber), sms.timestampMillis);
+            final String xml = writer.toString();
+            // before the callback is constructed, so its API_CALL follows
+            TraceRecorder.record(TraceFormat.STANZA_SENT, xml.length(), 0);
+            transports.get(entry.getKey()).send(route, xml, host.callback(route, generation));
+        }
+    }
+
+    void drained(final int generation, final boolean success) {
+        boolean next = false;
+        synchronized (lock) {
+            if (!draining || generation != this.generation)
+                return;
+            failed |= !success;
+            if (--pending > 0)
+                return;
+            draining = false;
+            try {
+                if (!failed) {
+                    outbox.ack();
+                    final long now = System.currentTimeMillis();
+                    for (final InboundSms sms : batch)
+                        Metrics.get().inboundDelivery.recordNanos(TimeUnit.MILLISECONDS.toNanos(now - sms.receivedMillis));
+                    next = true;
+                } else {
+                    // try again later, parts that did get through will repeat
+                    outbox.rewind();
+                    host.retryLater();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "cannot ack outbox", e);
+            }
+        }
+        // the next batch starts before this one lets go of the wakelock
+        try {
+            if (next)
+                drain();
+        } finally {
+            BatchScheduler.getInstance().end();
+        }
+    }
+
+    /**
+     * Puts the batch in flight back, results for it may never come.
+     */
+    void abort() {
+        synchronized (lock) {
+            if (draining) {
+                draining = false;
+                ++generation;
+                outbox.rewind();
+                BatchScheduler.getInstance().end();
+            }
+        }
+    }
+}
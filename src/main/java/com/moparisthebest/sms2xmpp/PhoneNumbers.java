@@ -0,0 +1,124 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Build;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns whatever address the radio or an XMPP client hands us into one canonical form, E.164 where possible, so the
+ * same contact always maps to the same JID.
+ *
+ * 5551234567, (555) 123-4567, 15551234567 and +15551234567 all become +15551234567 with a US SIM.  Short codes and
+ * alphanumeric senders can't be expressed in E.164 and are only stripped of formatting.  Results are memoized in a
+ * small LRU map keyed by the raw address, texts mostly come from the same handful of people.
+ */
+public final class PhoneNumbers {
+
+    private static final int CACHE_SIZE = 256;
+    // anything shorter is a short code, never prefixed with a country code
+    private static final int MIN_SUBSCRIBER_DIGITS = 7;
+
+    private static PhoneNumbers instance = null;
+
+    public static synchronized PhoneNumbers getInstance(final Context context) {
+        if (instance == null)
+            instance = new PhoneNumbers(countryIso(context));
+        return instance;
+    }
+
+    private static String countryIso(final Context context) {
+        final TelephonyManager telephony = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        String iso = telephony == null ? null : telephony.getSimCountryIso();
+        if (iso == null || iso.isEmpty())
+            iso = telephony == null ? null : telephony.getNetworkCountryIso();
+        if (iso == null || iso.isEmpty())
+            iso = Locale.getDefault().getCountry();
+        return iso.toUpperCase(Locale.US);
+    }
+
+    private final String countryIso;
+    private final boolean nanp;
+    // guarded by itself
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public PhoneNumbers(final String countryIso) {
+        this.countryIso = countryIso;
+        this.nanp = "US".equals(countryIso) || "CA".equals(countryIso);
+    }
+
+    /**
+     * @return raw in canonical form, null only if raw is null
+     */
+    public String normalize(final String raw) {
+        if (raw == null)
+            return null;
+        synchronized (cache) {
+            final String cached = cache.get(raw);
+            if (cached != null)
+                return cached;
+        }
+        final String normalized = compute(raw);
+        synchronized (cache) {
+            cache.put(raw, normalized);
+        }
+        return normalized;
+    }
+
+    /**
+     * Like normalize, but leaves the memo alone, for bulk loads like the whole address book that would evict every
+     * address texts are actually coming from.
+     */
+    public String normalizeUncached(final String raw) {
+        return raw == null ? null : compute(raw);
+    }
+
+    @SuppressLint("NewApi")
+    private String compute(final String raw) {
+        final String trimmed = raw.trim();
+        final StringBuilder digits = new StringBuilder(trimmed.length());
+        boolean plus = false;
+        for (int i = 0; i < trimmed.length(); ++i) {
+            final char c = trimmed.charAt(i);
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+            else if (c == '+' && digits.length() == 0)
+                plus = true;
+            else if (c != ' ' && c != '-' && c != '(' && c != ')' && c != '.' && c != '/')
+                return trimmed; // alphanumeric sender, leave it be
+        }
+        if (digits.length() == 0)
+            return trimmed;
+        if (plus)
+            return "+" + digits;
+        if (digits.length() < MIN_SUBSCRIBER_DIGITS)
+            return digits.toString();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !countryIso.isEmpty()) {
+            final String e164 = PhoneNumberUtils.formatNumberToE164(digits.toString(), countryIso);
+            if (e164 != null)
+                return e164;
+        }
+        // what formatNumberToE164 would have done for the common cases
+        if (nanp) {
+            if (digits.length() == 10)
+                return "+1" + digits;
+            if (digits.length() == 11 && digits.charAt(0) == '1')
+                return "+" + digits;
+            if (digits.length() > 3 && digits.indexOf("011") == 0)
+                return "+" + digits.substring(3);
+        } else if (digits.length() > 2 && digits.indexOf("00") == 0) {
+            return "+" + digits.substring(2);
+        }
+        return digits.toString();
+    }
+}
@@ -0,0 +1,123 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.util.List;
+
+/**
+ * Ties a SIM to the XMPP account texts for it are bridged to: texts received on subscriptionId are forwarded to
+ * accountJid through the XMPP app providerPackage, appearing to come from number@gatewayDomain, and messages that
+ * account sends to number@gatewayDomain go out over that SIM.
+ *
+ * A route without a gateway domain of its own is an auto gateway route, it uses whichever of the configured gateway
+ * domains GatewaySelector picks, see withGateway.  Its gatewayDomain is only the first configured one and isn't part
+ * of its identity, so editing the gateway list doesn't make it a different route.
+ */
+public final class Route {
+
+    public static final int ANY_SUBSCRIPTION = -1;
+
+    public final int subscriptionId;
+    // line number of the SIM, only used to look up subscriptionId if that wasn't given
+    public final String phoneNumber;
+    public final String providerPackage, accountJid, gatewayDomain;
+    private final boolean autoGateway;
+
+    /**
+     * @param gatewayDomain null or empty for an auto gateway route
+     */
+    public Route(final int subscriptionId, final String phoneNumber, final String providerPackage,
+                 final String accountJid, final String gatewayDomain) {
+        this(subscriptionId, phoneNumber, providerPackage, accountJid,
+                gatewayDomain == null || gatewayDomain.isEmpty() ? SMSService.ECHO_SERVER : gatewayDomain,
+                gatewayDomain == null || gatewayDomain.isEmpty());
+    }
+
+    private Route(final int subscriptionId, final String phoneNumber, final String providerPackage,
+                  final String accountJid, final String gatewayDomain, final boolean autoGateway) {
+        if (providerPackage == null || providerPackage.isEmpty() || accountJid == null || accountJid.isEmpty())
+            throw new IllegalArgumentException("route needs an XMPP app and account");
+        this.subscriptionId = subscriptionId;
+        this.phoneNumber = phoneNumber == null || phoneNumber.isEmpty() ? null : phoneNumber;
+        this.providerPackage = providerPackage;
+        this.accountJid = accountJid;
+        this.gatewayDomain = gatewayDomain;
+        this.autoGateway = autoGateway;
+        if (autoGateway && isDirect())
+            throw new IllegalArgumentException("component route needs its gatewayDomain");
+    }
+
+    public boolean isAutoGateway() {
+        return autoGateway;
+    }
+
+    /**
+     * @return this route through gatewayDomain, what an auto gateway route sends through once a domain is picked
+     */
+    public Route withGateway(final String gatewayDomain) {
+        return new Route(subscriptionId, phoneNumber, providerPackage, accountJid, gatewayDomain, false);
+    }
+
+    /**
+     * @return copy whose gatewayDomain is the first of gatewayDomains if it's an auto gateway route
+     */
+    Route withDefaultGateway(final List<String> gatewayDomains) {
+        return !autoGateway || gatewayDomains.isEmpty() ? this
+                : new Route(subscriptionId, phoneNumber, providerPackage, accountJid, gatewayDomains.get(0), true);
+    }
+
+    /**
+     * Whether this route goes straight to our own server through ComponentTransport, whose domain gatewayDomain then
+     * has to be, rather than through an XMPP app and xmpp-echo-self.
+     */
+    public boolean isDirect() {
+        return ComponentTransport.PROVIDER.equals(providerPackage);
+    }
+
+    public Route withSubscriptionId(final int subscriptionId) {
+        return new Route(subscriptionId, phoneNumber, providerPackage, accountJid, gatewayDomain, autoGateway);
+    }
+
+    /**
+     * Parses "subscriptionId,phoneNumber,providerPackage,accountJid,gatewayDomain", where subscriptionId, phoneNumber
+     * and gatewayDomain may be left empty, the latter for an auto gateway route.
+     */
+    public static Route parse(final String line) {
+        final String[] fields = line.split(",", -1);
+        if (fields.length != 5)
+            throw new IllegalArgumentException("expected 5 comma separated fields: '" + line + "'");
+        final String subscription = fields[0].trim();
+        return new Route(subscription.isEmpty() ? ANY_SUBSCRIPTION : Integer.parseInt(subscription),
+                fields[1].trim(), fields[2].trim(), fields[3].trim(), fields[4].trim());
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final Route route = (Route) o;
+
+        if (subscriptionId != route.subscriptionId) return false;
+        if (phoneNumber != null ? !phoneNumber.equals(route.phoneNumber) : route.phoneNumber != null) return false;
+        if (!providerPackage.equals(route.providerPackage)) return false;
+        if (!accountJid.equals(route.accountJid)) return false;
+        if (autoGateway != route.autoGateway) return false;
+        // an auto gateway route is the same route whichever domain it starts out with
+        return autoGateway || gatewayDomain.equals(route.gatewayDomain);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = subscriptionId;
+        result = 31 * result + (phoneNumber != null ? phoneNumber.hashCode() : 0);
+        result = 31 * result + providerPackage.hashCode();
+        result = 31 * result + accountJid.hashCode();
+        result = 31 * result + (autoGateway ? 1 : gatewayDomain.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return (subscriptionId == ANY_SUBSCRIPTION ? "" : subscriptionId) + "," + (phoneNumber == null ? "" : phoneNumber)
+                + "," + providerPackage + "," + accountJid + "," + (autoGateway ? "" : gatewayDomain);
+    }
+}
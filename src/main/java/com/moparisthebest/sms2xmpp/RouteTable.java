@@ -0,0 +1,186 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.moparisthebest.sms2xmpp.Constants.ACCOUNT_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.GATEWAYS_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.PROVIDER_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.ROUTES_KEY;
+
+/**
+ * Immutable set of Routes with the lookups the bridge needs on every message.
+ *
+ * The first route is the default, used for texts from SIMs no route claims.  Outgoing messages are matched on the
+ * gateway domain they were addressed to with a single hash lookup, the account check after that is over the
+ * (almost always 1) routes sharing that domain.  Auto gateway routes are found under every configured gateway domain.
+ */
+public final class RouteTable {
+
+    // before EMPTY, which needs it
+    private static final List<String> DEFAULT_GATEWAYS = Collections.singletonList(SMSService.ECHO_SERVER);
+
+    public static final RouteTable EMPTY = new RouteTable(Collections.<Route>emptyList());
+
+    private static final Route[] NO_ROUTES = new Route[0];
+
+    private final List<Route> routes;
+    private final List<String> gateways;
+    private final SparseArray<Route> bySubscription = new SparseArray<>();
+    private final Map<String, Route[]> byGateway = new HashMap<>();
+    private final Set<String> providers = new LinkedHashSet<>();
+
+    public RouteTable(final List<Route> routes) {
+        this(routes, DEFAULT_GATEWAYS);
+    }
+
+    /**
+     * @param gateways gateway domains auto gateway routes may use, in order of preference
+     */
+    public RouteTable(final List<Route> routes, final List<String> gateways) {
+        this.gateways = Collections.unmodifiableList(new ArrayList<>(gateways.isEmpty() ? DEFAULT_GATEWAYS : gateways));
+        final List<Route> withGateways = new ArrayList<>(routes.size());
+        for (final Route route : routes)
+            withGateways.add(route.withDefaultGateway(this.gateways));
+        this.routes = Collections.unmodifiableList(withGateways);
+        for (final Route route : this.routes) {
+            if (route.subscriptionId != Route.ANY_SUBSCRIPTION && bySubscription.get(route.subscriptionId) == null)
+                bySubscription.put(route.subscriptionId, route);
+            if (route.isAutoGateway()) {
+                for (final String gateway : this.gateways)
+                    index(gateway, route);
+            } else {
+                index(route.gatewayDomain, route);
+            }
+            providers.add(route.providerPackage);
+        }
+    }
+
+    private void index(final String gatewayDomain, final Route route) {
+        final Route[] existing = byGateway.get(gatewayDomain);
+        final Route[] sameGateway;
+        if (existing == null) {
+            sameGateway = new Route[1];
+        } else {
+            sameGateway = new Route[existing.length + 1];
+            System.arraycopy(existing, 0, sameGateway, 0, existing.length);
+        }
+        sameGateway[sameGateway.length - 1] = route;
+        byGateway.put(gatewayDomain, sameGateway);
+    }
+
+    /**
+     * Builds the table from preferences: the XMPP app and account picked in BaseActivity form the default route, an
+     * auto gateway one over the GATEWAYS_KEY domains, ECHO_SERVER if none are set, followed by one route per line of
+     * ROUTES_KEY.
+     */
+    public static RouteTable load(final Context context, final SharedPreferences prefs) {
+        final List<Route> routes = new ArrayList<>();
+        final String provider = prefs.getString(PROVIDER_KEY, null), account = prefs.getString(ACCOUNT_KEY, null);
+        if (provider != null && account != null)
+            routes.add(new Route(Route.ANY_SUBSCRIPTION, null, provider, account, null));
+        final String extra = prefs.getString(ROUTES_KEY, null);
+        if (extra != null) {
+            for (final String line : extra.split("\n")) {
+                if (line.trim().isEmpty())
+                    continue;
+                try {
+                    routes.add(resolveSubscription(context, Route.parse(line)));
+                } catch (IllegalArgumentException e) {
+                    Log.e(Constants.TAG, "ignoring invalid route", e);
+                }
+            }
+        }
+        final List<String> gateways = new ArrayList<>();
+        final String domains = prefs.getString(GATEWAYS_KEY, null);
+        if (domains != null)
+            for (final String line : domains.split("\n"))
+                if (!line.trim().isEmpty() && !gateways.contains(line.trim()))
+                    gateways.add(line.trim());
+        return new RouteTable(routes, gateways);
+    }
+
+    private static Route resolveSubscription(final Context context, final Route route) {
+        if (route.subscriptionId != Route.ANY_SUBSCRIPTION || route.phoneNumber == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1)
+            return route;
+        return findSubscription(context, route);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP_MR1)
+    private static Route findSubscription(final Context context, final Route route) {
+        try {
+            final List<SubscriptionInfo> infos = SubscriptionManager.from(context).getActiveSubscriptionInfoList();
+            if (infos != null)
+                for (final SubscriptionInfo info : infos)
+                    if (route.phoneNumber.equals(info.getNumber()))
+                        return route.withSubscriptionId(info.getSubscriptionId());
+        } catch (SecurityException e) {
+            Log.e(Constants.TAG, "cannot list SIMs to resolve " + route.phoneNumber, e);
+        }
+        Log.e(Constants.TAG, "no active SIM with number " + route.phoneNumber);
+        return route;
+    }
+
+    public boolean isEmpty() {
+        return routes.isEmpty();
+    }
+
+    public List<Route> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @return gateway domains auto gateway routes may use, in order of preference, never empty
+     */
+    public List<String> getGateways() {
+        return gateways;
+    }
+
+    public Set<String> getProviders() {
+        return providers;
+    }
+
+    /**
+     * @return the route for texts received on subscriptionId, or the default route, or null if there are no routes
+     */
+    public Route forSubscription(final int subscriptionId) {
+        final Route route = bySubscription.get(subscriptionId);
+        if (route != null)
+            return route;
+        return routes.isEmpty() ? null : routes.get(0);
+    }
+
+    /**
+     * @return every route with this gateway domain, possibly none
+     */
+    public Route[] forGateway(final String gatewayDomain) {
+        final Route[] ret = byGateway.get(gatewayDomain);
+        return ret == null ? NO_ROUTES : ret;
+    }
+
+    /**
+     * @return the route accountJid, connected through providerPackage, reaches SMS numbers on gatewayDomain with, or
+     * null if that isn't an outgoing text
+     */
+    public Route forOutgoing(final String gatewayDomain, final String accountJid, final String providerPackage) {
+        for (final Route route : forGateway(gatewayDomain))
+            if (route.accountJid.equals(accountJid) && route.providerPackage.equals(providerPackage))
+                return route;
+        return null;
+    }
+}
@@ -7,32 +7,84 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
-import org.openintents.xmpp.AbstractXmppPluginCallback;
 import org.openintents.xmpp.XmppError;
-import org.openintents.xmpp.util.XmppPluginCallbackApi;
 import org.openintents.xmpp.util.XmppServiceApi;
-import org.openintents.xmpp.util.XmppServiceConnection;
 
 import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Locale;
-
-import static com.moparisthebest.sms2xmpp.Constants.ACCOUNT_KEY;
-import static com.moparisthebest.sms2xmpp.Constants.PROVIDER_KEY;
-import static org.openintents.xmpp.util.XmppUtils.getSuccess;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.moparisthebest.sms2xmpp.Constants.COMPONENT_HOST_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.COMPONENT_PORT_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.COMPONENT_SECRET_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.CONTACT_NAMES_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.DEBUG_VERBOSITY_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.FLOOD_RATE_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.GATEWAYS_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.INBOUND_WINDOW_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.MEDIA_UPLOAD_URL_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.MEDIA_WORKERS_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.OUTBOUND_MAX_SEGMENTS_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.OUTBOUND_WINDOW_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.ROUTES_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.SIM_BALANCE_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.SIM_STICKY_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.SMS_ENCODING_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.SMS_ENCODING_OVERRIDES_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.SMS_RATE_KEY;
 
 public class SMSService extends Service {
 
     public static final String ECHO_SERVER = "echo.burtrum.org";
 
-    private XmppServiceConnection serviceConnection;
+    // replaced wholesale, never modified, so the binder threads can read it without locking
+    private volatile RouteTable routes = RouteTable.EMPTY;
+    // one connection per XMPP app, shared by every route through that app, plus one for ComponentTransport.PROVIDER
+    private final Map<String, ProviderConnection> connections = new HashMap<>();
+    // routes whose plugin callback the XMPP app accepted, only these get texts from the outbox
+    private final Set<Route> registeredRoutes = new HashSet<>();
+
+    // null if the outbox can't be opened
+    private OutboxDrain drain = null;
 
-    private String selectedPackage = null, accountJid = null;
+    private MediaPipeline media = null;
+    private Backfill backfill = null;
+
+    private static final long METRICS_SNAPSHOT_SECONDS = 60;
+    // XmppError id XmppServiceApi reports when the call threw before reaching the XMPP app
+    static final int CLIENT_SIDE_ERROR = -1;
+    private ScheduledExecutorService metricsSnapshots = null;
+    // tells calls apart in the trace
+    private static final AtomicInteger callIds = new AtomicInteger();
 
     public static final int REQUEST_CODE_SEND_MESSAGE = 9910;
     public static final int REQUEST_CODE_REGISTER_CALLBACK = 9915;
     public static final int REQUEST_CODE_UNREGISTER_CALLBACK = 9920;
+    public static final int REQUEST_CODE_SEND_RECEIPT = 9925;
+    public static final int REQUEST_CODE_BACKFILL = 9930;
+    public static final int REQUEST_CODE_PROBE = 9935;
+
+    public static final String ACTION_BACKFILL = "com.moparisthebest.sms2xmpp.BACKFILL";
+    private static final long BACKFILL_TIMEOUT_SECONDS = 120;
+    private static final long PROBE_SECONDS = 60;
+    // failed drains are retried after this, or on the next broadcast or registration if that's sooner
+    private static final long DRAIN_RETRY_SECONDS = 30;
+
+    private final GatewaySelector gateways = GatewaySelector.getInstance();
 
     // quick hack for now, better android-ish way?
     public static SMSService instance = null;
@@ -43,10 +95,40 @@ public class SMSService extends Service {
 
     private final IBinder mBinder = new SMSBinder();
 
+    private final InboundBatcher inbound = new InboundBatcher(new InboundBatcher.Sink() {
+        @Override
+        public void flush() {
+            drainOutbox();
+        }
+    }, 0);
+
+    // SharedPreferences only keeps a weak reference to this, so we have to
+    private final SharedPreferences.OnSharedPreferenceChangeListener tuningListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(final SharedPreferences prefs, final String key) {
+                    if (SMS_RATE_KEY.equals(key) || INBOUND_WINDOW_KEY.equals(key) || DEBUG_VERBOSITY_KEY.equals(key)
+                            || SMS_ENCODING_KEY.equals(key) || SMS_ENCODING_OVERRIDES_KEY.equals(key)
+                            || MEDIA_UPLOAD_URL_KEY.equals(key) || MEDIA_WORKERS_KEY.equals(key)
+                            || OUTBOUND_WINDOW_KEY.equals(key) || OUTBOUND_MAX_SEGMENTS_KEY.equals(key)
+                            || CONTACT_NAMES_KEY.equals(key)
+                            || FLOOD_RATE_KEY.equals(key) || SIM_STICKY_KEY.equals(key) || SIM_BALANCE_KEY.equals(key))
+                        applyTuning(prefs);
+                    else if (ROUTES_KEY.equals(key) || GATEWAYS_KEY.equals(key))
+                        maybeChanged();
+                    else if (COMPONENT_HOST_KEY.equals(key) || COMPONENT_PORT_KEY.equals(key) || COMPONENT_SECRET_KEY.equals(key))
+                        restartComponent();
+                }
+            };
+
     public class SMSBinder extends Binder {
         public SMSService getService() {
             return SMSService.this;
         }
+
+        public Metrics getMetrics() {
+            return Metrics.get();
+        }
     }
 
     @Override
@@ -56,9 +138,119 @@ public class SMSService extends Service {
 
     @Override
     public void onCreate() {
+        TraceRecorder.open(this);
+        BatchScheduler.getInstance().init(this);
+        SimDispatcher.getInstance().start(this);
+        getPreferences().registerOnSharedPreferenceChangeListener(tuningListener);
+        try {
+            drain = new OutboxDrain(this, Outbox.getInstance(this), ContactNames.getInstance(this), new OutboxDrain.Host() {
+                @Override
+                public Route registeredRoute(final int subscriptionId) {
+                    final Route route = routes.forSubscription(subscriptionId);
+                    return route != null && registeredRoutes.contains(route) ? route : null;
+                }
+
+                @Override
+                public Transport transport(final Route route) {
+                    return connections.get(route.providerPackage).transport;
+                }
+
+                @Override
+                public Route resolve(final Route route) {
+                    return SMSService.this.resolve(route);
+                }
+
+                @Override
+                public XmppServiceApi.IXmppCallback callback(final Route route, final int generation) {
+                    return new SMSService.MyCallback(false, null, REQUEST_CODE_SEND_MESSAGE, route, generation);
+                }
+
+                @Override
+                public void retryLater() {
+                    BatchScheduler.getInstance().scheduleDrain(SMSService.this, TimeUnit.SECONDS.toMillis(DRAIN_RETRY_SECONDS));
+                }
+            });
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "cannot open outbox, received texts will not be forwarded", e);
+        }
+        final File snapshot = new File(getFilesDir(), "metrics.json");
+        metricsSnapshots = Executors.newSingleThreadScheduledExecutor();
+        metricsSnapshots.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Metrics.get().writeSnapshot(snapshot);
+            }
+        }, METRICS_SNAPSHOT_SECONDS, METRICS_SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+        metricsSnapshots.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeGateways();
+            }
+        }, PROBE_SECONDS, PROBE_SECONDS, TimeUnit.SECONDS);
+        DeliveryTracker.getInstance().init(this, new DeliveryTracker.Listener() {
+            @Override
+            public void delivered(final Route route, final String toNumber, final String messageId) {
+                sendToAccount(route, StanzaWriter.get(route).forwardedReceipt(toNumber, route.gatewayDomain, route.accountJid, messageId));
+            }
+
+            @Override
+            public void failed(final Route route, final String toNumber, final String messageId, final String reason) {
+                DebugEvents.post(DebugEvents.ERROR, "SMS to %s failed: %s", toNumber, reason);
+                sendToAccount(route, StanzaWriter.get(route).forwardedError(toNumber, route.gatewayDomain, route.accountJid, messageId, "SMS " + reason));
+            }
+        });
+        media = new MediaPipeline(this, getPreferences(), new MediaPipeline.Listener() {
+            @Override
+            public boolean mediaReceived(final String fromNumber, final int subscriptionId, final long timestampMillis,
+                                         final String caption, final List<String> urls, final List<String> contentTypes) {
+                final Route route = resolve(routes.forSubscription(subscriptionId));
+                if (route == null)
+                    return false;
+                final StanzaWriter writer = StanzaWriter.get(route);
+                if (caption != null)
+                    writer.forwardedMessage(fromNumber, route.gatewayDomain, route.accountJid, caption, timestampMillis);
+                for (final String url : urls)
+                    writer.forwardedMedia(fromNumber, route.gatewayDomain, route.accountJid, url, timestampMillis);
+                return sendToAccount(route, writer);
+            }
+        });
+        backfill = new Backfill(this, getPreferences(), new Backfill.Sink() {
+            @Override
+            public Route routeFor(final int subscriptionId) {
+                final Route route = routes.forSubscription(subscriptionId);
+                synchronized (SMSService.this) {
+                    return route != null && registeredRoutes.contains(route) ? resolve(route) : null;
+                }
+            }
+
+            @Override
+            public boolean send(final Route route, final String xml) throws InterruptedException {
+                return sendAndWait(route, xml);
+            }
+        });
         maybeChanged();
     }
 
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        if (intent != null && ACTION_BACKFILL.equals(intent.getAction())) {
+            backfill.start();
+        } else if (intent != null && BatchScheduler.ACTION_DRAIN.equals(intent.getAction())) {
+            // EventReceiver began this for the alarm, reading the outbox is disk I/O so not on the main thread
+            metricsSnapshots.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drainOutbox();
+                    } finally {
+                        BatchScheduler.getInstance().end();
+                    }
+                }
+            });
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     private SharedPreferences getPreferences() {
         return PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
     }
@@ -66,157 +258,458 @@ public class SMSService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        getPreferences().unregisterOnSharedPreferenceChangeListener(tuningListener);
+        if (metricsSnapshots != null)
+            metricsSnapshots.shutdown();
+        if (media != null)
+            media.stop();
+        if (backfill != null)
+            backfill.stop();
+        SimDispatcher.getInstance().stop(this);
         stopService();
     }
 
     private void handleError(final XmppError error) {
-        final BaseActivity instance = BaseActivity.instance;
-        if (instance != null) {
-            instance.handleError(error);
-        } else {
-            Log.e(Constants.TAG, "onError getErrorId:" + error.getErrorId());
-            Log.e(Constants.TAG, "onError getMessage:" + error.getMessage());
+        if (error == null) {
+            Log.e(Constants.TAG, "onError without XmppError");
+            DebugEvents.post(DebugEvents.ERROR, "RESULT_CODE_ERROR");
+            return;
         }
+        Log.e(Constants.TAG, "onError getErrorId:" + error.getErrorId());
+        Log.e(Constants.TAG, "onError getMessage:" + error.getMessage());
+        DebugEvents.post(DebugEvents.ERROR, "onError id:%d\n\n%s", error.getErrorId(), error.getMessage());
+    }
+
+    private synchronized void stopService() {
+        applyRoutes(RouteTable.EMPTY);
+    }
+
+    public void maybeChanged() {
+        final SharedPreferences prefs = getPreferences();
+        applyTuning(prefs);
+        applyRoutes(RouteTable.load(this, prefs));
+    }
+
+    private void applyTuning(final SharedPreferences prefs) {
+        SmsSender.getInstance().setRate(getFloat(prefs, SMS_RATE_KEY, SmsSender.DEFAULT_RATE_PER_SECOND), SmsSender.DEFAULT_BURST);
+        SmsSender.getInstance().setEncoder(SmsEncoder.fromPreferences(prefs));
+        SimDispatcher.getInstance().configure(prefs.getBoolean(SIM_STICKY_KEY, true),
+                prefs.getString(SIM_BALANCE_KEY, SimDispatcher.BALANCE_QUEUE));
+        ContactNames.getInstance(this).setEnabled(prefs.getBoolean(CONTACT_NAMES_KEY, false));
+        OutboundCoalescer.getInstance().configure((long) getFloat(prefs, OUTBOUND_WINDOW_KEY, 0),
+                (int) getFloat(prefs, OUTBOUND_MAX_SEGMENTS_KEY, OutboundCoalescer.DEFAULT_MAX_SEGMENTS));
+        inbound.setWindowMillis((long) getFloat(prefs, INBOUND_WINDOW_KEY, 0));
+        InboundPipeline.getInstance().getFloodControl().setRate((int) getFloat(prefs, FLOOD_RATE_KEY, FloodControl.DEFAULT_PER_MINUTE));
+        DebugEvents.setVerbosity((int) getFloat(prefs, DEBUG_VERBOSITY_KEY, DebugEvents.DEFAULT_VERBOSITY));
+        if (media != null)
+            media.configure(prefs.getString(MEDIA_UPLOAD_URL_KEY, null), (int) getFloat(prefs, MEDIA_WORKERS_KEY, MediaPipeline.DEFAULT_WORKERS));
     }
 
-    private void showToast(final String message) {
-        final BaseActivity instance = BaseActivity.instance;
-        if (instance != null) {
-            instance.showToast(message);
-        } else {
-            Log.e(Constants.TAG, "showToast:" + message);
+    // EditTextPreference can only store strings
+    public static float getFloat(final SharedPreferences prefs, final String key, final float defaultValue) {
+        try {
+            return Float.parseFloat(prefs.getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
     }
 
-    private synchronized void stopService() {
-        selectedPackage = null;
-        accountJid = null;
-        if (serviceConnection != null) {
-            serviceConnection.unbindFromService();
-            serviceConnection = null;
+    /**
+     * Brings connections and callback registrations in line with newRoutes, leaving alone whatever didn't change so
+     * adding or removing one account doesn't disturb the others.
+     */
+    private synchronized void applyRoutes(final RouteTable newRoutes) {
+        final RouteTable oldRoutes = routes;
+        routes = newRoutes;
+        gateways.setDomains(newRoutes.getGateways());
+
+        for (final Route route : oldRoutes.getRoutes()) {
+            final ProviderConnection connection = connections.get(route.providerPackage);
+            final boolean bound = connection != null && connection.bound && newRoutes.getProviders().contains(route.providerPackage);
+            if (newRoutes.getRoutes().contains(route)) {
+                if (bound && route.isAutoGateway()) {
+                    // same route, but it may have gained or lost gateway domains
+                    unRegisterMessageCallback(connection, route, without(oldRoutes.getGateways(), newRoutes.getGateways()));
+                    registerMessageCallback(connection, route, without(newRoutes.getGateways(), oldRoutes.getGateways()));
+                }
+                continue;
+            }
+            registeredRoutes.remove(route);
+            if (bound)
+                unRegisterMessageCallback(connection, route, oldRoutes.getGateways());
+        }
+
+        final String componentDomain = componentDomain(newRoutes);
+        for (final Iterator<ProviderConnection> it = connections.values().iterator(); it.hasNext(); ) {
+            final ProviderConnection connection = it.next();
+            if (!newRoutes.getProviders().contains(connection.providerPackage)
+                    || (connection.domain != null && !connection.domain.equals(componentDomain))) {
+                dropConnection(connection);
+                it.remove();
+            }
+        }
+
+        for (final Route route : newRoutes.getRoutes()) {
+            final ProviderConnection connection = connections.get(route.providerPackage);
+            if (connection == null) {
+                // registers all its routes once bound
+                final ProviderConnection newConnection = new ProviderConnection(route.providerPackage,
+                        route.isDirect() ? componentDomain : null);
+                connections.put(route.providerPackage, newConnection);
+                newConnection.supervisor.start();
+            } else if (connection.bound && !oldRoutes.getRoutes().contains(route)) {
+                registerMessageCallback(connection, route, newRoutes.getGateways());
+            }
         }
     }
 
-    public void maybeChanged() {
-        final SharedPreferences prefs = getPreferences();
-        maybeChanged(prefs.getString(PROVIDER_KEY, null), prefs.getString(ACCOUNT_KEY, null));
-    }
-
-    public synchronized void maybeChanged(final String newPackage, final String newJid) {
-        if (newPackage == null || newJid == null) {
-            stopService();
-        } else if (!newPackage.equals(selectedPackage) || !newJid.equals(accountJid)) {
-            stopService();
-            selectedPackage = newPackage;
-            accountJid = newJid;
-            // bind to service
-            serviceConnection = new XmppServiceConnection(
-                    SMSService.this.getApplicationContext(),
-                    selectedPackage,
-                    new XmppServiceConnection.OnBound() {
-                        @Override
-                        public void onBound(XmppServiceApi serviceApi) {
-                            Log.d(XmppServiceApi.TAG, "onBound!");
-                            registerMessageCallback();
-                        }
-
-                        @Override
-                        public void onError(Exception e) {
-                            Log.e(XmppServiceApi.TAG, "exception when binding!", e);
-                        }
-                    }
-            );
-            serviceConnection.bindToService();
-        }
-    }
-
-    public void receivedText(final String fromNumber, final String body, final long timestampMillis) {
-        final Intent data = new Intent();
-        data.setAction(XmppServiceApi.ACTION_SEND_RAW_XML);
-        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, accountJid);
-        data.putExtra(XmppServiceApi.EXTRA_RAW_XML,
-                "<message xmlns=\"jabber:client\" to=\"" + fromNumber + "@" + ECHO_SERVER + "\" type=\"normal\" from=\"" + accountJid + "\">\n" +
-                        "    <echo xmlns=\"https://code.moparisthebest.com/moparisthebest/xmpp-echo-self\"/>\n" +
-                        "    <forwarded xmlns=\"urn:xmpp:forward:0\">\n" +
-                        "        <message xmlns=\"jabber:client\" from=\"" + fromNumber + "@" + ECHO_SERVER + "\" type=\"chat\" to=\"" + accountJid + "\">\n" +
-                        // todo: add delay here with timestampMillis
-                        "            <body>" + body + "</body>\n" +
-                        "        </message>\n" +
-                        "    </forwarded>\n" +
-                        "</message>");
-
-        serviceConnection.getApi().executeApiAsync(data, null, null, new SMSService.MyCallback(false, null, REQUEST_CODE_SEND_MESSAGE));
-    }
-
-    public void registerMessageCallback() {
-        showToast("registerMessageCallback");
-        final Intent data = new Intent();
-        data.setAction(XmppServiceApi.ACTION_REGISTER_PLUGIN_CALLBACK);
-        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, accountJid);
-        // null means all localpart
-        //data.putExtra(XmppServiceApi.EXTRA_JID_LOCAL_PART, localPart);
-        data.putExtra(XmppServiceApi.EXTRA_JID_DOMAIN, ECHO_SERVER);
-
-        serviceConnection.getApi().callbackApiAsync(data, pluginCallback, new SMSService.MyCallback(true, null, REQUEST_CODE_REGISTER_CALLBACK));
-    }
-
-    public synchronized void unRegisterMessageCallback() {
-        accountJid = null;
-        final Intent data = new Intent();
-        data.setAction(XmppServiceApi.ACTION_UNREGISTER_PLUGIN_CALLBACK);
-        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, accountJid);
-        serviceConnection.getApi().callbackApiAsync(data, pluginCallback, new SMSService.MyCallback(true, null, REQUEST_CODE_UNREGISTER_CALLBACK));
-    }
-
-    private AbstractXmppPluginCallback pluginCallback = new AbstractXmppPluginCallback() {
-        /**
-         * This is called by the remote service regularly to tell us about
-         * new values.  Note that IPC calls are dispatched through a thread
-         * pool running in each process, so the code executing here will
-         * NOT be running in our main thread like most other things -- so,
-         * to update the UI, we need to use a Handler to hop over there.
-         */
-        @Override
-        public Intent execute(final Intent data, final InputStream inputStream, final OutputStream outputStream) {
-            if (XmppPluginCallbackApi.ACTION_NEW_MESSAGE.equals(data.getAction())) {
-                final Jid from = Jid.fromString(data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_FROM));
-                final Jid to = Jid.fromString(data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_TO));
-                final String body = data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_BODY);
-                showToast(String.format(Locale.US, "status: %d, from: '%s', to: '%s', body: '%s'",
-                        data.getIntExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_STATUS, -1),
-                        from, to, body));
-                if (accountJid.equals(from.toBareJid().toString()) && ECHO_SERVER.equals(to.getDomainpart())) {
-                    // todo: check that this looks like phone number??? I guess SMS just fails for now
-                    // if our JID sent it to an account on the echo server, it's an outgoing text, send it...
-                    SMSReceiver.sendSms(to.getLocalpart(), body);
-                }
-                return getSuccess();
+    private static List<String> without(final List<String> domains, final List<String> remove) {
+        final List<String> ret = new ArrayList<>(domains);
+        ret.removeAll(remove);
+        return ret;
+    }
+
+    /**
+     * @return route through the gateway domain GatewaySelector picks now if it's an auto gateway route, else route
+     */
+    private Route resolve(final Route route) {
+        if (route == null || !route.isAutoGateway())
+            return route;
+        final String gateway = gateways.current(System.nanoTime());
+        return gateway == null ? route : route.withGateway(gateway);
+    }
+
+    /**
+     * Bounces a probe off every gateway domain through the first bound auto gateway route, messageReceived reports
+     * the ones that come back.  Nothing to choose between with only one domain.
+     */
+    private void probeGateways() {
+        gateways.expireProbes(System.nanoTime());
+        final List<String> domains = gateways.getDomains();
+        if (domains.size() < 2)
+            return;
+        Route route = null;
+        Transport transport = null;
+        synchronized (this) {
+            for (final Route registered : registeredRoutes) {
+                final ProviderConnection connection = connections.get(registered.providerPackage);
+                if (registered.isAutoGateway() && connection != null && connection.bound) {
+                    route = registered;
+                    transport = connection.transport;
+                    break;
+                }
             }
-            return getSuccess(); // we don't care about anything else for now...
-            //return getError(XmppError.INCOMPATIBLE_API_VERSIONS, "action not implemented");
         }
-    };
+        if (route == null)
+            return;
+        for (final String domain : domains) {
+            final Route via = route.withGateway(domain);
+            final String id = gateways.probeSent(domain, System.nanoTime());
+            transport.send(via, traced(StanzaWriter.get(via).forwardedProbe(domain, via.accountJid, id).toString()),
+                    new SMSService.MyCallback(false, null, REQUEST_CODE_PROBE, via, 0));
+        }
+    }
+
+    /**
+     * One component connection serves one domain, the gateway of the first direct route.
+     */
+    private static String componentDomain(final RouteTable routes) {
+        for (final Route route : routes.getRoutes())
+            if (route.isDirect())
+                return route.gatewayDomain;
+        return null;
+    }
+
+    private synchronized void dropConnection(final ProviderConnection connection) {
+        for (final Iterator<Route> it = registeredRoutes.iterator(); it.hasNext(); )
+            if (it.next().providerPackage.equals(connection.providerPackage))
+                it.remove();
+        // results for anything in flight through it may never come now
+        abortDrain();
+        connection.supervisor.stop();
+    }
+
+    /**
+     * Reconnects the component with the new host, port or secret.
+     */
+    private synchronized void restartComponent() {
+        final ProviderConnection connection = connections.remove(ComponentTransport.PROVIDER);
+        if (connection == null)
+            return;
+        dropConnection(connection);
+        final ProviderConnection newConnection = new ProviderConnection(ComponentTransport.PROVIDER, connection.domain);
+        connections.put(ComponentTransport.PROVIDER, newConnection);
+        newConnection.supervisor.start();
+    }
+
+    private synchronized void onProviderBound(final ProviderConnection connection) {
+        if (connections.get(connection.providerPackage) != connection)
+            return; // torn down since
+        connection.bound = true;
+        connection.supervisor.connected();
+        for (final Route route : routes.getRoutes())
+            if (route.providerPackage.equals(connection.providerPackage))
+                registerMessageCallback(connection, route, routes.getGateways());
+    }
+
+    /**
+     * Called after texts from one SMS_RECEIVED broadcast were appended to the outbox.
+     */
+    public void receivedTexts() {
+        inbound.added();
+    }
+
+    /**
+     * Sends the next batch from the outbox if nothing is in flight, see OutboxDrain.
+     */
+    private void drainOutbox() {
+        if (drain != null)
+            drain.drain();
+    }
+
+    /**
+     * Sends stanzas outside of the outbox, best effort.
+     *
+     * @return false if the route's XMPP app isn't bound right now and nothing was sent
+     */
+    private boolean sendToAccount(final Route route, final StanzaWriter writer) {
+        final Transport transport;
+        synchronized (this) {
+            final ProviderConnection connection = connections.get(route.providerPackage);
+            if (connection == null || !connection.bound)
+                return false;
+            transport = connection.transport;
+        }
+        transport.send(route, traced(writer.toString()), new SMSService.MyCallback(false, null, REQUEST_CODE_SEND_RECEIPT, route, 0));
+        return true;
+    }
+
+    // evaluate before constructing the MyCallback, so its API_CALL follows
+    private static String traced(final String xml) {
+        TraceRecorder.record(TraceFormat.STANZA_SENT, xml.length(), 0);
+        return xml;
+    }
+
+    /**
+     * Like sendToAccount, but blocks until the XMPP app answered.
+     */
+    private boolean sendAndWait(final Route route, final String xml) throws InterruptedException {
+        final Transport transport;
+        synchronized (this) {
+            final ProviderConnection connection = connections.get(route.providerPackage);
+            if (connection == null || !connection.bound)
+                return false;
+            transport = connection.transport;
+        }
+        final BlockingQueue<Boolean> result = new ArrayBlockingQueue<>(1);
+        transport.send(route, traced(xml), new SMSService.MyCallback(false, null, REQUEST_CODE_BACKFILL, route, 0) {
+            @Override
+            public void onReturn(final Intent returned) {
+                super.onReturn(returned);
+                result.offer(returned.getIntExtra(XmppServiceApi.RESULT_CODE, XmppServiceApi.RESULT_CODE_ERROR) == XmppServiceApi.RESULT_CODE_SUCCESS);
+            }
+        });
+        final Boolean success = result.poll(BACKFILL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return success != null && success;
+    }
+
+    private synchronized void abortDrain() {
+        if (drain != null)
+            drain.abort();
+    }
+
+    /**
+     * The XMPP app or server behind connection died or went away, until its supervisor connected it again nothing goes
+     * through it and its routes park their texts in the outbox.
+     */
+    private synchronized void connectionLost(final ProviderConnection connection) {
+        if (connections.get(connection.providerPackage) != connection || !connection.bound)
+            return;
+        connection.bound = false;
+        for (final Iterator<Route> it = registeredRoutes.iterator(); it.hasNext(); )
+            if (it.next().providerPackage.equals(connection.providerPackage))
+                it.remove();
+        // results for anything in flight through it may never come now
+        abortDrain();
+    }
+
+    private synchronized void connectionBroken(final Route route) {
+        final ProviderConnection connection = connections.get(route.providerPackage);
+        if (connection != null)
+            connection.supervisor.failed("call failed on the client side");
+    }
+
+    /**
+     * @return ConnectionSupervisor state of the connection route goes through
+     */
+    public synchronized int getConnectionState(final Route route) {
+        final ProviderConnection connection = connections.get(route.providerPackage);
+        return connection == null ? ConnectionSupervisor.DISCONNECTED : connection.supervisor.getState();
+    }
+
+    private void callbackRegistered(final Route route) {
+        synchronized (this) {
+            if (!routes.getRoutes().contains(route))
+                return; // removed since
+            registeredRoutes.add(route);
+        }
+        drainOutbox();
+        backfill.kick();
+    }
+
+    /**
+     * Registers for messages to route's gateway domain, or to every one of domains if it's an auto gateway route.
+     */
+    private void registerMessageCallback(final ProviderConnection connection, final Route route, final List<String> domains) {
+        for (final String gateway : route.isAutoGateway() ? domains : Collections.singletonList(route.gatewayDomain)) {
+            DebugEvents.post(DebugEvents.INFO, "registerMessageCallback %s %s", route.accountJid, gateway);
+            connection.transport.register(route.withGateway(gateway),
+                    new SMSService.MyCallback(true, null, REQUEST_CODE_REGISTER_CALLBACK, route, 0, gateway));
+        }
+    }
+
+    private void unRegisterMessageCallback(final ProviderConnection connection, final Route route, final List<String> domains) {
+        for (final String gateway : route.isAutoGateway() ? domains : Collections.singletonList(route.gatewayDomain))
+            connection.transport.unregister(route.withGateway(gateway),
+                    new SMSService.MyCallback(true, null, REQUEST_CODE_UNREGISTER_CALLBACK, route, 0, gateway));
+    }
+
+    /**
+     * A message from an XMPP user to number@gateway came in through providerPackage, if it's from the account of a
+     * route on that gateway it's a text to send.  Or one of our gateway probes came back.
+     *
+     * @return null if it was handled, otherwise why not
+     */
+    private String messageReceived(final String providerPackage, final Jid from, final Jid to, final String body,
+                                   final String messageId) {
+        final String probeId = GatewaySelector.probeId(messageId, body);
+        if (probeId != null && gateways.probeReturned(probeId, System.nanoTime()))
+            return null;
+        return sendOutgoing(routes, PhoneNumbers.getInstance(this), providerPackage, from, to, body, messageId);
+    }
+
+    /**
+     * The rest of messageReceived once it isn't a probe, package private for tests to play an XMPP user.
+     */
+    static String sendOutgoing(final RouteTable routes, final PhoneNumbers phoneNumbers, final String providerPackage,
+                               final Jid from, final Jid to, final String body, final String messageId) {
+        Metrics.get().xmppMessages.increment();
+        TraceRecorder.record(TraceFormat.CALLBACK_RECEIVED, body == null ? 0 : body.length(), TraceRecorder.hash(to.getLocalpart()));
+        if (DebugEvents.isEnabled(DebugEvents.VERBOSE))
+            DebugEvents.post(DebugEvents.VERBOSE, "through: %s, from: '%s', to: '%s', body: '%s'", providerPackage, from, to, body);
+        Route route = routes.forOutgoing(to.getDomainpart(), from.toBareJid().toString(), providerPackage);
+        if (route != null) {
+            // receipts and errors come from the domain they wrote to
+            if (route.isAutoGateway())
+                route = route.withGateway(to.getDomainpart());
+            // todo: check that this looks like phone number??? I guess SMS just fails for now
+            // if one of our JIDs sent it to an account on its gateway, it's an outgoing text, send it...
+            final String toNumber = phoneNumbers.normalize(to.getLocalpart());
+            if (!OutboundCoalescer.getInstance().send(route, toNumber, body, messageId))
+                return "SMS send queue full";
+        }
+        return null;
+    }
+
+    private final class ProviderConnection {
+        final String providerPackage;
+        // what the component connects as, null for XMPP apps
+        final String domain;
+        final Transport transport;
+        final ConnectionSupervisor supervisor;
+        // guarded by SMSService.this
+        boolean bound = false;
+
+        ProviderConnection(final String providerPackage, final String domain) {
+            this.providerPackage = providerPackage;
+            this.domain = domain;
+            final Transport.Listener transportListener = new Transport.Listener() {
+                @Override
+                public void connected() {
+                    onProviderBound(ProviderConnection.this);
+                }
+
+                @Override
+                public void failed(final String reason) {
+                    ProviderConnection.this.supervisor.failed(reason);
+                }
+
+                @Override
+                public String messageReceived(final Jid from, final Jid to, final String body, final String messageId) {
+                    return SMSService.this.messageReceived(ProviderConnection.this.providerPackage, from, to, body, messageId);
+                }
+            };
+            if (domain != null) {
+                final SharedPreferences prefs = getPreferences();
+                this.transport = new ComponentTransport(prefs.getString(COMPONENT_HOST_KEY, ""),
+                        (int) getFloat(prefs, COMPONENT_PORT_KEY, ComponentTransport.DEFAULT_PORT), domain,
+                        prefs.getString(COMPONENT_SECRET_KEY, ""), transportListener);
+            } else {
+                this.transport = new XmppApiTransport(SMSService.this, providerPackage, transportListener);
+            }
+            this.supervisor = new ConnectionSupervisor(SMSService.this, providerPackage, domain == null, new ConnectionSupervisor.Listener() {
+                @Override
+                public void bind() {
+                    transport.connect();
+                }
+
+                @Override
+                public void unbind() {
+                    transport.disconnect();
+                }
+
+                @Override
+                public void lost() {
+                    connectionLost(ProviderConnection.this);
+                }
+            });
+        }
+    }
 
     private class MyCallback implements XmppServiceApi.IXmppCallback {
         boolean returnToCiphertextField;
         ByteArrayOutputStream os;
         int requestCode;
+        Route route;
+        int drainGeneration;
+        // gateway domain the call went through, told about errors
+        final String gateway;
+        final long startNanos = System.nanoTime();
+        final int callId = callIds.incrementAndGet();
+
+        private MyCallback(boolean returnToCiphertextField, ByteArrayOutputStream os, int requestCode, Route route, int drainGeneration) {
+            this(returnToCiphertextField, os, requestCode, route, drainGeneration, route == null ? null : route.gatewayDomain);
+        }
 
-        private MyCallback(boolean returnToCiphertextField, ByteArrayOutputStream os, int requestCode) {
+        private MyCallback(boolean returnToCiphertextField, ByteArrayOutputStream os, int requestCode, Route route, int drainGeneration, String gateway) {
             this.returnToCiphertextField = returnToCiphertextField;
             this.os = os;
             this.requestCode = requestCode;
+            this.route = route;
+            this.drainGeneration = drainGeneration;
+            this.gateway = gateway;
+            Metrics.get().apiCalls.increment();
+            TraceRecorder.record(TraceFormat.API_CALL, requestCode, callId);
         }
 
         @Override
         public void onReturn(Intent result) {
-            switch (result.getIntExtra(XmppServiceApi.RESULT_CODE, XmppServiceApi.RESULT_CODE_ERROR)) {
+            Metrics.get().apiLatency.recordSince(startNanos);
+            final int resultCode = result.getIntExtra(XmppServiceApi.RESULT_CODE, XmppServiceApi.RESULT_CODE_ERROR);
+            TraceRecorder.record(TraceFormat.API_RESULT, resultCode, callId);
+            if (requestCode == REQUEST_CODE_SEND_MESSAGE)
+                drain.drained(drainGeneration, resultCode == XmppServiceApi.RESULT_CODE_SUCCESS);
+            else if (requestCode == REQUEST_CODE_REGISTER_CALLBACK && resultCode == XmppServiceApi.RESULT_CODE_SUCCESS)
+                callbackRegistered(route);
+            switch (resultCode) {
                 case XmppServiceApi.RESULT_CODE_SUCCESS: {
-                    showToast("RESULT_CODE_SUCCESS");
+                    Metrics.get().apiSuccess.increment();
+                    DebugEvents.post(DebugEvents.VERBOSE, "RESULT_CODE_SUCCESS");
                     break;
                 }
                 case XmppServiceApi.RESULT_CODE_USER_INTERACTION_REQUIRED: {
-                    showToast("RESULT_CODE_USER_INTERACTION_REQUIRED");
+                    Metrics.get().apiUserInteraction.increment();
+                    DebugEvents.post(DebugEvents.INFO, "RESULT_CODE_USER_INTERACTION_REQUIRED");
 
                     /*
                     // todo: what
@@ -232,10 +725,14 @@ public class SMSService extends Service {
                     break;
                 }
                 case XmppServiceApi.RESULT_CODE_ERROR: {
-                    showToast("RESULT_CODE_ERROR");
-
                     XmppError error = result.getParcelableExtra(XmppServiceApi.RESULT_ERROR);
+                    Metrics.get().apiError(error == null ? -1 : error.getErrorId());
                     handleError(error);
+                    // the call never reached the XMPP app, its binder is most likely dead
+                    if (error != null && error.getErrorId() == CLIENT_SIDE_ERROR && route != null)
+                        connectionBroken(route);
+                    else if (gateway != null)
+                        gateways.failure(gateway, System.nanoTime());
                     break;
                 }
             }
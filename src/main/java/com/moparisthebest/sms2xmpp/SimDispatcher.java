@@ -0,0 +1,226 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the SIM for outgoing texts on routes that aren't tied to one, so on multi-SIM phones every radio, each with
+ * its own carrier rate limit, carries part of the traffic instead of the default SIM carrying all of it.
+ *
+ * Sticky or not, a contact with texts still waiting in an SmsSender lane is pinned to that lane until they are all
+ * sent, so their texts go out in order.  When sticky, a contact also keeps the SIM they were first texted from, or
+ * last texted us on, so they always see the same number.  Other contacts go to the SIM with the shortest queue, or
+ * with BALANCE_LATENCY the one whose queue should drain soonest going by how long its recent texts took to be sent.
+ * Sticky assignments are only kept in memory, MAX_STICKY of them.
+ */
+public final class SimDispatcher {
+
+    public static final String BALANCE_QUEUE = "queue", BALANCE_LATENCY = "latency";
+
+    private static final int MAX_STICKY = 4096;
+
+    private static final SimDispatcher instance = new SimDispatcher();
+
+    public static SimDispatcher getInstance() {
+        return instance;
+    }
+
+    private volatile int[] subscriptions = new int[0];
+    private volatile boolean sticky = true, byLatency = false;
+
+    // guarded by itself
+    private final Map<String, Integer> assigned = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest) {
+            return size() > MAX_STICKY;
+        }
+    };
+
+    private static final class Pin {
+        int subscriptionId, texts;
+    }
+
+    // guarded by itself, recipients with texts in a lane, removed once the last of them is released
+    private final Map<String, Pin> pinned = new HashMap<>();
+
+    private Object subscriptionsListener = null;
+
+    private SimDispatcher() {
+    }
+
+    public void configure(final boolean sticky, final String balance) {
+        this.sticky = sticky;
+        this.byLatency = BALANCE_LATENCY.equals(balance);
+        if (!sticky)
+            synchronized (assigned) {
+                assigned.clear();
+            }
+    }
+
+    /**
+     * Loads the active SIMs and follows changes to them until stop.  Call on a thread with a Looper.
+     */
+    public void start(final Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1)
+            listen(context.getApplicationContext());
+    }
+
+    public void stop(final Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1)
+            unlisten(context.getApplicationContext());
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP_MR1)
+    private synchronized void listen(final Context context) {
+        if (subscriptionsListener != null)
+            return;
+        final SubscriptionManager manager = SubscriptionManager.from(context);
+        final SubscriptionManager.OnSubscriptionsChangedListener listener = new SubscriptionManager.OnSubscriptionsChangedListener() {
+            @Override
+            public void onSubscriptionsChanged() {
+                refresh(manager);
+            }
+        };
+        subscriptionsListener = listener;
+        // calls onSubscriptionsChanged right away too
+        manager.addOnSubscriptionsChangedListener(listener);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP_MR1)
+    private synchronized void unlisten(final Context context) {
+        if (subscriptionsListener == null)
+            return;
+        SubscriptionManager.from(context).removeOnSubscriptionsChangedListener((SubscriptionManager.OnSubscriptionsChangedListener) subscriptionsListener);
+        subscriptionsListener = null;
+        subscriptions = new int[0];
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP_MR1)
+    private void refresh(final SubscriptionManager manager) {
+        int[] ids = new int[0];
+        try {
+            final List<SubscriptionInfo> infos = manager.getActiveSubscriptionInfoList();
+            if (infos != null) {
+                ids = new int[infos.size()];
+                for (int i = 0; i < ids.length; ++i)
+                    ids[i] = infos.get(i).getSubscriptionId();
+            }
+        } catch (SecurityException e) {
+            Log.e(Constants.TAG, "SimDispatcher: cannot list SIMs, sending everything from the default one", e);
+        }
+        subscriptions = ids;
+        DebugEvents.post(DebugEvents.INFO, "SimDispatcher: %d active SIMs", ids.length);
+    }
+
+    /**
+     * Remembers which SIM fromNumber texted us on, so replies go out from the number they wrote to.
+     */
+    public void received(final String fromNumber, final int subscriptionId) {
+        if (sticky && fromNumber != null && subscriptionId != Route.ANY_SUBSCRIPTION)
+            synchronized (assigned) {
+                assigned.put(fromNumber, subscriptionId);
+            }
+    }
+
+    /**
+     * Pins toNumber to the SIM returned until release is called for this text.
+     *
+     * @return SIM to send a text to toNumber from, Route.ANY_SUBSCRIPTION for the default one if there's no choice
+     */
+    public int pick(final String toNumber) {
+        synchronized (pinned) {
+            Pin pin = pinned.get(toNumber);
+            if (pin == null) {
+                pin = new Pin();
+                pinned.put(toNumber, pin);
+            } else if (isActive(pin.subscriptionId)) {
+                ++pin.texts;
+                return pin.subscriptionId;
+            }
+            // new, or its SIM went away and order is lost anyway
+            pin.subscriptionId = choose(toNumber);
+            ++pin.texts;
+            return pin.subscriptionId;
+        }
+    }
+
+    /**
+     * Pins toNumber to subscriptionId until release is called for this text, like pick did.  For a retry, the oldest
+     * text to toNumber now, so what's picked for them after it goes out after it.
+     */
+    public void pin(final String toNumber, final int subscriptionId) {
+        synchronized (pinned) {
+            Pin pin = pinned.get(toNumber);
+            if (pin == null) {
+                pin = new Pin();
+                pinned.put(toNumber, pin);
+            }
+            pin.subscriptionId = subscriptionId;
+            ++pin.texts;
+        }
+    }
+
+    /**
+     * A text to toNumber that pick or pin returned a SIM for was sent, or won't be.
+     */
+    public void release(final String toNumber) {
+        synchronized (pinned) {
+            final Pin pin = pinned.get(toNumber);
+            if (pin != null && --pin.texts <= 0)
+                pinned.remove(toNumber);
+        }
+    }
+
+    private boolean isActive(final int subscriptionId) {
+        final int[] subscriptions = this.subscriptions;
+        return subscriptionId == Route.ANY_SUBSCRIPTION ? subscriptions.length < 2 : contains(subscriptions, subscriptionId);
+    }
+
+    private int choose(final String toNumber) {
+        final int[] subscriptions = this.subscriptions;
+        if (subscriptions.length < 2)
+            return Route.ANY_SUBSCRIPTION;
+        final boolean sticky = this.sticky;
+        if (sticky) {
+            final Integer previous;
+            synchronized (assigned) {
+                previous = assigned.get(toNumber);
+            }
+            if (previous != null && contains(subscriptions, previous))
+                return previous;
+        }
+        final SmsSender sender = SmsSender.getInstance();
+        int best = subscriptions[0];
+        double bestScore = Double.MAX_VALUE;
+        for (final int subscriptionId : subscriptions) {
+            final int depth = sender.getQueueDepth(subscriptionId);
+            // a SIM without samples yet scores 0 and gets the next text, which gives it one
+            final double score = byLatency ? (depth + 1) * (double) sender.getSendLatencyNanos(subscriptionId) : depth;
+            if (score < bestScore) {
+                best = subscriptionId;
+                bestScore = score;
+            }
+        }
+        if (sticky)
+            synchronized (assigned) {
+                assigned.put(toNumber, best);
+            }
+        return best;
+    }
+
+    private static boolean contains(final int[] array, final int value) {
+        for (final int i : array)
+            if (i == value)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.moparisthebest.sms2xmpp.Constants.SMS_ENCODING_KEY;
+import static com.moparisthebest.sms2xmpp.Constants.SMS_ENCODING_OVERRIDES_KEY;
+
+/**
+ * Picks what body actually goes to the radio so it takes as few segments as possible.
+ *
+ * A body made only of GSM 03.38 characters goes out 7-bit, 160 characters in one segment or 153 per part, anything
+ * else makes the whole text UCS-2, 70 or 67 per part.  XMPP clients love smart quotes, dashes and ellipses, so with the
+ * TRANSLITERATE policy those are replaced by their GSM-7 look-alikes whenever that makes the whole body fit GSM-7.
+ * Real non-GSM characters like emoji are never touched, the body then goes out exactly as written.  Immutable, so
+ * SmsSender can swap in a new one whenever the preferences change.
+ */
+public final class SmsEncoder {
+
+    public static final String EXACT = "exact", TRANSLITERATE = "transliterate";
+
+    public static final SmsEncoder DEFAULT = new SmsEncoder(TRANSLITERATE, Collections.<String, String>emptyMap());
+
+    private static final int GSM_SINGLE = 160, GSM_MULTI = 153, UCS2_SINGLE = 70, UCS2_MULTI = 67;
+
+    private static final String GSM_BASIC = "@£$¥èéùìòÇ\nØø\rÅåΔ_ΦΓΛΩΠΨΣΘΞÆæßÉ !\"#¤%&'()*+,-./0123456789:;<=>?" +
+            "¡ABCDEFGHIJKLMNOPQRSTUVWXYZÄÖÑÜ§¿abcdefghijklmnopqrstuvwxyzäöñüà";
+    // each takes an escape septet plus its own
+    private static final String GSM_EXTENSION = "\f^{}\\[~]|€";
+
+    // septets per char for everything below TABLE_SIZE, 0 if it isn't GSM-7
+    private static final int TABLE_SIZE = 0x400;
+    private static final byte[] SEPTETS = new byte[TABLE_SIZE];
+    private static final String[] LOOK_ALIKES = new String[0x2030 - 0x2000];
+
+    static {
+        for (int i = 0; i < GSM_BASIC.length(); ++i)
+            SEPTETS[GSM_BASIC.charAt(i)] = 1;
+        for (int i = 0; i < GSM_EXTENSION.length(); ++i)
+            if (GSM_EXTENSION.charAt(i) < TABLE_SIZE)
+                SEPTETS[GSM_EXTENSION.charAt(i)] = 2;
+        for (char c = '\u2010'; c <= '\u2015'; ++c)
+            LOOK_ALIKES[c - 0x2000] = "-"; // hyphens and dashes
+        for (char c = '\u2018'; c <= '\u201B'; ++c)
+            LOOK_ALIKES[c - 0x2000] = "'";
+        for (char c = '\u201C'; c <= '\u201F'; ++c)
+            LOOK_ALIKES[c - 0x2000] = "\"";
+        for (char c = '\u2000'; c <= '\u200A'; ++c)
+            LOOK_ALIKES[c - 0x2000] = " "; // typographic spaces
+        LOOK_ALIKES['\u2022' - 0x2000] = "*"; // bullet
+        LOOK_ALIKES['\u2026' - 0x2000] = "..."; // ellipsis
+    }
+
+    /**
+     * What encode decided, segment counts are predictions, the radio does the real split.
+     */
+    public static final class Encoded {
+        public final String body;
+        public final boolean gsm7;
+        public final int segments;
+        // what the body would have taken as written
+        public final int originalSegments;
+
+        Encoded(final String body, final boolean gsm7, final int segments, final int originalSegments) {
+            this.body = body;
+            this.gsm7 = gsm7;
+            this.segments = segments;
+            this.originalSegments = originalSegments;
+        }
+    }
+
+    private final String defaultPolicy;
+    private final Map<String, String> policies;
+
+    public SmsEncoder(final String defaultPolicy, final Map<String, String> policies) {
+        this.defaultPolicy = defaultPolicy;
+        this.policies = policies;
+    }
+
+    /**
+     * SMS_ENCODING_KEY is the policy for everyone, SMS_ENCODING_OVERRIDES_KEY has one "number=policy" per line.
+     */
+    public static SmsEncoder fromPreferences(final SharedPreferences prefs) {
+        final String defaultPolicy = EXACT.equals(prefs.getString(SMS_ENCODING_KEY, TRANSLITERATE)) ? EXACT : TRANSLITERATE;
+        final String overrides = prefs.getString(SMS_ENCODING_OVERRIDES_KEY, null);
+        if (overrides == null || overrides.trim().isEmpty())
+            return new SmsEncoder(defaultPolicy, Collections.<String, String>emptyMap());
+        final Map<String, String> policies = new HashMap<>();
+        for (final String line : overrides.split("\n")) {
+            final int equals = line.indexOf('=');
+            final String policy = equals < 0 ? null : line.substring(equals + 1).trim();
+            if (EXACT.equals(policy) || TRANSLITERATE.equals(policy))
+                policies.put(line.substring(0, equals).trim(), policy);
+            else if (!line.trim().isEmpty())
+                Log.e(Constants.TAG, "ignoring invalid encoding override: " + line);
+        }
+        return new SmsEncoder(defaultPolicy, policies);
+    }
+
+    public String policyFor(final String toNumber) {
+        final String policy = policies.get(toNumber);
+        return policy == null ? defaultPolicy : policy;
+    }
+
+    public Encoded encode(final String toNumber, final String body) {
+        return encode(body, TRANSLITERATE.equals(policyFor(toNumber)));
+    }
+
+    /**
+     * One pass over body, only copying it if a look-alike actually gets replaced.
+     */
+    public static Encoded encode(final String body, final boolean transliterate) {
+        final int length = body.length();
+        int septets = 0;
+        boolean gsm7 = true, lookAlikesOnly = true;
+        StringBuilder replaced = null;
+        for (int i = 0; i < length; ++i) {
+            final char c = body.charAt(i);
+            final int cost = septets(c);
+            if (cost > 0) {
+                septets += cost;
+                if (replaced != null)
+                    replaced.append(c);
+                continue;
+            }
+            gsm7 = false;
+            final String lookAlike = c >= 0x2000 && c < 0x2030 ? LOOK_ALIKES[c - 0x2000] : null;
+            if (!transliterate || lookAlike == null) {
+                lookAlikesOnly = false;
+                break; // UCS-2 no matter what
+            }
+            septets += lookAlike.length();
+            if (replaced == null)
+                replaced = new StringBuilder(length + 8).append(body, 0, i);
+            replaced.append(lookAlike);
+        }
+        final int ucs2Segments = segments(length, UCS2_SINGLE, UCS2_MULTI);
+        if (gsm7) {
+            final int segments = segments(septets, GSM_SINGLE, GSM_MULTI);
+            return new Encoded(body, true, segments, segments);
+        }
+        if (lookAlikesOnly)
+            return new Encoded(replaced.toString(), true, segments(septets, GSM_SINGLE, GSM_MULTI), ucs2Segments);
+        return new Encoded(body, false, ucs2Segments, ucs2Segments);
+    }
+
+    private static int septets(final char c) {
+        if (c < TABLE_SIZE)
+            return SEPTETS[c];
+        return c == '\u20AC' ? 2 : 0; // euro sign, the only extension char outside the table
+    }
+
+    private static int segments(final int units, final int single, final int multi) {
+        if (units <= single)
+            return 1;
+        return (units + multi - 1) / multi;
+    }
+}
@@ -0,0 +1,49 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.annotation.SuppressLint;
+import android.app.PendingIntent;
+import android.os.Build;
+import android.telephony.SmsManager;
+
+import java.util.ArrayList;
+
+/**
+ * Whatever SmsSender finally hands texts to, SmsManager unless something else is swapped in with SmsSender.setRadio,
+ * like an in-memory stand-in to load the bridge without a phone.
+ */
+public interface SmsRadio {
+
+    ArrayList<String> divideMessage(int subscriptionId, String body);
+
+    /**
+     * @param sentIntents     one per part, or null
+     * @param deliveryIntents one per part, or null
+     */
+    void send(int subscriptionId, String toNumber, ArrayList<String> parts,
+              ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents);
+
+    SmsRadio SMS_MANAGER = new SmsRadio() {
+        @Override
+        public ArrayList<String> divideMessage(final int subscriptionId, final String body) {
+            return getSmsManager(subscriptionId).divideMessage(body);
+        }
+
+        @Override
+        public void send(final int subscriptionId, final String toNumber, final ArrayList<String> parts,
+                         final ArrayList<PendingIntent> sentIntents, final ArrayList<PendingIntent> deliveryIntents) {
+            final SmsManager manager = getSmsManager(subscriptionId);
+            if (parts.size() > 1)
+                manager.sendMultipartTextMessage(toNumber, null, parts, sentIntents, deliveryIntents);
+            else
+                manager.sendTextMessage(toNumber, null, parts.get(0),
+                        sentIntents == null ? null : sentIntents.get(0), deliveryIntents == null ? null : deliveryIntents.get(0));
+        }
+
+        @SuppressLint("NewApi")
+        private SmsManager getSmsManager(final int subscriptionId) {
+            if (subscriptionId == Route.ANY_SUBSCRIPTION || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1)
+                return SmsManager.getDefault();
+            return SmsManager.getSmsManagerForSubscriptionId(subscriptionId);
+        }
+    };
+}
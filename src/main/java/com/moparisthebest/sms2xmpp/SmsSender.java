@@ -0,0 +1,400 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.app.PendingIntent;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One long-lived thread per SIM, a lane, that hands outgoing texts to SmsManager.
+ *
+ * Texts wait in a bounded FIFO queue per lane, so callers get back-pressure instead of spawning unbounded threads, and
+ * since each lane has only one consumer every recipient sees their texts in the order they were queued on it.  Each
+ * lane is paced by its own token bucket so every SIM stays under its carrier's rate limit.  Texts for routes not tied
+ * to a SIM go to the lane SimDispatcher picks, which keeps a recipient on one lane while it has texts there.  A retry goes back to the head of its lane and is held for its backoff,
+ * along with every text to the same recipient the lane takes meanwhile, so it stays ahead of them while texts to
+ * everyone else go on.  Throughput and latency are counted in Metrics, and per lane.  Every queued text keeps the current BatchScheduler batch open until it's submitted, pacing
+ * included.
+ */
+public final class SmsSender {
+
+    public static final int QUEUE_CAPACITY = 256;
+    public static final float DEFAULT_RATE_PER_SECOND = 1;
+    public static final int DEFAULT_BURST = 5;
+
+    // how long a binder thread may block waiting for room in the queue before we give up
+    private static final long OFFER_TIMEOUT_MS = 5000;
+
+    private static final SmsSender instance = new SmsSender();
+
+    public static SmsSender getInstance() {
+        return instance;
+    }
+
+    private static final class OutgoingSms {
+        final String toNumber, body;
+        final int subscriptionId, requestId;
+        final long queuedNanos = System.nanoTime();
+        // not submitted before this, for retries
+        final long notBeforeNanos;
+        // SimDispatcher pinned toNumber to the lane for this text
+        final boolean pinned;
+
+        OutgoingSms(final String toNumber, final String body, final int subscriptionId, final int requestId,
+                    final long delayMillis, final boolean pinned) {
+            this.toNumber = toNumber;
+            this.body = body;
+            this.subscriptionId = subscriptionId;
+            this.requestId = requestId;
+            this.notBeforeNanos = queuedNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            this.pinned = pinned;
+        }
+    }
+
+    private final class Lane {
+        final int subscriptionId;
+        final BlockingDeque<OutgoingSms> queue = new LinkedBlockingDeque<>(QUEUE_CAPACITY);
+        final TokenBucket bucket;
+        final AtomicLong submitted = new AtomicLong(), submitFailed = new AtomicLong(), segments = new AtomicLong(),
+                sentConfirmed = new AtomicLong(), sendFailed = new AtomicLong();
+        // moving average of submitting until every part's sent intent came back, 0 until there is a sample
+        final AtomicLong sendLatencyNanos = new AtomicLong();
+        // only touched by the lane's thread: by recipient, a retry waiting out its backoff and what's queued after it
+        final Map<String, ArrayDeque<OutgoingSms>> held = new HashMap<>();
+        // texts in held, written by the lane's thread
+        volatile int heldCount = 0;
+        private Thread thread = null;
+
+        Lane(final int subscriptionId) {
+            this.subscriptionId = subscriptionId;
+            synchronized (SmsSender.this) {
+                bucket = new TokenBucket(ratePerSecond, burst);
+            }
+        }
+
+        synchronized void ensureStarted() {
+            if (thread != null)
+                return;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runLoop(Lane.this);
+                }
+            }, subscriptionId == Route.ANY_SUBSCRIPTION ? "SmsSender" : "SmsSender " + subscriptionId);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void exited() {
+            thread = null;
+        }
+    }
+
+    private final ConcurrentMap<Integer, Lane> lanes = new ConcurrentHashMap<>();
+
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    private volatile SmsRadio radio = SmsRadio.SMS_MANAGER;
+    private volatile SmsEncoder encoder = SmsEncoder.DEFAULT;
+
+    // guarded by this, what new lanes start with
+    private float ratePerSecond = DEFAULT_RATE_PER_SECOND;
+    private int burst = DEFAULT_BURST;
+
+    private SmsSender() {
+    }
+
+    private Lane lane(final int subscriptionId) {
+        Lane lane = lanes.get(subscriptionId);
+        if (lane == null) {
+            final Lane newLane = new Lane(subscriptionId);
+            lane = lanes.putIfAbsent(subscriptionId, newLane);
+            if (lane == null)
+                lane = newLane;
+        }
+        return lane;
+    }
+
+    public void setRadio(final SmsRadio radio) {
+        this.radio = radio;
+    }
+
+    public void setEncoder(final SmsEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    public SmsEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * Per SIM, so the total scales with the number of SIMs.
+     */
+    public void setRate(final float perSecond, final int burst) {
+        synchronized (this) {
+            this.ratePerSecond = perSecond;
+            this.burst = burst;
+        }
+        for (final Lane lane : lanes.values())
+            lane.bucket.setRate(perSecond, burst);
+    }
+
+    /**
+     * Queues a text, blocking for a while if the queue is full.
+     *
+     * @param subscriptionId SIM to send from, Route.ANY_SUBSCRIPTION to let SimDispatcher pick one
+     * @param requestId      from DeliveryTracker.track, or DeliveryTracker.NO_REQUEST to send untracked
+     * @return false if the queue stayed full and the text was not queued
+     */
+    public boolean send(final String toNumber, final String body, final int subscriptionId, final int requestId) {
+        final boolean pick = subscriptionId == Route.ANY_SUBSCRIPTION;
+        final Lane lane = lane(pick ? SimDispatcher.getInstance().pick(toNumber) : subscriptionId);
+        lane.ensureStarted();
+        // ends once the lane submitted it, before it's queued so the lane can't get there first
+        BatchScheduler.getInstance().begin(1);
+        final OutgoingSms sms = new OutgoingSms(toNumber, body, lane.subscriptionId, requestId, 0, pick);
+        boolean queued;
+        try {
+            queued = lane.queue.offer(sms, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if (!queued) {
+            finished(sms);
+            Metrics.get().smsRejected.increment();
+            return false;
+        }
+        Metrics.get().smsQueued.increment();
+        updateMax(maxQueueDepth, lane.queue.size());
+        return true;
+    }
+
+    /**
+     * Queues a text that failed to send again, at the head of the lane it went out on, to be sent after delayMillis.
+     * Texts to the same recipient queued behind it go after it, the rest of the lane doesn't wait.
+     *
+     * @param subscriptionId lane it went out on, as passed to DeliveryTracker.intentsFor
+     * @return false if the lane is full, never blocks
+     */
+    public boolean retry(final String toNumber, final String body, final int subscriptionId, final int requestId,
+                         final long delayMillis) {
+        final Lane lane = lane(subscriptionId);
+        lane.ensureStarted();
+        BatchScheduler.getInstance().begin(1);
+        SimDispatcher.getInstance().pin(toNumber, subscriptionId);
+        final OutgoingSms sms = new OutgoingSms(toNumber, body, subscriptionId, requestId, delayMillis, true);
+        if (!lane.queue.offerFirst(sms)) {
+            finished(sms);
+            Metrics.get().smsRejected.increment();
+            return false;
+        }
+        Metrics.get().smsQueued.increment();
+        updateMax(maxQueueDepth, lane.queue.size());
+        return true;
+    }
+
+    private void runLoop(final Lane lane) {
+        while (true) {
+            OutgoingSms sms = null;
+            try {
+                sms = next(lane);
+                lane.bucket.acquire();
+            } catch (InterruptedException e) {
+                Log.e(Constants.TAG, "SmsSender interrupted, exiting", e);
+                abandon(lane, sms);
+                lane.exited();
+                return;
+            }
+            boolean submitting = false;
+            try {
+                final SmsRadio radio = this.radio;
+                final SmsEncoder.Encoded encoded = encoder.encode(sms.toNumber, sms.body);
+                if (encoded.body != sms.body)
+                    Metrics.get().smsTransliterated.increment();
+                Metrics.get().segmentsSaved.add(encoded.originalSegments - encoded.segments);
+                final ArrayList<String> parts = radio.divideMessage(sms.subscriptionId, encoded.body);
+                Metrics.get().smsSegments.add(parts.size());
+                lane.segments.addAndGet(parts.size());
+                final ArrayList<PendingIntent>[] intents = DeliveryTracker.getInstance().intentsFor(sms.requestId, parts.size(), sms.subscriptionId);
+                submitting = true;
+                radio.send(sms.subscriptionId, sms.toNumber, parts,
+                        intents == null ? null : intents[0], intents == null ? null : intents[1]);
+                Metrics.get().smsSubmitted.increment();
+                lane.submitted.incrementAndGet();
+                TraceRecorder.record(TraceFormat.SMS_SUBMITTED, parts.size(), sms.requestId);
+                Metrics.get().outboundDelivery.recordSince(sms.queuedNanos);
+            } catch (Exception e) {
+                Metrics.get().smsSubmitFailed.increment();
+                lane.submitFailed.incrementAndGet();
+                TraceRecorder.record(TraceFormat.SMS_SUBMIT_FAILED, 0, sms.requestId);
+                Log.e(Constants.TAG, "SmsSender: send failed", e);
+                if (submitting)
+                    DeliveryTracker.getInstance().onSent(sms.requestId, SmsManager.RESULT_ERROR_GENERIC_FAILURE);
+                else // encoding it would throw again on every retry
+                    DeliveryTracker.getInstance().fail(sms.requestId, "could not encode: " + e);
+            } finally {
+                finished(sms);
+            }
+        }
+    }
+
+    /**
+     * Fails sms, if there is one, and every text lane holds back, for a lane thread that is exiting.  What's still in
+     * the queue is left for the next thread.
+     */
+    private static void abandon(final Lane lane, final OutgoingSms sms) {
+        final ArrayList<OutgoingSms> texts = new ArrayList<>();
+        if (sms != null)
+            texts.add(sms);
+        for (final ArrayDeque<OutgoingSms> recipient : lane.held.values())
+            texts.addAll(recipient);
+        lane.held.clear();
+        lane.heldCount = 0;
+        for (final OutgoingSms text : texts) {
+            Metrics.get().smsSubmitFailed.increment();
+            lane.submitFailed.incrementAndGet();
+            DeliveryTracker.getInstance().fail(text.requestId, "SMS sender stopped");
+            finished(text);
+        }
+    }
+
+    /**
+     * sms left the lane, submitted or not.
+     */
+    private static void finished(final OutgoingSms sms) {
+        if (sms.pinned)
+            SimDispatcher.getInstance().release(sms.toNumber);
+        BatchScheduler.getInstance().end();
+    }
+
+    /**
+     * Takes the next text that may go out now, holding back retries that still have to wait along with the texts to
+     * their recipient taken after them.
+     */
+    private static OutgoingSms next(final Lane lane) throws InterruptedException {
+        while (true) {
+            final long now = System.nanoTime();
+            long until = Long.MAX_VALUE;
+            for (final Iterator<ArrayDeque<OutgoingSms>> it = lane.held.values().iterator(); it.hasNext(); ) {
+                final ArrayDeque<OutgoingSms> recipient = it.next();
+                final long wait = recipient.peekFirst().notBeforeNanos - now;
+                if (wait <= 0) {
+                    final OutgoingSms sms = recipient.pollFirst();
+                    if (recipient.isEmpty())
+                        it.remove();
+                    --lane.heldCount;
+                    return sms;
+                }
+                until = Math.min(until, wait);
+            }
+            final OutgoingSms sms;
+            if (lane.heldCount >= QUEUE_CAPACITY) {
+                // holding as much as the queue takes already, leave the rest there for back-pressure
+                TimeUnit.NANOSECONDS.sleep(until);
+                continue;
+            } else if (until == Long.MAX_VALUE) {
+                sms = lane.queue.take();
+            } else if ((sms = lane.queue.poll(until, TimeUnit.NANOSECONDS)) == null) {
+                continue;
+            }
+            ArrayDeque<OutgoingSms> recipient = lane.held.get(sms.toNumber);
+            if (recipient == null) {
+                if (sms.notBeforeNanos - System.nanoTime() <= 0)
+                    return sms;
+                recipient = new ArrayDeque<>();
+                lane.held.put(sms.toNumber, recipient);
+            }
+            recipient.addLast(sms);
+            ++lane.heldCount;
+        }
+    }
+
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Called by DeliveryTracker once every part of a text sent from subscriptionId was sent.
+     */
+    public void sent(final int subscriptionId, final long latencyNanos) {
+        final Lane lane = lanes.get(subscriptionId);
+        if (lane == null)
+            return;
+        lane.sentConfirmed.incrementAndGet();
+        long current;
+        do {
+            current = lane.sendLatencyNanos.get();
+        } while (!lane.sendLatencyNanos.compareAndSet(current, current == 0 ? latencyNanos : current + (latencyNanos - current) / 8));
+    }
+
+    /**
+     * Called by DeliveryTracker when a text from subscriptionId failed to go out.
+     */
+    public void sendFailed(final int subscriptionId) {
+        final Lane lane = lanes.get(subscriptionId);
+        if (lane != null)
+            lane.sendFailed.incrementAndGet();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (final Lane lane : lanes.values())
+            depth += lane.queue.size() + lane.heldCount;
+        return depth;
+    }
+
+    public int getQueueDepth(final int subscriptionId) {
+        final Lane lane = lanes.get(subscriptionId);
+        return lane == null ? 0 : lane.queue.size() + lane.heldCount;
+    }
+
+    /**
+     * @return moving average of how long texts from subscriptionId took to be sent, 0 if none were yet
+     */
+    public long getSendLatencyNanos(final int subscriptionId) {
+        final Lane lane = lanes.get(subscriptionId);
+        return lane == null ? 0 : lane.sendLatencyNanos.get();
+    }
+
+    /**
+     * Appends {"subscriptionId":{counters},...} for every lane used so far, "default" for Route.ANY_SUBSCRIPTION.
+     */
+    public void appendLanesJson(final StringBuilder sb) {
+        sb.append('{');
+        boolean first = true;
+        for (final Lane lane : lanes.values()) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append('"').append(lane.subscriptionId == Route.ANY_SUBSCRIPTION ? "default" : String.valueOf(lane.subscriptionId))
+                    .append("\":{\"queueDepth\":").append(lane.queue.size() + lane.heldCount)
+                    .append(",\"submitted\":").append(lane.submitted.get())
+                    .append(",\"submitFailed\":").append(lane.submitFailed.get())
+                    .append(",\"segments\":").append(lane.segments.get())
+                    .append(",\"sentConfirmed\":").append(lane.sentConfirmed.get())
+                    .append(",\"sendFailed\":").append(lane.sendFailed.get())
+                    .append(",\"sendLatencyMs\":").append(TimeUnit.NANOSECONDS.toMillis(lane.sendLatencyNanos.get()))
+                    .append('}');
+        }
+        sb.append('}');
+    }
+
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+}
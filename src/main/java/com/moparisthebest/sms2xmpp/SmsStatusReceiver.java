@@ -0,0 +1,22 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the sent and delivered PendingIntents DeliveryTracker attaches to every part of an outgoing text.
+ */
+public class SmsStatusReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final int requestId = DeliveryTracker.requestId(intent);
+        if (requestId == DeliveryTracker.NO_REQUEST)
+            return;
+        if (DeliveryTracker.ACTION_SMS_SENT.equals(intent.getAction()))
+            DeliveryTracker.getInstance().onSent(requestId, getResultCode());
+        else if (DeliveryTracker.ACTION_SMS_DELIVERED.equals(intent.getAction()))
+            DeliveryTracker.getInstance().onDelivered(requestId, intent.getByteArrayExtra("pdu"));
+    }
+}
@@ -0,0 +1,298 @@
+package com.moparisthebest.sms2xmpp;
+
+/**
+ * Builds the raw XML stanzas we hand to the XMPP client.
+ *
+ * One instance lives per thread and its StringBuilder is recycled between stanzas, so building a stanza costs
+ * exactly one String allocation (the result) instead of one per concatenated fragment.  Text content and attribute
+ * values are XML escaped in a single pass.
+ *
+ * In direct mode, for routes through ComponentTransport, stanzas are written as the gateway itself sends them instead
+ * of wrapped for xmpp-echo-self, and without xmlns since they go on a jabber:component:accept stream.
+ */
+public final class StanzaWriter {
+
+    public static final String ECHO_NS = "https://code.moparisthebest.com/moparisthebest/xmpp-echo-self";
+
+    // don't let one huge stanza pin a huge buffer to a thread forever
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+    private static final int INITIAL_CAPACITY = 512;
+
+    private static final ThreadLocal<StanzaWriter> WRITERS = new ThreadLocal<StanzaWriter>() {
+        @Override
+        protected StanzaWriter initialValue() {
+            return new StanzaWriter();
+        }
+    };
+
+    private StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
+    private boolean direct = false;
+
+    private StanzaWriter() {
+    }
+
+    /**
+     * @return this thread's writer, emptied and ready for a new stanza
+     */
+    public static StanzaWriter get() {
+        final StanzaWriter writer = WRITERS.get();
+        writer.reset();
+        return writer;
+    }
+
+    /**
+     * @return this thread's writer, emptied and in direct mode if route is direct
+     */
+    public static StanzaWriter get(final Route route) {
+        return get().direct(route.isDirect());
+    }
+
+    /**
+     * Only switch before appending the first stanza, one batch can't mix both.
+     */
+    public StanzaWriter direct(final boolean direct) {
+        this.direct = direct;
+        return this;
+    }
+
+    private void reset() {
+        if (sb.capacity() > MAX_RETAINED_CAPACITY)
+            sb = new StringBuilder(INITIAL_CAPACITY);
+        else
+            sb.setLength(0);
+        direct = false;
+    }
+
+    /**
+     * Appends an SMS received from fromNumber as a message wrapped in an echo/forwarded envelope, which the
+     * xmpp-echo-self component bounces back to accountJid as if it came from fromNumber@gateway.
+     *
+     * @param timestampMillis when the SMS was sent, written as urn:xmpp:delay, skipped if <= 0
+     */
+    public StanzaWriter forwardedMessage(final String fromNumber, final String gateway, final String accountJid,
+                                         final String body, final long timestampMillis) {
+        return forwardedMessage(fromNumber, gateway, accountJid, body, null, null, timestampMillis);
+    }
+
+    /**
+     * @param nick sender's name from the address book, written as XEP-0172 nick, skipped if null
+     */
+    public StanzaWriter forwardedMessage(final String fromNumber, final String gateway, final String accountJid,
+                                         final String body, final String nick, final long timestampMillis) {
+        return forwardedMessage(fromNumber, gateway, accountJid, body, nick, null, timestampMillis);
+    }
+
+    private StanzaWriter forwardedMessage(final String fromNumber, final String gateway, final String accountJid,
+                                          final String body, final String nick, final String oobUrl,
+                                          final long timestampMillis) {
+        openEnvelope(fromNumber, gateway, accountJid);
+        if (!direct)
+            appendDelay(timestampMillis);
+        innerHeader(fromNumber, gateway, accountJid, "chat");
+        sb.append("><body>");
+        appendEscaped(sb, body);
+        sb.append("</body>");
+        if (nick != null) {
+            sb.append("<nick xmlns=\"http://jabber.org/protocol/nick\">");
+            appendEscaped(sb, nick);
+            sb.append("</nick>");
+        }
+        if (oobUrl != null) {
+            sb.append("<x xmlns=\"jabber:x:oob\"><url>");
+            appendEscaped(sb, oobUrl);
+            sb.append("</url></x>");
+        }
+        if (direct)
+            appendDelay(timestampMillis);
+        sb.append("</message>");
+        closeEnvelope();
+        return this;
+    }
+
+    /**
+     * Appends a link to an attachment received from fromNumber, bounced like forwardedMessage.  The body is the bare
+     * URL and a XEP-0066 element carries it too, which is what clients look for to show it inline.
+     */
+    public StanzaWriter forwardedMedia(final String fromNumber, final String gateway, final String accountJid,
+                                       final String url, final long timestampMillis) {
+        return forwardedMessage(fromNumber, gateway, accountJid, url, null, url, timestampMillis);
+    }
+
+    /**
+     * Appends an XEP-0184 receipt for messageId, which accountJid sent to toNumber@gateway, wrapped so the
+     * xmpp-echo-self component bounces it back to accountJid as if it came from toNumber@gateway.
+     */
+    public StanzaWriter forwardedReceipt(final String toNumber, final String gateway, final String accountJid,
+                                         final String messageId) {
+        forwardedHeader(toNumber, gateway, accountJid, "chat");
+        sb.append("><received xmlns=\"urn:xmpp:receipts\" id=\"");
+        appendEscaped(sb, messageId);
+        sb.append("\"/></message>");
+        closeEnvelope();
+        return this;
+    }
+
+    /**
+     * Appends an error message of type error, bounced like forwardedReceipt, for messageId if known.
+     */
+    public StanzaWriter forwardedError(final String toNumber, final String gateway, final String accountJid,
+                                       final String messageId, final String text) {
+        forwardedHeader(toNumber, gateway, accountJid, "error");
+        if (messageId != null) {
+            sb.append(" id=\"");
+            appendEscaped(sb, messageId);
+            sb.append('"');
+        }
+        sb.append("><error type=\"wait\"><recipient-unavailable xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/>")
+                .append("<text xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\">");
+        appendEscaped(sb, text);
+        sb.append("</text></error></message>");
+        closeEnvelope();
+        return this;
+    }
+
+    /**
+     * Appends a headline from probe@gateway to accountJid, for GatewaySelector to time its way back.  The id is the body
+     * too, xmpp-api hands plugins the body of a message but not its stanza id.
+     */
+    public StanzaWriter forwardedProbe(final String gateway, final String accountJid, final String id) {
+        forwardedHeader("probe", gateway, accountJid, "headline");
+        sb.append(" id=\"");
+        appendEscaped(sb, id);
+        sb.append("\"><body>");
+        appendEscaped(sb, id);
+        sb.append("</body></message>");
+        closeEnvelope();
+        return this;
+    }
+
+    // everything up to the open inner message tag, still missing its closing '>'
+    private void forwardedHeader(final String number, final String gateway, final String accountJid, final String type) {
+        openEnvelope(number, gateway, accountJid);
+        innerHeader(number, gateway, accountJid, type);
+    }
+
+    // the outer message to number@gateway that xmpp-echo-self bounces, nothing in direct mode
+    private void openEnvelope(final String number, final String gateway, final String accountJid) {
+        if (direct)
+            return;
+        sb.append("<message xmlns=\"jabber:client\" to=\"");
+        appendEscaped(sb, number);
+        sb.append('@');
+        appendEscaped(sb, gateway);
+        sb.append("\" type=\"normal\" from=\"");
+        appendEscaped(sb, accountJid);
+        sb.append("\"><echo xmlns=\"").append(ECHO_NS).append("\"/><forwarded xmlns=\"urn:xmpp:forward:0\">");
+    }
+
+    private void closeEnvelope() {
+        if (!direct)
+            sb.append("</forwarded></message>");
+    }
+
+    // the message as accountJid gets it, from number@gateway, still missing its closing '>'
+    private void innerHeader(final String number, final String gateway, final String accountJid, final String type) {
+        sb.append(direct ? "<message from=\"" : "<message xmlns=\"jabber:client\" from=\"");
+        appendEscaped(sb, number);
+        sb.append('@');
+        appendEscaped(sb, gateway);
+        sb.append("\" type=\"").append(type).append("\" to=\"");
+        appendEscaped(sb, accountJid);
+        sb.append('"');
+    }
+
+    private void appendDelay(final long timestampMillis) {
+        if (timestampMillis > 0) {
+            sb.append("<delay xmlns=\"urn:xmpp:delay\" stamp=\"");
+            appendTimestamp(sb, timestampMillis);
+            sb.append("\"/>");
+        }
+    }
+
+    public int length() {
+        return sb.length();
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+    /**
+     * Escapes the 5 XML special characters and replaces characters XML 1.0 can't carry at all with U+FFFD.
+     */
+    public static void appendEscaped(final StringBuilder sb, final String s) {
+        final int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; ++i) {
+            final char c = s.charAt(i);
+            final String replacement;
+            switch (c) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&apos;";
+                    break;
+                default:
+                    if ((c < 0x20 && c != '\t' && c != '\n' && c != '\r') || c == 0xFFFE || c == 0xFFFF)
+                        replacement = "\uFFFD";
+                    else
+                        continue;
+            }
+            sb.append(s, start, i).append(replacement);
+            start = i + 1;
+        }
+        sb.append(s, start, len);
+    }
+
+    /**
+     * Appends millis as an XEP-0082 UTC DateTime, for example 2017-03-05T18:23:07.250Z, without going through
+     * Calendar or SimpleDateFormat.
+     */
+    public static void appendTimestamp(final StringBuilder sb, final long millis) {
+        final long days = floorDiv(millis, 86400000L);
+        final int msOfDay = (int) (millis - days * 86400000L);
+
+        // civil-from-days, see http://howardhinnant.github.io/date_algorithms.html
+        final long z = days + 719468;
+        final long era = (z >= 0 ? z : z - 146096) / 146097;
+        final long doe = z - era * 146097;
+        final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        final long mp = (5 * doy + 2) / 153;
+        final int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        final int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        final int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+        pad(sb, year, 4).append('-');
+        pad(sb, month, 2).append('-');
+        pad(sb, day, 2).append('T');
+        pad(sb, msOfDay / 3600000, 2).append(':');
+        pad(sb, (msOfDay / 60000) % 60, 2).append(':');
+        pad(sb, (msOfDay / 1000) % 60, 2).append('.');
+        pad(sb, msOfDay % 1000, 3).append('Z');
+    }
+
+    private static long floorDiv(final long x, final long y) {
+        final long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+
+    private static StringBuilder pad(final StringBuilder sb, final int value, int width) {
+        for (int v = value; v > 9 && width > 1; v /= 10)
+            --width;
+        while (--width > 0)
+            sb.append('0');
+        return sb.append(value);
+    }
+}
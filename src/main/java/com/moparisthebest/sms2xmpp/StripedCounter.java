@@ -0,0 +1,36 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter many threads can bump without fighting over one cache line, each thread adds into its own padded
+ * stripe and get() sums them.  Think LongAdder, which Android doesn't have before API 24.
+ */
+public final class StripedCounter {
+
+    private static final int STRIPES = 8; // power of 2
+    // 8 longs == 64 bytes, one cache line per stripe
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripe() {
+        final long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 3)) & (STRIPES - 1)) * PADDING;
+    }
+
+    public void increment() {
+        cells.incrementAndGet(stripe());
+    }
+
+    public void add(final long delta) {
+        cells.addAndGet(stripe(), delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; ++i)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+}
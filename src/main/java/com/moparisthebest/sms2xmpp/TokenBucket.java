@@ -0,0 +1,55 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classic token bucket, refilled continuously at ratePerSecond up to burst tokens.  A rate <= 0 means unlimited.
+ */
+public final class TokenBucket {
+
+    private double tokensPerNano, burst, tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(final double ratePerSecond, final int burst) {
+        setRate(ratePerSecond, burst);
+        this.tokens = this.burst;
+    }
+
+    public synchronized void setRate(final double ratePerSecond, final int burst) {
+        refill(System.nanoTime());
+        this.tokensPerNano = ratePerSecond <= 0 ? 0 : ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        if (tokens > this.burst)
+            tokens = this.burst;
+    }
+
+    private void refill(final long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise how many nanoseconds until one will be available
+     */
+    public synchronized long tryAcquire() {
+        if (tokensPerNano == 0)
+            return 0;
+        refill(System.nanoTime());
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+    }
+
+    /**
+     * Blocks until a token is available and takes it.
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        while ((wait = tryAcquire()) > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
@@ -0,0 +1,54 @@
+package com.moparisthebest.sms2xmpp;
+
+/**
+ * Layout of the trace file TraceRecorder writes and TraceReader, in the test sources, reads, plain Java so the reader
+ * runs on any JVM.
+ *
+ * A HEADER_SIZE header, then CAPACITY records of RECORD_SIZE bytes, all big endian.  A record holds its sequence
+ * number + 1, 0 while it's being written or was never written, System.nanoTime() when it happened, its type, a type
+ * specific value and an id, a salted hash of a phone number or a call id, never message content.
+ */
+public final class TraceFormat {
+
+    public static final int MAGIC = 0x53325854, VERSION = 1;
+
+    // int magic, int version, int capacity, int record size, long salt
+    public static final int HEADER_SIZE = 64;
+    public static final int MAGIC_OFFSET = 0, VERSION_OFFSET = 4, CAPACITY_OFFSET = 8, RECORD_SIZE_OFFSET = 12, SALT_OFFSET = 16;
+
+    public static final int RECORD_SIZE = 32;
+    public static final int SEQ_OFFSET = 0, NANOS_OFFSET = 8, TYPE_OFFSET = 16, VALUE_OFFSET = 20, ID_OFFSET = 24;
+
+    // value: body length, id: sender
+    public static final int SMS_RECEIVED = 1;
+    // value: body length, id: sender
+    public static final int SMS_DUPLICATE = 2;
+    // value: body length, id: sender
+    public static final int SMS_THROTTLED = 3;
+    // value: chars of XML, id: 0, the API_CALL right after it on the same thread is its call
+    public static final int STANZA_SENT = 4;
+    // value: request code, id: call
+    public static final int API_CALL = 5;
+    // value: result code, id: call
+    public static final int API_RESULT = 6;
+    // value: body length, id: recipient
+    public static final int CALLBACK_RECEIVED = 7;
+    // value: segments, id: request
+    public static final int SMS_SUBMITTED = 8;
+    // value: 0, id: request
+    public static final int SMS_SUBMIT_FAILED = 9;
+    // value: result code of one part, id: request
+    public static final int SMS_SENT = 10;
+    // value: 0, id: request
+    public static final int SMS_DELIVERED = 11;
+
+    private static final String[] NAMES = {"?", "SMS_RECEIVED", "SMS_DUPLICATE", "SMS_THROTTLED", "STANZA_SENT",
+            "API_CALL", "API_RESULT", "CALLBACK_RECEIVED", "SMS_SUBMITTED", "SMS_SUBMIT_FAILED", "SMS_SENT", "SMS_DELIVERED"};
+
+    private TraceFormat() {
+    }
+
+    public static String name(final int type) {
+        return type > 0 && type < NAMES.length ? NAMES[type] : "TYPE_" + type;
+    }
+}
@@ -0,0 +1,119 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.moparisthebest.sms2xmpp.TraceFormat.CAPACITY_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.HEADER_SIZE;
+import static com.moparisthebest.sms2xmpp.TraceFormat.ID_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.MAGIC;
+import static com.moparisthebest.sms2xmpp.TraceFormat.MAGIC_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.NANOS_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.RECORD_SIZE;
+import static com.moparisthebest.sms2xmpp.TraceFormat.RECORD_SIZE_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.SALT_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.SEQ_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.TYPE_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.VALUE_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.VERSION;
+import static com.moparisthebest.sms2xmpp.TraceFormat.VERSION_OFFSET;
+
+/**
+ * Always on flight recorder of what the bridge did, for when a message goes missing.
+ *
+ * Events go into a ring of fixed size binary records in a memory-mapped file, the oldest overwritten, so the last
+ * CAPACITY events survive the process being killed and can be pulled off the phone and decoded with TraceReader.
+ * Writers claim a slot with one atomic increment and fill it in place, nothing is allocated or locked.  Phone numbers
+ * are recorded as a hash salted per install, bodies only as their length.
+ */
+public final class TraceRecorder {
+
+    private static final int CAPACITY = 16384;
+
+    private static volatile TraceRecorder instance = null;
+
+    /**
+     * Opens the trace file if it isn't yet, events recorded before are dropped.
+     */
+    public static void open(final Context context) {
+        if (instance != null)
+            return;
+        synchronized (TraceRecorder.class) {
+            if (instance != null)
+                return;
+            try {
+                instance = new TraceRecorder(new File(context.getApplicationContext().getFilesDir(), "trace.bin"));
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "cannot open trace file, not tracing", e);
+            }
+        }
+    }
+
+    public static void record(final int type, final int value, final long id) {
+        final TraceRecorder recorder = instance;
+        if (recorder != null)
+            recorder.write(type, value, id);
+    }
+
+    /**
+     * @return salted hash of a phone number, to tell events about the same one apart without recording it
+     */
+    public static long hash(final String number) {
+        final TraceRecorder recorder = instance;
+        if (recorder == null || number == null)
+            return 0;
+        long hash = recorder.salt;
+        for (int i = 0; i < number.length(); ++i)
+            hash = (hash ^ number.charAt(i)) * 0x100000001b3L;
+        return hash;
+    }
+
+    private final MappedByteBuffer file;
+    private final long salt;
+    private final AtomicLong next;
+
+    private TraceRecorder(final File path) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            file = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) CAPACITY * RECORD_SIZE);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+        if (file.getInt(MAGIC_OFFSET) != MAGIC || file.getInt(VERSION_OFFSET) != VERSION
+                || file.getInt(CAPACITY_OFFSET) != CAPACITY || file.getInt(RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+            for (int i = 0; i < HEADER_SIZE + CAPACITY * RECORD_SIZE; i += 8)
+                file.putLong(i, 0);
+            file.putInt(MAGIC_OFFSET, MAGIC);
+            file.putInt(VERSION_OFFSET, VERSION);
+            file.putInt(CAPACITY_OFFSET, CAPACITY);
+            file.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+            file.putLong(SALT_OFFSET, new SecureRandom().nextLong());
+        }
+        salt = file.getLong(SALT_OFFSET);
+        // carry on after the newest record of the last run
+        long last = 0;
+        for (int i = 0; i < CAPACITY; ++i)
+            last = Math.max(last, file.getLong(HEADER_SIZE + i * RECORD_SIZE + SEQ_OFFSET));
+        next = new AtomicLong(last);
+    }
+
+    private void write(final int type, final int value, final long id) {
+        final long seq = next.getAndIncrement();
+        final int record = HEADER_SIZE + (int) (seq % CAPACITY) * RECORD_SIZE;
+        // readers skip it while it's half written
+        file.putLong(record + SEQ_OFFSET, 0);
+        file.putLong(record + NANOS_OFFSET, System.nanoTime());
+        file.putInt(record + TYPE_OFFSET, type);
+        file.putInt(record + VALUE_OFFSET, value);
+        file.putLong(record + ID_OFFSET, id);
+        file.putLong(record + SEQ_OFFSET, seq + 1);
+    }
+}
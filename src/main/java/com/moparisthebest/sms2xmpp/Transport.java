@@ -0,0 +1,45 @@
+package com.moparisthebest.sms2xmpp;
+
+import org.openintents.xmpp.util.XmppServiceApi;
+
+/**
+ * How SMSService reaches XMPP for the routes of one provider: XmppApiTransport through an XMPP app on the phone, or
+ * ComponentTransport straight to our own server.  Either way results come back as xmpp-api result Intents, so the
+ * rest of the bridge doesn't care which one a route uses.
+ */
+public interface Transport {
+
+    interface Listener {
+        void connected();
+
+        void failed(String reason);
+
+        /**
+         * A message an XMPP user sent to number@gateway, what the plugin callback's ACTION_NEW_MESSAGE delivers.
+         *
+         * @param messageId stanza id, or null
+         * @return null if it was accepted, otherwise why not
+         */
+        String messageReceived(Jid from, Jid to, String body, String messageId);
+    }
+
+    /**
+     * Connects in the background, telling the Listener how it went.
+     */
+    void connect();
+
+    void disconnect();
+
+    /**
+     * Sends stanzas built by a StanzaWriter for route.  callback may already be called before this returns, with an
+     * error if the connection went away since it was last seen bound.
+     */
+    void send(Route route, String xml, XmppServiceApi.IXmppCallback callback);
+
+    /**
+     * Starts delivering messages to route's gateway to the Listener.
+     */
+    void register(Route route, XmppServiceApi.IXmppCallback callback);
+
+    void unregister(Route route, XmppServiceApi.IXmppCallback callback);
+}
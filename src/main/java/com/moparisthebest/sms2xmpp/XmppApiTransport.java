@@ -0,0 +1,138 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import org.openintents.xmpp.AbstractXmppPluginCallback;
+import org.openintents.xmpp.XmppError;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+import org.openintents.xmpp.util.XmppServiceApi;
+import org.openintents.xmpp.util.XmppServiceConnection;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.openintents.xmpp.util.XmppUtils.getError;
+import static org.openintents.xmpp.util.XmppUtils.getSuccess;
+
+/**
+ * Transport through an XMPP app on the phone over xmpp-api: stanzas go in ACTION_SEND_RAW_XML calls, messages come
+ * back through a plugin callback registered per route.
+ *
+ * Stanzas always go in the EXTRA_RAW_XML extra, which binder copies into the transaction as UTF-16 and which fails
+ * outright near 1MB, Backfill and the outbox keep their batches well below that.  Streaming big batches through
+ * executeApiAsync's input stream instead would lift the limit, but xmpp-api has no way yet to tell the XMPP app the
+ * stanzas come that way, so that stays a proposal for the client side until it does.
+ */
+public final class XmppApiTransport implements Transport {
+
+    private final String providerPackage;
+    private final Listener listener;
+    private final XmppServiceConnection serviceConnection;
+
+    public XmppApiTransport(final Context context, final String providerPackage, final Listener listener) {
+        this.providerPackage = providerPackage;
+        this.listener = listener;
+        this.serviceConnection = new XmppServiceConnection(
+                context.getApplicationContext(),
+                providerPackage,
+                new XmppServiceConnection.OnBound() {
+                    @Override
+                    public void onBound(XmppServiceApi serviceApi) {
+                        Log.d(XmppServiceApi.TAG, "onBound " + XmppApiTransport.this.providerPackage);
+                        XmppApiTransport.this.listener.connected();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        Log.e(XmppServiceApi.TAG, "exception when binding!", e);
+                        XmppApiTransport.this.listener.failed("bind failed: " + e);
+                    }
+                }
+        );
+    }
+
+    @Override
+    public void connect() {
+        serviceConnection.bindToService();
+    }
+
+    @Override
+    public void disconnect() {
+        try {
+            serviceConnection.unbindFromService();
+        } catch (IllegalArgumentException e) {
+            // wasn't bound
+        }
+    }
+
+    @Override
+    public void send(final Route route, final String xml, final XmppServiceApi.IXmppCallback callback) {
+        final Intent data = new Intent();
+        data.setAction(XmppServiceApi.ACTION_SEND_RAW_XML);
+        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, route.accountJid);
+        data.putExtra(XmppServiceApi.EXTRA_RAW_XML, xml);
+        final XmppServiceApi api = api(callback);
+        if (api != null)
+            api.executeApiAsync(data, null, null, callback);
+    }
+
+    /**
+     * The binder can die between SMSService seeing us bound and the call, XmppServiceConnection then has no api.
+     *
+     * @return api to call, or null after failing callback as a call that never reached the XMPP app
+     */
+    private XmppServiceApi api(final XmppServiceApi.IXmppCallback callback) {
+        final XmppServiceApi api = serviceConnection.getApi();
+        if (api == null)
+            callback.onReturn(getError(SMSService.CLIENT_SIDE_ERROR, "not connected to " + providerPackage));
+        return api;
+    }
+
+    @Override
+    public void register(final Route route, final XmppServiceApi.IXmppCallback callback) {
+        final Intent data = new Intent();
+        data.setAction(XmppServiceApi.ACTION_REGISTER_PLUGIN_CALLBACK);
+        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, route.accountJid);
+        // null means all localpart
+        //data.putExtra(XmppServiceApi.EXTRA_JID_LOCAL_PART, localPart);
+        data.putExtra(XmppServiceApi.EXTRA_JID_DOMAIN, route.gatewayDomain);
+        final XmppServiceApi api = api(callback);
+        if (api != null)
+            api.callbackApiAsync(data, pluginCallback, callback);
+    }
+
+    @Override
+    public void unregister(final Route route, final XmppServiceApi.IXmppCallback callback) {
+        final Intent data = new Intent();
+        data.setAction(XmppServiceApi.ACTION_UNREGISTER_PLUGIN_CALLBACK);
+        data.putExtra(XmppServiceApi.EXTRA_ACCOUNT_JID, route.accountJid);
+        data.putExtra(XmppServiceApi.EXTRA_JID_DOMAIN, route.gatewayDomain);
+        final XmppServiceApi api = api(callback);
+        if (api != null)
+            api.callbackApiAsync(data, pluginCallback, callback);
+    }
+
+    // package private for tests to play the XMPP app
+    final AbstractXmppPluginCallback pluginCallback = new AbstractXmppPluginCallback() {
+        /**
+         * This is called by the remote service regularly to tell us about
+         * new values.  Note that IPC calls are dispatched through a thread
+         * pool running in each process, so the code executing here will
+         * NOT be running in our main thread like most other things -- so,
+         * to update the UI, we need to use a Handler to hop over there.
+         */
+        @Override
+        public Intent execute(final Intent data, final InputStream inputStream, final OutputStream outputStream) {
+            if (XmppPluginCallbackApi.ACTION_NEW_MESSAGE.equals(data.getAction())) {
+                final Jid from = Jid.fromString(data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_FROM));
+                final Jid to = Jid.fromString(data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_TO));
+                final String body = data.getStringExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_BODY);
+                final String error = listener.messageReceived(from, to, body, data.getStringExtra(Constants.EXTRA_MESSAGE_ID));
+                return error == null ? getSuccess() : getError(XmppError.GENERIC_ERROR, error);
+            }
+            return getSuccess(); // we don't care about anything else for now...
+            //return getError(XmppError.INCOMPATIBLE_API_VERSIONS, "action not implemented");
+        }
+    };
+}
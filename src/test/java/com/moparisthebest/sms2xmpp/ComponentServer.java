@@ -0,0 +1,281 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in XMPP server for ComponentTransport, on any JVM, to measure the direct mode against the XMPP app:
+ *
+ * <pre>
+ * ./gradlew compileDebugUnitTestJavaWithJavac
+ * java -cp build/intermediates/classes/test/debug com.moparisthebest.sms2xmpp.ComponentServer 5347 secret
+ * adb reverse tcp:5347 tcp:5347   # then component host 127.0.0.1 on the phone
+ * </pre>
+ *
+ * Accepts XEP-0114 connections, checks the handshake and counts the stanzas that arrive, printing stanzas and bytes
+ * per second while they do.  It doesn't route anything, so it's for throughput only; the phone's apiLatency and
+ * inboundDelivery metrics are the other half of the comparison.  A test tool, so it isn't in the APK.
+ *
+ * Tests start() it on port 0 in the background and wait for the stanzas they sent with awaitStanzas().
+ */
+public final class ComponentServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String secret;
+    private volatile ServerSocketChannel server = null;
+    // guarded by this, over all connections
+    private long stanzas = 0;
+
+    public ComponentServer(final String secret) {
+        this.secret = secret;
+    }
+
+    public void serve(final int port) throws IOException {
+        bind(port);
+        accept();
+    }
+
+    /**
+     * Serves from a background thread.
+     *
+     * @param port 0 for any free one
+     * @return the port it listens on
+     */
+    public int start(final int port) throws IOException {
+        final int bound = bind(port);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    accept();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "ComponentServer " + bound);
+        thread.setDaemon(true);
+        thread.start();
+        return bound;
+    }
+
+    public void close() throws IOException {
+        final ServerSocketChannel server = this.server;
+        if (server != null)
+            server.close();
+    }
+
+    public synchronized long getStanzas() {
+        return stanzas;
+    }
+
+    /**
+     * @return true once at least count stanzas arrived, false if that took longer than timeoutMillis
+     */
+    public synchronized boolean awaitStanzas(final long count, final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long left;
+        while (stanzas < count && (left = deadline - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        return stanzas >= count;
+    }
+
+    private synchronized void counted(final long count) {
+        if (count > 0) {
+            stanzas += count;
+            notifyAll();
+        }
+    }
+
+    private int bind(final int port) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(port));
+        this.server = server;
+        final int bound = server.socket().getLocalPort();
+        System.out.println("listening on " + bound);
+        return bound;
+    }
+
+    private void accept() throws IOException {
+        final ServerSocketChannel server = this.server;
+        while (true) {
+            final SocketChannel client = server.accept();
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(client);
+                    } catch (IOException e) {
+                        System.out.println(client.socket().getRemoteSocketAddress() + ": " + e);
+                    } finally {
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // closing anyway
+                        }
+                    }
+                }
+            }, "ComponentServer " + client.socket().getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void handle(final SocketChannel client) throws IOException {
+        final long acceptNanos = System.nanoTime();
+        final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        // the handshake is ASCII, read it byte for byte as chars
+        final StringBuilder in = new StringBuilder();
+
+        final String id = UUID.randomUUID().toString();
+        int start, end;
+        while ((start = in.indexOf("<stream:stream")) < 0 || (end = in.indexOf(">", start)) < 0)
+            read(client, buf, in);
+        final String header = in.substring(start, end + 1);
+        final String domain = attribute(header, "to");
+        write(client, "<?xml version='1.0'?><stream:stream xmlns='jabber:component:accept' "
+                + "xmlns:stream='http://etherx.jabber.org/streams' id='" + id + "' from='" + domain + "'>");
+
+        while ((end = in.indexOf("</handshake>")) < 0)
+            read(client, buf, in);
+        final String handshake = in.substring(in.indexOf("<handshake>") + "<handshake>".length(), end).trim();
+        if (!handshake.equals(sha1Hex(id + secret))) {
+            write(client, "<stream:error><not-authorized xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error></stream:stream>");
+            throw new IOException("bad handshake for " + domain);
+        }
+        write(client, "<handshake/>");
+        System.out.println(String.format("%s: %s connected, handshake took %.3fms", client.socket().getRemoteSocketAddress(),
+                domain, (System.nanoTime() - acceptNanos) / 1e6));
+
+        final Counter counter = new Counter();
+        counter.feed(in.substring(end + "</handshake>".length()));
+        counted(counter.stanzas);
+        long lastReport = System.nanoTime(), lastStanzas = 0, lastBytes = 0;
+        while (true) {
+            buf.clear();
+            if (client.read(buf) < 0)
+                break;
+            buf.flip();
+            counter.bytes += buf.remaining();
+            final long before = counter.stanzas;
+            while (buf.hasRemaining())
+                counter.feed((char) (buf.get() & 0xFF));
+            counted(counter.stanzas - before);
+            final long now = System.nanoTime();
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+                final double seconds = (now - lastReport) / 1e9;
+                System.out.println(String.format("%s: %.0f stanzas/s, %.1f KB/s, %d stanzas total", domain,
+                        (counter.stanzas - lastStanzas) / seconds, (counter.bytes - lastBytes) / seconds / 1024, counter.stanzas));
+                lastReport = now;
+                lastStanzas = counter.stanzas;
+                lastBytes = counter.bytes;
+            }
+        }
+        System.out.println(String.format("%s: disconnected after %d stanzas, %d bytes", domain, counter.stanzas, counter.bytes));
+    }
+
+    private static void read(final SocketChannel client, final ByteBuffer buf, final StringBuilder in) throws IOException {
+        buf.clear();
+        if (client.read(buf) < 0)
+            throw new IOException("closed during handshake");
+        buf.flip();
+        while (buf.hasRemaining())
+            in.append((char) (buf.get() & 0xFF));
+    }
+
+    private static void write(final SocketChannel client, final String xml) throws IOException {
+        final ByteBuffer buf = UTF_8.encode(xml);
+        while (buf.hasRemaining())
+            client.write(buf);
+    }
+
+    // same as ComponentTransport.handshake, which would drag Android classes in here
+    private static String sha1Hex(final String s) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("no SHA-1", e);
+        }
+        final StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (final byte b : digest)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    private static String attribute(final String tag, final String name) {
+        for (final char quote : new char[]{'\'', '"'}) {
+            final int start = tag.indexOf(name + "=" + quote);
+            if (start >= 0)
+                return tag.substring(start + name.length() + 2, tag.indexOf(quote, start + name.length() + 2));
+        }
+        return "?";
+    }
+
+    /**
+     * Counts top level elements below the stream by tag depth, enough for well formed stanzas.  UTF-8 continuation
+     * bytes are never '<', '>' or quotes, so this works on raw bytes.
+     */
+    private static final class Counter {
+        long stanzas = 0, bytes = 0;
+        // 1 is inside the stream, between stanzas
+        private int depth = 1;
+        private boolean inTag = false, closing = false, special = false;
+        private char quote = 0, previous = 0;
+        private int tagLength = 0;
+
+        void feed(final CharSequence chars) {
+            bytes += chars.length();
+            for (int i = 0; i < chars.length(); ++i)
+                feed(chars.charAt(i));
+        }
+
+        void feed(final char c) {
+            if (!inTag) {
+                if (c == '<') {
+                    inTag = true;
+                    closing = special = false;
+                    tagLength = 0;
+                }
+            } else if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '>') {
+                inTag = false;
+                if (special) {
+                    // <? ?> and <! >, nothing to count
+                } else if (closing) {
+                    if (--depth == 1)
+                        ++stanzas;
+                } else if (previous == '/') {
+                    if (depth == 1)
+                        ++stanzas;
+                } else {
+                    ++depth;
+                }
+            } else if (tagLength++ == 0) {
+                closing = c == '/';
+                special = c == '?' || c == '!';
+            }
+            previous = c;
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: ComponentServer port secret");
+            System.exit(1);
+        }
+        new ComponentServer(args[1]).serve(Integer.parseInt(args[0]));
+    }
+}
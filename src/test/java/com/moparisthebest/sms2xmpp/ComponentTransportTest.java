@@ -0,0 +1,213 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openintents.xmpp.util.XmppServiceApi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ComponentTransport against ComponentServer on localhost, and the same stanza workload through it and through the
+ * xmpp-api Transport.  The xmpp-api side is FakeXmppApp, so its numbers leave out the binder call and the XMPP app's
+ * own socket, the phone's apiLatency metric is what to put next to them.
+ */
+public class ComponentTransportTest {
+
+    private static final String SECRET = "secret", DOMAIN = "sms.example.org", ACCOUNT = "user@example.org";
+    private static final int STANZAS = 20000, THREADS = 4;
+    // stanzas in flight at once, ComponentTransport refuses what doesn't fit its queue, callers keep below that
+    private static final int WINDOW = 512;
+
+    private static final Route DIRECT = new Route(0, null, ComponentTransport.PROVIDER, ACCOUNT, DOMAIN);
+    private static final Route VIA_APP = new Route(0, null, "org.example.xmpp", ACCOUNT, DOMAIN);
+
+    private static final class Listener implements Transport.Listener {
+        final CountDownLatch connected = new CountDownLatch(1), failed = new CountDownLatch(1);
+        final AtomicReference<String> reason = new AtomicReference<>();
+
+        @Override
+        public void connected() {
+            connected.countDown();
+        }
+
+        @Override
+        public void failed(final String reason) {
+            this.reason.compareAndSet(null, reason);
+            failed.countDown();
+        }
+
+        @Override
+        public String messageReceived(final Jid from, final Jid to, final String body, final String messageId) {
+            return null;
+        }
+    }
+
+    private static final class Callbacks implements XmppServiceApi.IXmppCallback {
+        final AtomicLong returned = new AtomicLong();
+        final Semaphore window = new Semaphore(WINDOW);
+        private final CountDownLatch done;
+
+        Callbacks(final int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onReturn(final Intent result) {
+            // result extras are no-ops in JVM tests, so success and error can't be told apart here
+            returned.incrementAndGet();
+            window.release();
+            done.countDown();
+        }
+
+        boolean await(final long timeoutMillis) throws InterruptedException {
+            return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ComponentServer server;
+    private int port;
+    private final List<Transport> transports = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ComponentServer(SECRET);
+        port = server.start(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final Transport transport : transports)
+            transport.disconnect();
+        server.close();
+    }
+
+    private ComponentTransport connect(final String secret, final Listener listener) {
+        final ComponentTransport transport = new ComponentTransport("127.0.0.1", port, DOMAIN, secret, listener);
+        transports.add(transport);
+        transport.connect();
+        return transport;
+    }
+
+    private static String stanza(final Route route, final int i) {
+        final String number = "+1555" + (i % 100);
+        return StanzaWriter.get(route).forwardedMessage(number, route.gatewayDomain, route.accountJid,
+                "text " + i + " to " + number, 1488738187250L + i).toString();
+    }
+
+    /**
+     * Sends STANZAS stanzas for route from several threads, like SMSService's senders do.
+     *
+     * @return nanoseconds until every callback came back
+     */
+    private static long send(final Transport transport, final Route route, final Callbacks callbacks) throws Exception {
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; ++t) {
+            final int first = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = first; i < STANZAS; i += THREADS) {
+                        callbacks.window.acquireUninterruptibly();
+                        transport.send(route, stanza(route, i), callbacks);
+                    }
+                }
+            }, "sender " + t));
+        }
+        final long start = System.nanoTime();
+        for (final Thread thread : threads)
+            thread.start();
+        for (final Thread thread : threads)
+            thread.join();
+        assertTrue(callbacks.await(60000));
+        return System.nanoTime() - start;
+    }
+
+    @Test(timeout = 60000)
+    public void handshakeAndPipelinedSends() throws Exception {
+        final Listener listener = new Listener();
+        final ComponentTransport transport = connect(SECRET, listener);
+        assertTrue(listener.connected.await(10, TimeUnit.SECONDS));
+
+        final Callbacks callbacks = new Callbacks(STANZAS);
+        send(transport, DIRECT, callbacks);
+        assertTrue("server got " + server.getStanzas(), server.awaitStanzas(STANZAS, 30000));
+        assertEquals(STANZAS, server.getStanzas());
+        assertEquals(STANZAS, callbacks.returned.get());
+        assertNull(listener.reason.get());
+    }
+
+    @Test(timeout = 30000)
+    public void wrongSecretFails() throws Exception {
+        final Listener listener = new Listener();
+        final ComponentTransport transport = connect("wrong", listener);
+        assertTrue(listener.failed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, listener.connected.getCount());
+
+        // and a send while not connected returns right away instead of queueing
+        final Callbacks callbacks = new Callbacks(1);
+        transport.send(DIRECT, stanza(DIRECT, 0), callbacks);
+        assertTrue(callbacks.await(1000));
+        assertEquals(0, server.getStanzas());
+    }
+
+    /**
+     * A component_port pref out of range or a component_host that doesn't resolve fails the connection for the
+     * supervisor to retry, instead of killing the reader thread and the app with it.
+     */
+    @Test(timeout = 30000)
+    public void badAddressFails() throws Exception {
+        final String[][] addresses = {{"127.0.0.1", "70000"}, {"no such host.invalid", String.valueOf(port)}};
+        for (final String[] address : addresses) {
+            final Listener listener = new Listener();
+            final ComponentTransport transport = new ComponentTransport(address[0], Integer.parseInt(address[1]),
+                    DOMAIN, SECRET, listener);
+            transports.add(transport);
+            transport.connect();
+            assertTrue(address[0] + ":" + address[1], listener.failed.await(10, TimeUnit.SECONDS));
+            assertEquals(1, listener.connected.getCount());
+        }
+        assertEquals(0, server.getStanzas());
+    }
+
+    @Test(timeout = 120000)
+    public void compareWithXmppApi() throws Exception {
+        final Listener listener = new Listener();
+        final ComponentTransport component = connect(SECRET, listener);
+        assertTrue(listener.connected.await(10, TimeUnit.SECONDS));
+        final FakeXmppApp app = new FakeXmppApp(new Listener());
+        transports.add(app);
+
+        // warm both up, then time them
+        send(component, DIRECT, new Callbacks(STANZAS));
+        send(app, VIA_APP, new Callbacks(STANZAS));
+        assertTrue(server.awaitStanzas(STANZAS, 30000));
+
+        final long appNanos = send(app, VIA_APP, new Callbacks(STANZAS));
+        final long componentNanos = send(component, DIRECT, new Callbacks(STANZAS));
+        assertTrue(server.awaitStanzas(2 * STANZAS, 30000));
+
+        final int directBytes = stanza(DIRECT, 1).length(), appBytes = stanza(VIA_APP, 1).length();
+        System.out.println(String.format("component: %d stanzas in %.0fms, %.0f/s over a socket, %d chars each",
+                STANZAS, componentNanos / 1e6, STANZAS / (componentNanos / 1e9), directBytes));
+        System.out.println(String.format("xmpp-api:  %d stanzas in %.0fms, %.0f/s before binder, %d chars each",
+                STANZAS, appNanos / 1e6, STANZAS / (appNanos / 1e9), appBytes));
+
+        assertEquals(2 * STANZAS, app.calls.get());
+        // direct stanzas skip the echo envelope
+        assertTrue(directBytes < appBytes);
+        assertNull(listener.reason.get());
+    }
+}
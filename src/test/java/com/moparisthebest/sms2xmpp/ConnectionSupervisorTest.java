@@ -0,0 +1,305 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.RemoteException;
+import android.test.mock.MockContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.moparisthebest.sms2xmpp.ConnectionSupervisor.CONNECTED;
+import static com.moparisthebest.sms2xmpp.ConnectionSupervisor.DISCONNECTED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Crashes the XMPP app's binder on a schedule and checks the supervisor brings the connection back through the
+ * standing binding, without waiting out the backoff, which is at least 500ms for the first failure.
+ */
+public class ConnectionSupervisorTest {
+
+    private static final long BACKOFF_FLOOR_MS = 500;
+
+    /**
+     * The XMPP app's service: hands its binder to the standing binding, and when crashed kills it, tells the binding
+     * it's gone and, like Android does for a BIND_AUTO_CREATE binding, restarts it shortly after with a new binder.
+     */
+    private static final class FakeXmppService extends MockContext {
+
+        private final ScheduledExecutorService android = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger binds = new AtomicInteger(), unbinds = new AtomicInteger(), restarts = new AtomicInteger();
+        // guarded by this
+        private ServiceConnection connection = null;
+        private FakeBinder binder = null;
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public synchronized boolean bindService(final Intent service, final ServiceConnection conn, final int flags) {
+            binds.incrementAndGet();
+            connection = conn;
+            binder = new FakeBinder();
+            deliver(conn, binder, 0);
+            return true;
+        }
+
+        @Override
+        public synchronized void unbindService(final ServiceConnection conn) {
+            unbinds.incrementAndGet();
+            connection = null;
+        }
+
+        synchronized void crash(final long restartMillis) {
+            if (binder == null)
+                return;
+            binder.die();
+            binder = null;
+            final ServiceConnection conn = connection;
+            if (conn == null)
+                return;
+            android.execute(new Runnable() {
+                @Override
+                public void run() {
+                    conn.onServiceDisconnected(null);
+                }
+            });
+            binder = new FakeBinder();
+            restarts.incrementAndGet();
+            deliver(conn, binder, restartMillis);
+        }
+
+        private void deliver(final ServiceConnection conn, final FakeBinder binder, final long delayMillis) {
+            android.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FakeXmppService.this) {
+                        if (connection != conn || FakeXmppService.this.binder != binder)
+                            return;
+                    }
+                    conn.onServiceConnected(null, binder);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized int linked() {
+            return binder == null ? 0 : binder.linked;
+        }
+
+        void shutdown() {
+            android.shutdownNow();
+        }
+    }
+
+    private static final class FakeBinder extends Binder {
+        // guarded by this
+        private DeathRecipient recipient = null;
+        private boolean dead = false;
+        int linked = 0;
+
+        @Override
+        public synchronized void linkToDeath(final DeathRecipient recipient, final int flags) throws RemoteException {
+            if (dead)
+                throw new RemoteException("dead");
+            this.recipient = recipient;
+            ++linked;
+        }
+
+        @Override
+        public synchronized boolean unlinkToDeath(final DeathRecipient recipient, final int flags) {
+            if (this.recipient != recipient)
+                return false;
+            this.recipient = null;
+            --linked;
+            return true;
+        }
+
+        void die() {
+            final DeathRecipient recipient;
+            synchronized (this) {
+                dead = true;
+                recipient = this.recipient;
+            }
+            if (recipient != null)
+                recipient.binderDied();
+        }
+    }
+
+    /**
+     * Plays the Transport: every bind connects after a random few ms, unless it's unbound or superseded by then.
+     */
+    private static final class FakeTransport implements ConnectionSupervisor.Listener {
+
+        private final ScheduledExecutorService xmpp = Executors.newSingleThreadScheduledExecutor();
+        private final Random random = new Random(18);
+        final AtomicInteger binds = new AtomicInteger(), unbinds = new AtomicInteger(), losses = new AtomicInteger();
+        final AtomicReference<String> error = new AtomicReference<>();
+        volatile ConnectionSupervisor supervisor;
+        // guarded by this
+        private boolean bound = false;
+        private int generation = 0;
+
+        @Override
+        public synchronized void bind() {
+            if (bound)
+                error.compareAndSet(null, "bind while bound");
+            bound = true;
+            binds.incrementAndGet();
+            final int generation = ++this.generation;
+            xmpp.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FakeTransport.this) {
+                        if (!bound || FakeTransport.this.generation != generation)
+                            return;
+                    }
+                    supervisor.connected();
+                }
+            }, random.nextInt(5), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void unbind() {
+            bound = false;
+            unbinds.incrementAndGet();
+        }
+
+        @Override
+        public void lost() {
+            losses.incrementAndGet();
+        }
+
+        synchronized boolean isBound() {
+            return bound;
+        }
+
+        void shutdown() {
+            xmpp.shutdownNow();
+        }
+    }
+
+    private FakeXmppService service;
+    private FakeTransport transport;
+    private ConnectionSupervisor supervisor;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new FakeXmppService();
+        transport = new FakeTransport();
+        supervisor = new ConnectionSupervisor(service, "org.example.xmpp", true, transport);
+        transport.supervisor = supervisor;
+        supervisor.start();
+        assertTrue(awaitState(CONNECTED, 2000));
+    }
+
+    @After
+    public void tearDown() {
+        supervisor.stop();
+        service.shutdown();
+        transport.shutdown();
+    }
+
+    private boolean awaitState(final int state, final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (supervisor.getState() != state) {
+            if (System.nanoTime() > deadline)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private boolean awaitLosses(final int losses) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (transport.losses.get() < losses) {
+            if (System.nanoTime() > deadline)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * The standing binding is linked to the binder once it's up.
+     */
+    private void awaitLinked() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (service.linked() != 1 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(1, service.linked());
+    }
+
+    @Test(timeout = 60000)
+    public void reconnectsWithoutBackoffAfterEveryCrash() throws Exception {
+        final int crashes = 50;
+        long worstMillis = 0;
+        for (int i = 0; i < crashes; ++i) {
+            awaitLinked();
+            final long crashNanos = System.nanoTime();
+            service.crash(2);
+            // still CONNECTED until the supervisor's thread saw the death
+            assertTrue("crash " + i, awaitLosses(i + 1) && awaitState(CONNECTED, 5000) && transport.isBound());
+            worstMillis = Math.max(worstMillis, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - crashNanos));
+        }
+        System.out.println(crashes + " crashes, slowest reconnect " + worstMillis + "ms");
+        assertTrue("slowest reconnect " + worstMillis + "ms", worstMillis < BACKOFF_FLOOR_MS);
+        assertNull(transport.error.get());
+        assertEquals(crashes, transport.losses.get());
+        assertEquals(crashes + 1, transport.binds.get());
+        assertEquals(crashes, transport.unbinds.get());
+        assertEquals(1, service.binds.get());
+    }
+
+    /**
+     * Crashes at random moments, also while binding or while the app is still restarting: once they stop, the
+     * connection has to settle back to connected, bound once and watched once.
+     */
+    @Test(timeout = 60000)
+    public void settlesAfterRandomCrashes() throws Exception {
+        final Random random = new Random(42);
+        for (int i = 0; i < 300; ++i) {
+            service.crash(random.nextInt(5));
+            Thread.sleep(random.nextInt(6));
+        }
+        assertTrue(awaitState(CONNECTED, 5000));
+        awaitLinked();
+        assertTrue(transport.isBound());
+        assertNull(transport.error.get());
+        assertEquals(transport.binds.get(), transport.unbinds.get() + 1);
+        assertEquals(1, service.binds.get());
+        assertEquals(0, service.unbinds.get());
+    }
+
+    @Test(timeout = 10000)
+    public void stopUnbindsEverything() throws Exception {
+        awaitLinked();
+        supervisor.stop();
+        assertTrue(awaitState(DISCONNECTED, 2000));
+        // stop runs on the supervisor's thread, wait for the rest of it
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while ((service.unbinds.get() == 0 || service.linked() != 0) && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(1, service.unbinds.get());
+        assertEquals(0, service.linked());
+        assertTrue(!transport.isBound());
+        // crashes after stop go unnoticed
+        service.crash(0);
+        Thread.sleep(50);
+        assertEquals(DISCONNECTED, supervisor.getState());
+        assertEquals(0, transport.losses.get());
+    }
+}
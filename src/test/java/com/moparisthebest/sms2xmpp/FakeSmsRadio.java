@@ -0,0 +1,96 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.app.PendingIntent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SmsRadio that keeps every text it's handed in memory, per SIM and recipient, instead of sending it.
+ */
+final class FakeSmsRadio implements SmsRadio {
+
+    static final int SEGMENT_CHARS = 160;
+
+    // subscriptionId:toNumber to bodies in the order they were sent
+    private final ConcurrentMap<String, List<String>> sent = new ConcurrentHashMap<>();
+    // guarded by this
+    private long texts = 0, segments = 0;
+    // when set, send waits for a permit after recording the text, to hold its lane up
+    private volatile Semaphore gate = null;
+
+    void setGate(final Semaphore gate) {
+        this.gate = gate;
+    }
+
+    @Override
+    public ArrayList<String> divideMessage(final int subscriptionId, final String body) {
+        final ArrayList<String> parts = new ArrayList<>();
+        for (int i = 0; i < body.length(); i += SEGMENT_CHARS)
+            parts.add(body.substring(i, Math.min(body.length(), i + SEGMENT_CHARS)));
+        if (parts.isEmpty())
+            parts.add(body);
+        return parts;
+    }
+
+    @Override
+    public void send(final int subscriptionId, final String toNumber, final ArrayList<String> parts,
+                     final ArrayList<PendingIntent> sentIntents, final ArrayList<PendingIntent> deliveryIntents) {
+        final StringBuilder body = new StringBuilder();
+        for (final String part : parts)
+            body.append(part);
+        final String key = subscriptionId + ":" + toNumber;
+        List<String> bodies = sent.get(key);
+        if (bodies == null) {
+            final List<String> newBodies = Collections.synchronizedList(new ArrayList<String>());
+            bodies = sent.putIfAbsent(key, newBodies);
+            if (bodies == null)
+                bodies = newBodies;
+        }
+        bodies.add(body.toString());
+        synchronized (this) {
+            ++texts;
+            segments += parts.size();
+            notifyAll();
+        }
+        final Semaphore gate = this.gate;
+        if (gate != null)
+            gate.acquireUninterruptibly();
+    }
+
+    /**
+     * @return bodies sent to toNumber from subscriptionId, in order
+     */
+    List<String> sentTo(final int subscriptionId, final String toNumber) {
+        final List<String> bodies = sent.get(subscriptionId + ":" + toNumber);
+        if (bodies == null)
+            return Collections.emptyList();
+        synchronized (bodies) {
+            return new ArrayList<>(bodies);
+        }
+    }
+
+    synchronized long getTexts() {
+        return texts;
+    }
+
+    synchronized long getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return true once at least count texts were sent, false if that took longer than timeoutMillis
+     */
+    synchronized boolean await(final long count, final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long left;
+        while (texts < count && (left = deadline - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        return texts >= count;
+    }
+}
@@ -0,0 +1,60 @@
+package com.moparisthebest.sms2xmpp;
+
+import org.openintents.xmpp.util.XmppServiceApi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.openintents.xmpp.XmppError.GENERIC_ERROR;
+import static org.openintents.xmpp.util.XmppUtils.getError;
+import static org.openintents.xmpp.util.XmppUtils.getSuccess;
+
+/**
+ * Stands in for XmppServiceApi and the XMPP app behind it, at the Transport seam XmppApiTransport implements: every
+ * call is answered right away, successfully unless failing is set, and the stanzas handed over are only counted.
+ * receive plays the XMPP app calling our plugin callback with a message.
+ */
+final class FakeXmppApp implements Transport {
+
+    private final Listener listener;
+    final AtomicLong calls = new AtomicLong(), chars = new AtomicLong(), registered = new AtomicLong();
+    volatile boolean failing = false;
+
+    FakeXmppApp(final Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void connect() {
+        listener.connected();
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void send(final Route route, final String xml, final XmppServiceApi.IXmppCallback callback) {
+        calls.incrementAndGet();
+        chars.addAndGet(xml.length());
+        callback.onReturn(failing ? getError(GENERIC_ERROR, "failing") : getSuccess());
+    }
+
+    @Override
+    public void register(final Route route, final XmppServiceApi.IXmppCallback callback) {
+        registered.incrementAndGet();
+        callback.onReturn(getSuccess());
+    }
+
+    @Override
+    public void unregister(final Route route, final XmppServiceApi.IXmppCallback callback) {
+        registered.decrementAndGet();
+        callback.onReturn(getSuccess());
+    }
+
+    /**
+     * @return what the Listener answered, null if the message was accepted
+     */
+    String receive(final String from, final String to, final String body, final String messageId) {
+        return listener.messageReceived(Jid.fromString(from), Jid.fromString(to), body, messageId);
+    }
+}
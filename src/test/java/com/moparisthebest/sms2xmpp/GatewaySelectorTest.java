@@ -0,0 +1,294 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.test.mock.MockContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openintents.xmpp.util.XmppPluginCallbackApi;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The clock is just the now the test passes in.
+ */
+public class GatewaySelectorTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1), SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private GatewaySelector selector;
+    private long now;
+
+    @Before
+    public void setUp() {
+        selector = new GatewaySelector();
+        selector.setDomains(Arrays.asList("a", "b", "c"));
+        // anything but 0, nanoTime can be anywhere
+        now = 123456789L * SECOND;
+    }
+
+    private void probe(final String domain, final long rtt) {
+        final String id = selector.probeSent(domain, now);
+        assertTrue(id.startsWith(GatewaySelector.PROBE_PREFIX));
+        assertTrue(selector.probeReturned(id, now + rtt));
+    }
+
+    @Test
+    public void noDomains() {
+        selector.setDomains(Collections.<String>emptyList());
+        assertNull(selector.current(now));
+    }
+
+    @Test
+    public void preferenceOrderUntilMeasured() {
+        assertEquals("a", selector.current(now));
+        assertEquals(0, selector.getSwitches());
+    }
+
+    @Test
+    public void switchesOnlyWhenClearlyFaster() {
+        probe("a", 100 * MS);
+        assertEquals("a", selector.current(now));
+        probe("b", 90 * MS);
+        assertEquals("a", selector.current(now));
+        // 90 + (30 - 90) / 4 = 75ms, under 80% of a's 100ms
+        probe("b", 30 * MS);
+        assertEquals("b", selector.current(now));
+        assertEquals(1, selector.getSwitches());
+        // and not back for a bit of jitter
+        probe("a", 85 * MS);
+        assertEquals("b", selector.current(now));
+        assertEquals(1, selector.getSwitches());
+    }
+
+    @Test
+    public void failureBacksOffAndDoubles() {
+        assertEquals("a", selector.current(now));
+        selector.failure("a", now);
+        assertEquals("b", selector.current(now));
+        selector.failure("b", now);
+        assertEquals("c", selector.current(now));
+
+        // a is back after 30s, c isn't left for an unmeasured domain though
+        now += 30 * SECOND;
+        assertEquals("c", selector.current(now));
+        selector.failure("c", now);
+        assertEquals("a", selector.current(now));
+
+        // a second failure in a row keeps a out for 60s
+        selector.failure("a", now);
+        now += 59 * SECOND;
+        selector.failure("b", now);
+        selector.failure("c", now);
+        // all down, a recovers first
+        assertEquals("a", selector.current(now));
+
+        // a probe coming back clears the backoff
+        probe("b", 10 * MS);
+        assertEquals("b", selector.current(now));
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        for (int i = 0; i < 40; ++i)
+            selector.failure("a", now);
+        assertEquals("b", selector.current(now));
+        selector.failure("b", now);
+        selector.failure("c", now);
+        now += TimeUnit.MINUTES.toNanos(30);
+        selector.failure("b", now);
+        selector.failure("c", now);
+        assertEquals("a", selector.current(now));
+    }
+
+    @Test
+    public void probesExpire() {
+        // never came back through a yet, so the XMPP app just doesn't hand probes to us, not a failure
+        selector.probeSent("a", now);
+        now += GatewaySelector.PROBE_TIMEOUT_NANOS;
+        selector.expireProbes(now);
+        assertEquals("a", selector.current(now));
+
+        probe("a", 10 * MS);
+        final String lost = selector.probeSent("a", now);
+        now += GatewaySelector.PROBE_TIMEOUT_NANOS - 1;
+        selector.expireProbes(now);
+        assertEquals("a", selector.current(now));
+        now += 1;
+        selector.expireProbes(now);
+        assertEquals("b", selector.current(now));
+        // too late now
+        assertFalse(selector.probeReturned(lost, now));
+    }
+
+    @Test
+    public void probeLostBeforeOneThatCameBackIsNoFailure() {
+        probe("a", 10 * MS);
+        final String lost = selector.probeSent("a", now);
+        now += 10 * SECOND;
+        probe("a", 10 * MS);
+        now += GatewaySelector.PROBE_TIMEOUT_NANOS;
+        selector.expireProbes(now);
+        assertEquals("a", selector.current(now));
+        assertFalse(selector.probeReturned(lost, now));
+    }
+
+    @Test
+    public void probeIds() {
+        final String id = selector.probeSent("a", now);
+        assertFalse(id.equals(selector.probeSent("a", now)));
+        assertTrue(selector.probeReturned(id, now));
+        assertFalse(selector.probeReturned(id, now));
+        assertFalse(selector.probeReturned(GatewaySelector.PROBE_PREFIX + "nope", now));
+    }
+
+    @Test
+    public void setDomainsKeepsWhatStays() {
+        probe("b", 10 * MS);
+        assertEquals("b", selector.current(now));
+        final String pending = selector.probeSent("c", now);
+        selector.setDomains(Arrays.asList("c", "b"));
+        assertEquals("b", selector.current(now));
+        // the probe through c is still waited for
+        assertTrue(selector.probeReturned(pending, now + 5 * MS));
+        assertEquals("c", selector.current(now));
+
+        selector.setDomains(Collections.singletonList("a"));
+        assertEquals("a", selector.current(now));
+        assertEquals(Collections.singletonList("a"), selector.getDomains());
+    }
+
+    @Test
+    public void json() {
+        probe("a", 12 * MS);
+        selector.failure("b", now);
+        selector.current(now);
+        final StringBuilder sb = new StringBuilder();
+        selector.appendJson(sb, now);
+        assertEquals("{\"a\":{\"selected\":true,\"up\":true,\"rttMs\":12,\"probes\":1,\"probesReturned\":1,\"errors\":0},"
+                + "\"b\":{\"selected\":false,\"up\":false,\"rttMs\":0,\"probes\":0,\"probesReturned\":0,\"errors\":1},"
+                + "\"c\":{\"selected\":false,\"up\":true,\"rttMs\":0,\"probes\":0,\"probesReturned\":0,\"errors\":0}}",
+                sb.toString());
+    }
+
+    /**
+     * An hour of SMSService probing every domain every 10s, while the fastest one, b, is out from minute 10 to 20: the
+     * selector has to leave b within a probe timeout and a probe interval, and come back to it right after.
+     */
+    @Test
+    public void outageSimulation() {
+        final long start = now, interval = 10 * SECOND;
+        final long outageStart = start + TimeUnit.MINUTES.toNanos(10), outageEnd = start + TimeUnit.MINUTES.toNanos(20);
+        final String[] domains = {"a", "b", "c"};
+        final long[] rtts = {200 * MS, 50 * MS, 120 * MS};
+        for (long t = start; t < start + TimeUnit.HOURS.toNanos(1); t += SECOND) {
+            now = t;
+            if ((t - start) % interval == 0) {
+                for (int i = 0; i < domains.length; ++i) {
+                    final String id = selector.probeSent(domains[i], t);
+                    final boolean down = domains[i].equals("b") && t >= outageStart && t < outageEnd;
+                    if (!down)
+                        assertTrue(selector.probeReturned(id, t + rtts[i]));
+                }
+            }
+            selector.expireProbes(t);
+            final String current = selector.current(t);
+            if (t < start + interval)
+                continue; // still learning
+            if (t >= outageStart + GatewaySelector.PROBE_TIMEOUT_NANOS + interval && t < outageEnd)
+                assertEquals("during the outage", "c", current);
+            else if (t < outageStart || t >= outageEnd + interval)
+                assertEquals("b", current);
+        }
+        // picking b first isn't a switch, to c for the outage and back to b are
+        assertEquals(2, selector.getSwitches());
+    }
+
+    /**
+     * Intent as the XMPP app fills it, the JVM test one keeps no extras.
+     */
+    private static final class ExtrasIntent extends Intent {
+        private final Map<String, String> extras = new HashMap<>();
+        private String action;
+
+        @Override
+        public Intent setAction(final String action) {
+            this.action = action;
+            return this;
+        }
+
+        @Override
+        public String getAction() {
+            return action;
+        }
+
+        @Override
+        public Intent putExtra(final String name, final String value) {
+            extras.put(name, value);
+            return this;
+        }
+
+        @Override
+        public String getStringExtra(final String name) {
+            return extras.get(name);
+        }
+    }
+
+    /**
+     * A probe the echo component bounced back reaches us through XmppApiTransport's plugin callback with only from, to
+     * and body, as xmpp-api has no extra for the stanza id, and has to be timed all the same.
+     */
+    @Test
+    public void probeComesBackThroughXmppApi() {
+        final String id = selector.probeSent("b", now);
+        final String stanza = StanzaWriter.get().forwardedProbe("b", "user@example.org", id).toString();
+        assertTrue(stanza, stanza.contains("<body>" + id + "</body>"));
+
+        final String[] received = new String[2];
+        final XmppApiTransport transport = new XmppApiTransport(new MockContext() {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+        }, "org.example.xmpp", new Transport.Listener() {
+            @Override
+            public void connected() {
+            }
+
+            @Override
+            public void failed(final String reason) {
+            }
+
+            @Override
+            public String messageReceived(final Jid from, final Jid to, final String body, final String messageId) {
+                received[0] = messageId;
+                received[1] = body;
+                return null;
+            }
+        });
+        final Intent data = new ExtrasIntent();
+        data.setAction(XmppPluginCallbackApi.ACTION_NEW_MESSAGE);
+        data.putExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_FROM, "probe@b");
+        data.putExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_TO, "user@example.org/phone");
+        data.putExtra(XmppPluginCallbackApi.EXTRA_MESSAGE_BODY, id);
+        transport.pluginCallback.execute(data, null, null);
+
+        assertNull(received[0]);
+        assertEquals(id, GatewaySelector.probeId(received[0], received[1]));
+        assertTrue(selector.probeReturned(GatewaySelector.probeId(received[0], received[1]), now + 20 * MS));
+        assertEquals("b", selector.current(now));
+        // and an ordinary text isn't mistaken for one
+        assertNull(GatewaySelector.probeId(null, "hi"));
+        assertNull(GatewaySelector.probeId("abc", null));
+    }
+}
@@ -0,0 +1,208 @@
+package com.moparisthebest.sms2xmpp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class JidCacheTest {
+
+    private static final int THREADS = 8, GETS_PER_THREAD = 500000;
+
+    private static String key(final int i) {
+        return "+1555" + i + "@sms.example.org" + (i % 3 == 0 ? "/phone" : "");
+    }
+
+    /**
+     * Threads hammering a cache much smaller than the key space, half of the gets on a few hot keys: every get must
+     * hand back the right Jid, and the counters must add up once they're done.
+     */
+    @Test(timeout = 120000)
+    public void stress() throws Exception {
+        final JidCache cache = new JidCache(64);
+        final int keys = 1000, hotKeys = 16;
+        final String[] strings = new String[keys];
+        for (int i = 0; i < keys; ++i)
+            strings[i] = key(i);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; ++t) {
+            final Random random = new Random(t);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < GETS_PER_THREAD; ++i) {
+                            final int k = random.nextBoolean() ? random.nextInt(hotKeys) : random.nextInt(keys);
+                            final Jid jid = cache.get(strings[k]);
+                            if (!strings[k].equals(jid.toString()))
+                                throw new AssertionError(strings[k] + " gave " + jid);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }, "JidCacheTest " + t));
+        }
+        for (final Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (final Thread thread : threads)
+            thread.join();
+        assertNull(error.get());
+
+        final long gets = (long) THREADS * GETS_PER_THREAD;
+        assertEquals(gets, cache.getHits() + cache.getMisses());
+        assertTrue(cache.getEvictions() <= cache.getMisses());
+        assertEquals(64, cache.capacity());
+        // the hot keys alone are a quarter of the capacity, they mostly stay in
+        assertTrue(cache.getHits() > gets / 4);
+    }
+
+    private interface Cache {
+        Jid get(String jid);
+    }
+
+    /**
+     * What JidCache replaced, android.util.LruCache: an access ordered LinkedHashMap behind one lock.
+     */
+    private static final class SynchronizedLru implements Cache {
+        private final Map<String, Jid> map;
+
+        SynchronizedLru(final int capacity) {
+            map = new LinkedHashMap<String, Jid>(capacity, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Jid> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        @Override
+        public Jid get(final String jid) {
+            synchronized (this) {
+                final Jid ret = map.get(jid);
+                if (ret != null)
+                    return ret;
+            }
+            // parsed outside the lock like LruCache.create
+            final Jid ret = new Jid(jid);
+            synchronized (this) {
+                map.put(jid, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * @return nanoseconds for threads to each do gets of the same mix as stress
+     */
+    private static long time(final Cache cache, final String[] strings, final int hotKeys, final int threadCount,
+                             final int gets) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; ++t) {
+            final Random random = new Random(t);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < gets; ++i) {
+                        final int k = random.nextBoolean() ? random.nextInt(hotKeys) : random.nextInt(strings.length);
+                        cache.get(strings[k]);
+                    }
+                }
+            }, "JidCacheTest " + t));
+        }
+        for (final Thread thread : threads)
+            thread.start();
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        for (final Thread thread : threads)
+            thread.join();
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * stress's workload on 1 to 16 threads, JidCache against the synchronized LRU it replaced, at the same capacity.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final int keys = 1000, hotKeys = 16, capacity = 64, gets = 1000000;
+        final String[] strings = new String[keys];
+        for (int i = 0; i < keys; ++i)
+            strings[i] = key(i);
+        System.out.println("threads  synchronized LRU ns/get  JidCache ns/get");
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            final JidCache jidCache = new JidCache(capacity);
+            final Cache lockFree = new Cache() {
+                @Override
+                public Jid get(final String jid) {
+                    return jidCache.get(jid);
+                }
+            };
+            final Cache lru = new SynchronizedLru(capacity);
+            // warm both up first
+            time(lockFree, strings, hotKeys, threads, gets / threads);
+            time(lru, strings, hotKeys, threads, gets / threads);
+            final long lruNanos = time(lru, strings, hotKeys, threads, gets / threads);
+            final long lockFreeNanos = time(lockFree, strings, hotKeys, threads, gets / threads);
+            System.out.println(String.format("%7d  %23.1f  %15.1f", threads, (double) lruNanos / gets,
+                    (double) lockFreeNanos / gets));
+        }
+    }
+
+    @Test
+    public void hitReturnsSameInstance() {
+        final JidCache cache = new JidCache(16);
+        final Jid jid = cache.get(key(1));
+        assertSame(jid, cache.get(key(1)));
+        assertSame(jid, cache.get(new String(key(1))));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void evictsUnreferencedEntry() {
+        // one set of 2 ways, every key lands in it
+        final JidCache cache = new JidCache(2);
+        assertEquals(2, cache.capacity());
+        final Jid a = cache.get(key(1));
+        cache.get(key(2));
+        cache.get(key(1));
+        // 2 wasn't used since it went in, it goes
+        cache.get(key(3));
+        assertEquals(1, cache.getEvictions());
+        assertSame(a, cache.get(key(1)));
+        final long misses = cache.getMisses();
+        cache.get(key(2));
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void capacityRoundsUp() {
+        assertEquals(2, new JidCache(0).capacity());
+        assertEquals(2, new JidCache(2).capacity());
+        assertEquals(4, new JidCache(3).capacity());
+        assertEquals(1024, new JidCache(1000).capacity());
+    }
+}
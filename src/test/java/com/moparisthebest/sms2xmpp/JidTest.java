@@ -0,0 +1,239 @@
+package com.moparisthebest.sms2xmpp;
+
+import org.junit.Test;
+
+import java.net.IDN;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class JidTest {
+
+    // jid, localpart, domainpart as getDomainpart() returns it, resourcepart, toString()
+    private static final String[][] VALID = {
+            {"example.net", "", "example.net", "", "example.net"},
+            {"example.net.", "", "example.net", "", "example.net."},
+            {"example.net/rp", "", "example.net", "rp", "example.net/rp"},
+            {"lp@example.net", "lp", "example.net", "", "lp@example.net"},
+            {"lp@example.net/rp", "lp", "example.net", "rp", "lp@example.net/rp"},
+            {"+15555550100@sms.example.org", "+15555550100", "sms.example.org", "", "+15555550100@sms.example.org"},
+            {"lp@example.net/rp/with/slashes", "lp", "example.net", "rp/with/slashes", "lp@example.net/rp/with/slashes"},
+            {"lp@example.net/@", "lp", "example.net", "@", "lp@example.net/@"},
+            {"lp@example.net/rp@", "lp", "example.net", "rp@", "lp@example.net/rp@"},
+            {"example.net/@/rp@", "", "example.net", "@/rp@", "example.net/@/rp@"},
+            {"example.net//", "", "example.net", "/", "example.net//"},
+            {"lp@192.168.0.1", "lp", "192.168.0.1", "", "lp@192.168.0.1"},
+            {"lp@localhost", "lp", "localhost", "", "lp@localhost"},
+            {"lp@a-b.example", "lp", "a-b.example", "", "lp@a-b.example"},
+            {"l\\20p@example.net", "l\\20p", "example.net", "", "l\\20p@example.net"},
+            {"lp@Example.NET", "lp", "Example.NET", "", "lp@Example.NET"},
+            {"lp@\u00e9xample.net", "lp", "\u00e9xample.net", "", "lp@\u00e9xample.net"},
+            {"lp@xn--xample-9ua.net", "lp", "\u00e9xample.net", "", "lp@\u00e9xample.net"},
+            {"lp@\u4f8b\u3048.jp/\u30ea\u30bd\u30fc\u30b9", "lp", "\u4f8b\u3048.jp", "\u30ea\u30bd\u30fc\u30b9", "lp@\u4f8b\u3048.jp/\u30ea\u30bd\u30fc\u30b9"},
+            {"\u00e9@example.net/\uD83D\uDE00", "\u00e9", "example.net", "\uD83D\uDE00", "\u00e9@example.net/\uD83D\uDE00"},
+    };
+
+    private static final String[] INVALID = {
+            "",
+            "@",
+            "/",
+            "@example.net",
+            "/rp",
+            "lp@",
+            "example.net/",
+            "lp@example.net/",
+            "lp@/rp",
+            "@/rp",
+            "lp@-example.net",
+            "lp@example-.net",
+            "lp@exa mple.net",
+            "lp@exa_mple.net",
+            "a@b@example.net",
+            "lp@[::1]",
+            "lp@example..net",
+            "lp@.",
+            "lp@.example.net",
+            repeat('a', 64) + ".example.net",
+            "lp@" + repeat('a', 64) + ".example.net",
+            repeat('a', 1024) + "@example.net",
+            "lp@example.net/" + repeat('a', 1024),
+            repeat('a', 3072),
+    };
+
+    private static String repeat(final char c, final int count) {
+        return new String(new char[count]).replace('\0', c);
+    }
+
+    @Test
+    public void validCorpus() {
+        for (final String[] c : VALID) {
+            final Jid jid = new Jid(c[0]);
+            assertEquals(c[0], c[1], jid.getLocalpart());
+            assertEquals(c[0], c[2], jid.getDomainpart());
+            assertEquals(c[0], c[3], jid.getResourcepart());
+            assertEquals(c[0], c[4], jid.toString());
+            assertLegacy(c[0]);
+        }
+    }
+
+    @Test
+    public void invalidCorpus() {
+        for (final String s : INVALID) {
+            try {
+                new Jid(s);
+                fail("accepted " + s);
+            } catch (IllegalArgumentException expected) {
+            }
+            assertLegacy(s);
+        }
+    }
+
+    @Test
+    public void randomStringsParseLikeBefore() {
+        final Random random = new Random(6);
+        final String alphabet = "@/.-aZ09_ \u00e9\u4f8b\u3002\uff0e";
+        for (int i = 0; i < 200000; ++i) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(16);
+            for (int j = 0; j < length; ++j)
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            if (random.nextBoolean())
+                sb.append("@example.net");
+            assertLegacy(sb.toString());
+        }
+    }
+
+    @Test
+    public void preppedAndBare() {
+        final Jid jid = Jid.fromString("lp@\u00e9xample.net./rp");
+        assertEquals("lp@xn--xample-9ua.net/rp", jid.toPreppedString());
+        assertEquals("lp@\u00e9xample.net", jid.toBareJid().toString());
+        assertEquals("\u00e9xample.net", jid.toDomainJid().toString());
+        assertEquals(Jid.fromString("lp@xn--xample-9ua.net/rp"), jid);
+        assertEquals(Jid.fromString("lp@xn--xample-9ua.net/rp").hashCode(), jid.hashCode());
+    }
+
+    /**
+     * Parse throughput of the Jid constructor against legacyParse, on what pluginCallback sees: number@gateway with and
+     * without a resource, plus the odd non-ASCII domain.
+     */
+    @Test
+    public void benchmark() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final String[] jids = new String[1024];
+        for (int i = 0; i < jids.length; ++i)
+            jids[i] = i % 16 == 0 ? "lp" + i + "@\u00e9xample.net/rp" :
+                    "+1555" + (5550000 + i) + "@sms.example.org" + (i % 2 == 0 ? "/phone" : "");
+        final int iterations = 1000000;
+        long legacyNanos = 0, jidNanos = 0, sink = 0;
+        // the first round warms both up and isn't counted
+        for (int round = 0; round < 3; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                sink += legacyParse(jids[i & (jids.length - 1)])[3].length();
+            final long legacy = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i)
+                sink += new Jid(jids[i & (jids.length - 1)]).getDomainpart().length();
+            final long jid = System.nanoTime() - start;
+            if (round > 0) {
+                legacyNanos += legacy;
+                jidNanos += jid;
+            }
+        }
+        assertTrue(sink > 0); // keeps the loops from being optimized away
+        System.out.println(String.format("legacy parser %.0f ns/JID, %.0f/s", legacyNanos / (2.0 * iterations),
+                2e9 * iterations / legacyNanos));
+        System.out.println(String.format("Jid           %.0f ns/JID, %.0f/s", jidNanos / (2.0 * iterations),
+                2e9 * iterations / jidNanos));
+    }
+
+    /**
+     * Asserts the Jid constructor agrees with how it parsed JIDs before the single scan and the plain ASCII shortcut.
+     */
+    private static void assertLegacy(final String s) {
+        String[] expected = null;
+        RuntimeException expectedError = null;
+        try {
+            expected = legacyParse(s);
+        } catch (IllegalArgumentException e) {
+            expectedError = e;
+        }
+        final Jid jid;
+        try {
+            jid = new Jid(s);
+        } catch (IllegalArgumentException e) {
+            if (expectedError == null)
+                fail("rejected " + s + ", was accepted before: " + e);
+            return;
+        }
+        if (expectedError != null)
+            fail("accepted " + s + ", was rejected before: " + expectedError);
+        assertEquals(s, expected[0], jid.getLocalpart());
+        assertEquals(s, IDN.toUnicode(expected[1]), jid.getDomainpart());
+        assertEquals(s, expected[2], jid.getResourcepart());
+        assertEquals(s, expected[3], jid.toString());
+    }
+
+    // the Jid constructor before it was rewritten, returns localpart, ASCII domainpart, resourcepart and display JID
+    private static String[] legacyParse(final String jid) {
+        final int atCount = jid.length() - jid.replace("@", "").length();
+        final int slashCount = jid.length() - jid.replace("/", "").length();
+
+        if (jid.isEmpty() || jid.length() > 3071) {
+            throw new IllegalArgumentException("invalid length");
+        }
+
+        if (jid.startsWith("@") || (jid.endsWith("@") && slashCount == 0) || jid.startsWith("/") || (jid.endsWith("/") && slashCount < 2)) {
+            throw new IllegalArgumentException("invalid character");
+        }
+
+        final String localpart, resourcepart, domainpart;
+        String finaljid;
+
+        final int domainpartStart;
+        final int atLoc = jid.indexOf("@");
+        final int slashLoc = jid.indexOf("/");
+        if (atCount == 0 || (atCount > 0 && slashLoc != -1 && atLoc > slashLoc)) {
+            localpart = "";
+            finaljid = "";
+            domainpartStart = 0;
+        } else {
+            localpart = jid.substring(0, atLoc);
+            if (localpart.isEmpty() || localpart.length() > 1023) {
+                throw new IllegalArgumentException("invalid part length");
+            }
+            domainpartStart = atLoc + 1;
+            finaljid = localpart + "@";
+        }
+
+        final String dp;
+        if (slashCount > 0) {
+            resourcepart = jid.substring(slashLoc + 1, jid.length());
+            if (resourcepart.isEmpty() || resourcepart.length() > 1023) {
+                throw new IllegalArgumentException("invalid part length");
+            }
+            dp = IDN.toUnicode(jid.substring(domainpartStart, slashLoc), IDN.USE_STD3_ASCII_RULES);
+            finaljid = finaljid + dp + "/" + resourcepart;
+        } else {
+            resourcepart = "";
+            dp = IDN.toUnicode(jid.substring(domainpartStart, jid.length()), IDN.USE_STD3_ASCII_RULES);
+            finaljid = finaljid + dp;
+        }
+
+        if (dp.endsWith(".")) {
+            domainpart = IDN.toASCII(dp.substring(0, dp.length() - 1), IDN.USE_STD3_ASCII_RULES);
+        } else {
+            domainpart = IDN.toASCII(dp, IDN.USE_STD3_ASCII_RULES);
+        }
+
+        if (domainpart.isEmpty() || domainpart.length() > 1023) {
+            throw new IllegalArgumentException("invalid part length");
+        }
+
+        return new String[]{localpart, domainpart, resourcepart, finaljid};
+    }
+}
@@ -0,0 +1,412 @@
+package com.moparisthebest.sms2xmpp;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.test.mock.MockContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openintents.xmpp.util.XmppServiceApi;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 100k messages end to end in each direction, failing on a regression in allocation per message or p99 latency against
+ * the committed baseline below.
+ *
+ * Outbound goes from the fake XMPP app's plugin callback through SMSService's routing, the coalescer and SmsSender's
+ * lanes to the fake radio.  Inbound goes from decoded texts through InboundPipeline, the Outbox and OutboxDrain to the
+ * fake XMPP app.  Latency is from handing a message in to it coming out the other end, with at most WINDOW in flight
+ * so it measures the bridge rather than a backlog.  Allocation counts every thread, the producers building messages
+ * included, and is skipped on JVMs that can't measure it.
+ */
+public class LoadTest {
+
+    private static final int MESSAGES = 100000;
+    private static final int PRODUCERS = 4, PEERS_PER_PRODUCER = 25, PEERS = PRODUCERS * PEERS_PER_PRODUCER;
+    private static final int SIMS = 2;
+    private static final int WINDOW = 1000;
+    private static final String PROVIDER = "org.example.xmpp", ACCOUNT = "user@example.org";
+
+    // measured on a single core, update these along with a change that's meant to move them
+    private static final long OUTBOUND_BYTES_PER_MESSAGE = 900, OUTBOUND_P99_MICROS = 15000;
+    private static final long INBOUND_BYTES_PER_MESSAGE = 3050, INBOUND_P99_MICROS = 200000;
+    // allocation is steady from run to run, latency much less so
+    private static final double BYTES_TOLERANCE = 1.5, LATENCY_TOLERANCE = 5;
+
+    private static final RouteTable ROUTES = new RouteTable(Arrays.asList(
+            new Route(0, null, PROVIDER, ACCOUNT, "sms0.example.org"),
+            new Route(1, null, PROVIDER, ACCOUNT, "sms1.example.org")));
+
+    private final FakeSmsRadio radio = new FakeSmsRadio();
+    // index of a message to when it was handed in
+    private final long[] startNanos = new long[MESSAGES];
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Semaphore window = new Semaphore(WINDOW);
+    private final AtomicLong producerBytes = new AtomicLong();
+    private final AtomicReference<String> error = new AtomicReference<>();
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("load", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        SmsSender.getInstance().setRadio(SmsRadio.SMS_MANAGER);
+        SmsSender.getInstance().setRate(SmsSender.DEFAULT_RATE_PER_SECOND, SmsSender.DEFAULT_BURST);
+        InboundPipeline.getInstance().getFloodControl().setRate(FloodControl.DEFAULT_PER_MINUTE);
+    }
+
+    private static String number(final int peer) {
+        return "+1555" + (1000000 + peer);
+    }
+
+    private static int sim(final int peer) {
+        return peer % SIMS;
+    }
+
+    // message i to or from one peer, numbered so each peer's come in order
+    private static int index(final int i, final int peer) {
+        return i * PEERS + peer;
+    }
+
+    /**
+     * @return the message index in body, which starts with "text " then the index
+     */
+    private static int parseIndex(final CharSequence chars, final int start) {
+        int index = 0;
+        for (int i = start + "text ".length(); i < chars.length() && chars.charAt(i) >= '0' && chars.charAt(i) <= '9'; ++i)
+            index = index * 10 + chars.charAt(i) - '0';
+        return index;
+    }
+
+    private void delivered(final int index) {
+        latency.recordSince(startNanos[index]);
+        window.release();
+    }
+
+    private interface Producer {
+        void produce(int index, int peer, int i);
+    }
+
+    /**
+     * Hands every message to producer from PRODUCERS threads, each with its own peers, keeping WINDOW in flight.
+     *
+     * @return bytes every thread allocated until all of them were delivered, -1 if the JVM can't tell
+     */
+    private long produce(final Producer producer, final Done done) throws Exception {
+        final Map<Long, Long> before = allocatedBytes();
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; ++p) {
+            final int first = p * PEERS_PER_PRODUCER;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = allocatedBytes(Thread.currentThread().getId());
+                    for (int i = 0; i < MESSAGES / PEERS; ++i)
+                        for (int peer = first; peer < first + PEERS_PER_PRODUCER; ++peer) {
+                            window.acquireUninterruptibly();
+                            final int index = index(i, peer);
+                            startNanos[index] = System.nanoTime();
+                            producer.produce(index, peer, i);
+                        }
+                    producerBytes.addAndGet(allocatedBytes(Thread.currentThread().getId()) - start);
+                }
+            }, "producer " + p));
+        }
+        final long start = System.nanoTime();
+        for (final Thread thread : threads)
+            thread.start();
+        for (final Thread thread : threads)
+            thread.join();
+        assertTrue("delivered " + latency.getCount() + " of " + MESSAGES, done.await(60000));
+        final long nanos = System.nanoTime() - start;
+        final Map<Long, Long> after = allocatedBytes();
+        System.out.println(String.format("%d messages in %.0fms, %.0f/s", MESSAGES, nanos / 1e6, MESSAGES / (nanos / 1e9)));
+        if (before == null || after == null)
+            return -1;
+        long bytes = producerBytes.get();
+        for (final Map.Entry<Long, Long> thread : after.entrySet()) {
+            final Long previous = before.get(thread.getKey());
+            bytes += thread.getValue() - (previous == null ? 0 : previous);
+        }
+        return bytes;
+    }
+
+    private interface Done {
+        boolean await(long timeoutMillis) throws InterruptedException;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        return sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled() ? sunBean : null;
+    }
+
+    private static long allocatedBytes(final long threadId) {
+        final com.sun.management.ThreadMXBean bean = threadBean();
+        return bean == null ? 0 : bean.getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * @return thread id to bytes it allocated so far for every live thread, null if the JVM can't tell
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        final com.sun.management.ThreadMXBean bean = threadBean();
+        if (bean == null)
+            return null;
+        final long[] ids = bean.getAllThreadIds();
+        final long[] bytes = bean.getThreadAllocatedBytes(ids);
+        final Map<Long, Long> ret = new HashMap<>();
+        for (int i = 0; i < ids.length; ++i)
+            if (bytes[i] >= 0)
+                ret.put(ids[i], bytes[i]);
+        return ret;
+    }
+
+    private void assertBaseline(final String direction, final long bytes, final long bytesBaseline, final long p99Baseline) {
+        final long p99 = latency.getPercentileMicros(99);
+        System.out.println(String.format("%s: %s bytes/message, p50 %dus, p99 %dus, max %dus", direction,
+                bytes < 0 ? "unknown" : String.valueOf(bytes / MESSAGES), latency.getPercentileMicros(50), p99,
+                latency.getPercentileMicros(100)));
+        if (bytes >= 0)
+            assertTrue(direction + " allocates " + bytes / MESSAGES + " bytes/message, baseline " + bytesBaseline,
+                    bytes / MESSAGES <= bytesBaseline * BYTES_TOLERANCE);
+        assertTrue(direction + " p99 " + p99 + "us, baseline " + p99Baseline + "us", p99 <= p99Baseline * LATENCY_TOLERANCE);
+    }
+
+    @Test(timeout = 120000)
+    public void outbound() throws Exception {
+        final PhoneNumbers phoneNumbers = new PhoneNumbers("US");
+        SmsSender.getInstance().setRadio(new SmsRadio() {
+            @Override
+            public ArrayList<String> divideMessage(final int subscriptionId, final String body) {
+                return radio.divideMessage(subscriptionId, body);
+            }
+
+            @Override
+            public void send(final int subscriptionId, final String toNumber, final ArrayList<String> parts,
+                             final ArrayList<android.app.PendingIntent> sentIntents,
+                             final ArrayList<android.app.PendingIntent> deliveryIntents) {
+                radio.send(subscriptionId, toNumber, parts, sentIntents, deliveryIntents);
+                delivered(parseIndex(parts.get(0), 0));
+            }
+        });
+        SmsSender.getInstance().setRate(0, 1); // unlimited
+        OutboundCoalescer.getInstance().configure(0, OutboundCoalescer.DEFAULT_MAX_SEGMENTS);
+        final FakeXmppApp app = new FakeXmppApp(new Transport.Listener() {
+            @Override
+            public void connected() {
+            }
+
+            @Override
+            public void failed(final String reason) {
+            }
+
+            @Override
+            public String messageReceived(final Jid from, final Jid to, final String body, final String messageId) {
+                return SMSService.sendOutgoing(ROUTES, phoneNumbers, PROVIDER, from, to, body, messageId);
+            }
+        });
+
+        final long bytes = produce(new Producer() {
+            @Override
+            public void produce(final int index, final int peer, final int i) {
+                final String refused = app.receive(ACCOUNT + "/phone", number(peer) + "@sms" + sim(peer) + ".example.org",
+                        "text " + index + " to " + number(peer), "id" + index);
+                if (refused != null)
+                    error.compareAndSet(null, refused);
+            }
+        }, new Done() {
+            @Override
+            public boolean await(final long timeoutMillis) throws InterruptedException {
+                return radio.await(MESSAGES, timeoutMillis);
+            }
+        });
+        assertNull(error.get());
+        assertEquals(MESSAGES, radio.getTexts());
+        for (int peer = 0; peer < PEERS; ++peer) {
+            final List<String> bodies = radio.sentTo(sim(peer), number(peer));
+            assertEquals(number(peer), MESSAGES / PEERS, bodies.size());
+            for (int i = 0; i < MESSAGES / PEERS; ++i)
+                assertEquals("text " + index(i, peer) + " to " + number(peer), bodies.get(i));
+        }
+        assertBaseline("outbound", bytes, OUTBOUND_BYTES_PER_MESSAGE, OUTBOUND_P99_MICROS);
+    }
+
+    @Test(timeout = 120000)
+    public void inbound() throws Exception {
+        InboundPipeline.getInstance().getFloodControl().setRate(0);
+        final int[] lastIndex = new int[PEERS];
+        Arrays.fill(lastIndex, -1);
+        final AtomicInteger received = new AtomicInteger();
+        // only its send and register paths are used, nothing comes in through it
+        final FakeXmppApp app = new FakeXmppApp(null);
+        final Transport transport = new Transport() {
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public void send(final Route route, final String xml, final XmppServiceApi.IXmppCallback callback) {
+                // one call per route at a time, so lastIndex is only ever touched by one thread
+                for (int at = xml.indexOf("<body>text "); at >= 0; at = xml.indexOf("<body>text ", at + 1)) {
+                    final int index = parseIndex(xml, at + "<body>".length());
+                    final int peer = index % PEERS;
+                    if (index <= lastIndex[peer])
+                        error.compareAndSet(null, index + " after " + lastIndex[peer]);
+                    lastIndex[peer] = index;
+                    received.incrementAndGet();
+                    delivered(index);
+                }
+                app.send(route, xml, callback);
+            }
+
+            @Override
+            public void register(final Route route, final XmppServiceApi.IXmppCallback callback) {
+                app.register(route, callback);
+            }
+
+            @Override
+            public void unregister(final Route route, final XmppServiceApi.IXmppCallback callback) {
+                app.unregister(route, callback);
+            }
+        };
+
+        // plays SMSService: results come back on a binder thread, never inside the send
+        final ExecutorService binder = Executors.newSingleThreadExecutor();
+        final Set<Route> registered = Collections.newSetFromMap(new ConcurrentHashMap<Route, Boolean>());
+        final Object lock = new Object();
+        final AtomicReference<OutboxDrain> drain = new AtomicReference<>();
+        final InboundBatcher batcher = new InboundBatcher(new InboundBatcher.Sink() {
+            @Override
+            public void flush() {
+                drain.get().drain();
+            }
+        }, 0);
+        final Context context = new MockContext() {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public File getFilesDir() {
+                return dir;
+            }
+
+            @Override
+            public ComponentName startService(final Intent service) {
+                // InboundPipeline starting SMSService, which drains once it's up
+                batcher.added();
+                return null;
+            }
+        };
+        drain.set(new OutboxDrain(lock, Outbox.getInstance(context), ContactNames.getInstance(context), new OutboxDrain.Host() {
+            @Override
+            public Route registeredRoute(final int subscriptionId) {
+                final Route route = ROUTES.forSubscription(subscriptionId);
+                return registered.contains(route) ? route : null;
+            }
+
+            @Override
+            public Transport transport(final Route route) {
+                return transport;
+            }
+
+            @Override
+            public Route resolve(final Route route) {
+                return route;
+            }
+
+            @Override
+            public XmppServiceApi.IXmppCallback callback(final Route route, final int generation) {
+                return new XmppServiceApi.IXmppCallback() {
+                    @Override
+                    public void onReturn(final Intent result) {
+                        binder.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                // result extras are no-ops in JVM tests, FakeXmppApp only fails when told to
+                                drain.get().drained(generation, true);
+                            }
+                        });
+                    }
+                };
+            }
+
+            @Override
+            public void retryLater() {
+                error.compareAndSet(null, "drain failed");
+            }
+        }));
+        for (final Route route : ROUTES.getRoutes())
+            transport.register(route, new XmppServiceApi.IXmppCallback() {
+                @Override
+                public void onReturn(final Intent result) {
+                    registered.add(route);
+                    drain.get().drain();
+                }
+            });
+        assertEquals(SIMS, app.registered.get());
+
+        final long bytes = produce(new Producer() {
+            @Override
+            public void produce(final int index, final int peer, final int i) {
+                final InboundSms sms = new InboundSms(number(peer), "text " + index + " from " + number(peer),
+                        1488738187250L + i, sim(peer), System.currentTimeMillis());
+                InboundPipeline.getInstance().submit(context, Collections.singletonList(sms), new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+            }
+        }, new Done() {
+            @Override
+            public boolean await(final long timeoutMillis) throws InterruptedException {
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (received.get() < MESSAGES && System.nanoTime() < deadline)
+                    Thread.sleep(10);
+                return received.get() >= MESSAGES;
+            }
+        });
+        binder.shutdown();
+        assertTrue(binder.awaitTermination(10, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(MESSAGES, received.get());
+        assertTrue(Outbox.getInstance(context).isEmpty());
+        assertTrue(app.calls.get() < MESSAGES);
+        assertBaseline("inbound", bytes, INBOUND_BYTES_PER_MESSAGE, INBOUND_P99_MICROS);
+    }
+}
@@ -0,0 +1,276 @@
+package com.moparisthebest.sms2xmpp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A crash is played by dropping an Outbox without closing anything and opening a new one on the same directory.
+ */
+public class OutboxTest {
+
+    private static final int TEXTS = 100000;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("outbox").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null)
+            for (final File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private static InboundSms text(final int i) {
+        // from and body of varying length, with multi byte UTF-8 in them
+        return new InboundSms("+1555" + i, "text " + i + " \u00e9\u20ac\uD83D\uDE00 " + new String(new char[i % 300]).replace('\0', 'x'),
+                1000L * i, i % 3, 2000L * i);
+    }
+
+    private static int index(final InboundSms sms) {
+        final int i = Integer.parseInt(sms.fromNumber.substring(5));
+        final InboundSms expected = text(i);
+        assertEquals(expected.body, sms.body);
+        assertEquals(expected.timestampMillis, sms.timestampMillis);
+        assertEquals(expected.subscriptionId, sms.subscriptionId);
+        assertEquals(expected.receivedMillis, sms.receivedMillis);
+        return i;
+    }
+
+    private static final Outbox.Acceptor ALL = new Outbox.Acceptor() {
+        @Override
+        public boolean accept(final int subscriptionId) {
+            return true;
+        }
+    };
+
+    private void append(final Outbox outbox, final int from, final int to) throws IOException {
+        final List<InboundSms> texts = new ArrayList<>();
+        for (int i = from; i < to; ++i)
+            texts.add(text(i));
+        outbox.append(texts);
+    }
+
+    private File logFile() {
+        return new File(dir, "outbox.log");
+    }
+
+    /**
+     * 100k texts appended and drained in batches, crashing every so often: after an ack nothing acked comes back, after
+     * a read that wasn't acked yet the batch comes back, and in the end every text came through in order.
+     */
+    @Test(timeout = 120000)
+    public void replayHundredThousandTextsAcrossCrashes() throws IOException {
+        final Random random = new Random(4);
+        Outbox outbox = new Outbox(dir);
+        int appended = 0, next = 0, crashes = 0, replayed = 0;
+        while (next < TEXTS) {
+            if (appended < TEXTS) {
+                final int to = Math.min(TEXTS, appended + 1 + random.nextInt(200));
+                append(outbox, appended, to);
+                appended = to;
+            }
+            final List<InboundSms> batch = outbox.read(1 + random.nextInt(150), ALL);
+            for (int i = 0; i < batch.size(); ++i)
+                assertEquals(next + i, index(batch.get(i)));
+            switch (random.nextInt(20)) {
+                case 0:
+                    // crash before the XMPP client took the batch, it must be read again
+                    outbox = new Outbox(dir);
+                    ++crashes;
+                    replayed += batch.size();
+                    break;
+                case 1:
+                    // failed, put back
+                    outbox.rewind();
+                    break;
+                case 2:
+                    // crash right after acking
+                    outbox.ack();
+                    next += batch.size();
+                    outbox = new Outbox(dir);
+                    ++crashes;
+                    break;
+                default:
+                    outbox.ack();
+                    next += batch.size();
+            }
+        }
+        assertEquals(TEXTS, next);
+        assertTrue(outbox.isEmpty());
+        assertEquals(0, outbox.getPendingBytes());
+        assertEquals(0, logFile().length());
+        assertTrue(crashes > 0 && replayed > 0);
+        assertTrue(new Outbox(dir).isEmpty());
+    }
+
+    /**
+     * A record cut short at any byte, or with any of its bytes flipped, is dropped with nothing after it, and what came
+     * before is still there.
+     */
+    @Test
+    public void tornOrCorruptTailIsDropped() throws IOException {
+        Outbox outbox = new Outbox(dir);
+        append(outbox, 0, 9);
+        final long intact = logFile().length();
+        append(outbox, 9, 10);
+        final long full = logFile().length();
+
+        final byte[] log = Files.readAllBytes(logFile().toPath());
+        for (long length = intact + 1; length < full; ++length) {
+            write(log, length, -1);
+            outbox = new Outbox(dir);
+            assertEquals(intact, logFile().length());
+            assertEquals(9, drain(outbox).size());
+        }
+        for (long flip = intact; flip < full; ++flip) {
+            write(log, full, flip);
+            outbox = new Outbox(dir);
+            assertEquals(intact, logFile().length());
+            assertEquals(9, outbox.read(Integer.MAX_VALUE, ALL).size());
+        }
+
+        // appending after recovery continues where the intact records end
+        append(outbox, 9, 11);
+        final List<InboundSms> texts = new Outbox(dir).read(Integer.MAX_VALUE, ALL);
+        assertEquals(11, texts.size());
+        for (int i = 0; i < texts.size(); ++i)
+            assertEquals(i, index(texts.get(i)));
+    }
+
+    // writes the first length bytes of log as the log file, with the byte at flip inverted if >= 0, and an ack of 0
+    private void write(final byte[] log, final long length, final long flip) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(logFile(), "rw")) {
+            file.setLength(0);
+            file.write(log, 0, (int) length);
+            if (flip >= 0) {
+                file.seek(flip);
+                file.write(~log[(int) flip]);
+            }
+        }
+        new File(dir, "outbox.ack").delete();
+    }
+
+    private static List<InboundSms> drain(final Outbox outbox) throws IOException {
+        final List<InboundSms> texts = outbox.read(Integer.MAX_VALUE, ALL);
+        outbox.ack();
+        return texts;
+    }
+
+    @Test
+    public void ackTruncatesOnlyOnceEverythingIsCommitted() throws IOException {
+        Outbox outbox = new Outbox(dir);
+        append(outbox, 0, 10);
+        final long full = logFile().length();
+
+        assertEquals(4, outbox.read(4, ALL).size());
+        outbox.ack();
+        assertEquals(full, logFile().length());
+        final long pending = outbox.getPendingBytes();
+        assertTrue(pending > 0 && pending < full);
+
+        // the committed position survives a crash
+        outbox = new Outbox(dir);
+        assertEquals(pending, outbox.getPendingBytes());
+        final List<InboundSms> rest = outbox.read(Integer.MAX_VALUE, ALL);
+        assertEquals(6, rest.size());
+        assertEquals(4, index(rest.get(0)));
+        assertEquals(full, logFile().length());
+
+        outbox.ack();
+        assertEquals(0, logFile().length());
+        assertEquals(0, outbox.getPendingBytes());
+        assertTrue(outbox.isEmpty());
+        assertTrue(new Outbox(dir).isEmpty());
+
+        // and starts over from 0
+        append(outbox, 10, 12);
+        assertFalse(outbox.isEmpty());
+        final List<InboundSms> texts = new Outbox(dir).read(Integer.MAX_VALUE, ALL);
+        assertEquals(2, texts.size());
+        assertEquals(10, index(texts.get(0)));
+    }
+
+    private static Outbox.Acceptor refusing(final int refusedSubscriptionId) {
+        return new Outbox.Acceptor() {
+            @Override
+            public boolean accept(final int subscriptionId) {
+                return subscriptionId != refusedSubscriptionId;
+            }
+        };
+    }
+
+    /**
+     * Texts for a SIM whose account isn't there are left for later without holding up the others, and once taken come
+     * in order.
+     */
+    @Test
+    public void readSkipsRefusedSubscriptions() throws IOException {
+        Outbox outbox = new Outbox(dir);
+        append(outbox, 0, 10);
+        final long full = logFile().length();
+        // text(i) came in on SIM i % 3
+        assertEquals(Arrays.asList(0, 2, 3), indexes(outbox.read(3, refusing(1))));
+        outbox.rewind();
+        assertEquals(Arrays.asList(0, 2, 3, 5, 6, 8, 9), indexes(outbox.read(Integer.MAX_VALUE, refusing(1))));
+        outbox.ack();
+        assertFalse(outbox.isEmpty());
+        assertEquals(Collections.emptyList(), indexes(outbox.read(Integer.MAX_VALUE, refusing(1))));
+        // committed only up to 1, still waiting
+        assertEquals(full, logFile().length());
+        assertEquals(full - outbox.getPendingBytes(), recordLength(0));
+
+        assertEquals(Arrays.asList(1, 4), indexes(outbox.read(2, ALL)));
+        outbox.rewind();
+        assertEquals(Arrays.asList(1, 4, 7), indexes(outbox.read(Integer.MAX_VALUE, ALL)));
+        outbox.ack();
+        assertTrue(outbox.isEmpty());
+        assertEquals(0, logFile().length());
+
+        // a crash while texts are left repeats what came after them, and loses none
+        append(outbox, 10, 16);
+        assertEquals(Arrays.asList(10, 12, 13, 15), indexes(outbox.read(Integer.MAX_VALUE, refusing(2))));
+        outbox.ack();
+        outbox = new Outbox(dir);
+        assertEquals(Arrays.asList(11, 12, 13, 14, 15), indexes(outbox.read(Integer.MAX_VALUE, ALL)));
+    }
+
+    private long recordLength(final int i) throws IOException {
+        final File single = Files.createTempDirectory("outbox").toFile();
+        try {
+            new Outbox(single).append(Collections.singletonList(text(i)));
+            return new File(single, "outbox.log").length();
+        } finally {
+            for (final File file : single.listFiles())
+                file.delete();
+            single.delete();
+        }
+    }
+
+    private static List<Integer> indexes(final List<InboundSms> texts) {
+        final List<Integer> indexes = new ArrayList<>();
+        for (final InboundSms sms : texts)
+            indexes.add(index(sms));
+        return indexes;
+    }
+}
@@ -0,0 +1,101 @@
+package com.moparisthebest.sms2xmpp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SmsSenderTest {
+
+    private final FakeSmsRadio radio = new FakeSmsRadio();
+
+    @Before
+    public void setUp() {
+        SmsSender.getInstance().setRadio(radio);
+        SmsSender.getInstance().setRate(0, 1); // unlimited
+        OutboundCoalescer.getInstance().configure(0, OutboundCoalescer.DEFAULT_MAX_SEGMENTS);
+    }
+
+    @After
+    public void tearDown() {
+        SmsSender.getInstance().setRadio(SmsRadio.SMS_MANAGER);
+        SmsSender.getInstance().setRate(SmsSender.DEFAULT_RATE_PER_SECOND, SmsSender.DEFAULT_BURST);
+    }
+
+    private static Route route(final int sim) {
+        return new Route(sim, null, "org.example.xmpp", "user@example.org", "sms.example.org");
+    }
+
+    @Test(timeout = 10000)
+    public void retryGoesAheadOfQueuedTexts() throws Exception {
+        final Semaphore gate = new Semaphore(0);
+        radio.setGate(gate);
+        final int sim = 7;
+        assertTrue(SmsSender.getInstance().send("+1", "first", sim, DeliveryTracker.NO_REQUEST));
+        // the lane is in the radio with first now, held up by the gate
+        assertTrue(radio.await(1, 5000));
+        assertTrue(SmsSender.getInstance().send("+1", "second", sim, DeliveryTracker.NO_REQUEST));
+        assertTrue(SmsSender.getInstance().send("+1", "third", sim, DeliveryTracker.NO_REQUEST));
+        final long retryNanos = System.nanoTime();
+        assertTrue(SmsSender.getInstance().retry("+1", "first again", sim, DeliveryTracker.NO_REQUEST, 200));
+        radio.setGate(null);
+        gate.release();
+        assertTrue(radio.await(4, 5000));
+        assertEquals(Arrays.asList("first", "first again", "second", "third"), radio.sentTo(sim, "+1"));
+        assertTrue(System.nanoTime() - retryNanos >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test(timeout = 10000)
+    public void retryOnlyHoldsBackItsRecipient() throws Exception {
+        final int sim = 8;
+        assertTrue(SmsSender.getInstance().retry("+1", "first again", sim, DeliveryTracker.NO_REQUEST, 1000));
+        assertTrue(SmsSender.getInstance().send("+1", "second", sim, DeliveryTracker.NO_REQUEST));
+        for (int i = 0; i < 10; ++i)
+            assertTrue(SmsSender.getInstance().send("+2", "text " + i, sim, DeliveryTracker.NO_REQUEST));
+        // +2 doesn't wait out +1's backoff
+        assertTrue(radio.await(10, 500));
+        assertEquals(10, radio.sentTo(sim, "+2").size());
+        assertEquals(0, radio.sentTo(sim, "+1").size());
+        assertEquals(2, SmsSender.getInstance().getQueueDepth(sim));
+        assertTrue(radio.await(12, 5000));
+        assertEquals(Arrays.asList("first again", "second"), radio.sentTo(sim, "+1"));
+        assertEquals(0, SmsSender.getInstance().getQueueDepth(sim));
+    }
+
+    /**
+     * A flush into a full lane blocks in SmsSender.send, which mustn't keep binder threads out of the coalescer.
+     */
+    @Test(timeout = 20000)
+    public void fullLaneDoesntBlockCoalescing() throws Exception {
+        final int sim = 9;
+        final Route route = route(sim);
+        final Semaphore gate = new Semaphore(0);
+        radio.setGate(gate);
+        OutboundCoalescer.getInstance().configure(10, OutboundCoalescer.DEFAULT_MAX_SEGMENTS);
+        assertTrue(SmsSender.getInstance().send("+0", "stuck", sim, DeliveryTracker.NO_REQUEST));
+        assertTrue(radio.await(1, 5000));
+        for (int i = 0; i < SmsSender.QUEUE_CAPACITY; ++i)
+            assertTrue(SmsSender.getInstance().send("+" + i, "filler", sim, DeliveryTracker.NO_REQUEST));
+
+        assertTrue(OutboundCoalescer.getInstance().send(route, "+1", "one", "id1"));
+        // flushed by now, and waiting for room in the lane
+        Thread.sleep(100);
+        final long start = System.nanoTime();
+        assertTrue(OutboundCoalescer.getInstance().send(route, "+2", "two", "id2"));
+        assertTrue(OutboundCoalescer.getInstance().send(route, "+2", null, "id3"));
+        OutboundCoalescer.getInstance().flushAll();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        radio.setGate(null);
+        gate.release();
+        assertTrue(radio.await(SmsSender.QUEUE_CAPACITY + 3, 5000));
+        assertEquals(Arrays.asList("filler", "one"), radio.sentTo(sim, "+1"));
+        assertEquals(Arrays.asList("filler", "two"), radio.sentTo(sim, "+2"));
+    }
+}
@@ -0,0 +1,198 @@
+package com.moparisthebest.sms2xmpp;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class StanzaWriterTest {
+
+    private static final String GATEWAY = "sms.example.org", ACCOUNT = "user@example.org";
+
+    // what StanzaWriter replaced, plain concatenation, with escaping and delay done the obvious way
+
+    private static String escape(final String s) {
+        final StringBuilder sb = new StringBuilder();
+        for (final char c : s.toCharArray()) {
+            if ((c < 0x20 && c != '\t' && c != '\n' && c != '\r') || c == 0xFFFE || c == 0xFFFF)
+                sb.append('\uFFFD');
+            else
+                sb.append(c);
+        }
+        return sb.toString().replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static String stamp(final long millis) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static String delay(final long millis) {
+        return millis > 0 ? "<delay xmlns=\"urn:xmpp:delay\" stamp=\"" + stamp(millis) + "\"/>" : "";
+    }
+
+    private static String envelope(final String number, final String inner) {
+        return "<message xmlns=\"jabber:client\" to=\"" + escape(number) + "@" + GATEWAY + "\" type=\"normal\" from=\"" + ACCOUNT + "\">" +
+                "<echo xmlns=\"" + StanzaWriter.ECHO_NS + "\"/><forwarded xmlns=\"urn:xmpp:forward:0\">" +
+                inner +
+                "</forwarded></message>";
+    }
+
+    private static String message(final String number, final String body, final String nick, final long millis) {
+        return envelope(number, delay(millis) +
+                "<message xmlns=\"jabber:client\" from=\"" + escape(number) + "@" + GATEWAY + "\" type=\"chat\" to=\"" + ACCOUNT + "\">" +
+                "<body>" + escape(body) + "</body>" +
+                (nick == null ? "" : "<nick xmlns=\"http://jabber.org/protocol/nick\">" + escape(nick) + "</nick>") +
+                "</message>");
+    }
+
+    private static String directMessage(final String number, final String body, final long millis) {
+        return "<message from=\"" + escape(number) + "@" + GATEWAY + "\" type=\"chat\" to=\"" + ACCOUNT + "\">" +
+                "<body>" + escape(body) + "</body>" + delay(millis) + "</message>";
+    }
+
+    private static String media(final String number, final String url, final long millis) {
+        return envelope(number, delay(millis) +
+                "<message xmlns=\"jabber:client\" from=\"" + escape(number) + "@" + GATEWAY + "\" type=\"chat\" to=\"" + ACCOUNT + "\">" +
+                "<body>" + escape(url) + "</body><x xmlns=\"jabber:x:oob\"><url>" + escape(url) + "</url></x></message>");
+    }
+
+    private static String receipt(final String number, final String id) {
+        return envelope(number,
+                "<message xmlns=\"jabber:client\" from=\"" + escape(number) + "@" + GATEWAY + "\" type=\"chat\" to=\"" + ACCOUNT + "\">" +
+                "<received xmlns=\"urn:xmpp:receipts\" id=\"" + escape(id) + "\"/></message>");
+    }
+
+    private static String error(final String number, final String id, final String text) {
+        return envelope(number,
+                "<message xmlns=\"jabber:client\" from=\"" + escape(number) + "@" + GATEWAY + "\" type=\"error\" to=\"" + ACCOUNT + "\"" +
+                (id == null ? "" : " id=\"" + escape(id) + "\"") + ">" +
+                "<error type=\"wait\"><recipient-unavailable xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/>" +
+                "<text xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\">" + escape(text) + "</text></error></message>");
+    }
+
+    private static String randomText(final Random random, final int maxLength) {
+        // weighted towards what needs escaping or replacing, plus surrogate pairs and non-ASCII
+        final String special = "&<>\"'\t\n\r\u0000\u0001\u001f\uFFFE\uFFFF\u00e9\u20ac";
+        final StringBuilder sb = new StringBuilder();
+        final int length = random.nextInt(maxLength + 1);
+        while (sb.length() < length) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append(special.charAt(random.nextInt(special.length())));
+                    break;
+                case 1:
+                    sb.appendCodePoint(0x1F600 + random.nextInt(80));
+                    break;
+                default:
+                    sb.append((char) (' ' + random.nextInt(95)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void assertSameBytes(final String expected, final StanzaWriter actual) {
+        assertEquals(expected, actual.toString());
+        assertEquals(expected.length(), actual.length());
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), actual.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void matchesConcatenation() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; ++i) {
+            final String number = random.nextBoolean() ? "+1555" + random.nextInt(10000000) : randomText(random, 12);
+            final String body = randomText(random, random.nextInt(10) == 0 ? 2000 : 200);
+            final String nick = random.nextBoolean() ? null : randomText(random, 20);
+            final String id = randomText(random, 16);
+            // around leap days, and 0 or before the epoch for no delay, which forwardedMessage drops
+            final long millis = random.nextInt(10) == 0 ? 0 : random.nextLong() % 8000000000000L;
+
+            assertSameBytes(message(number, body, nick, millis),
+                    StanzaWriter.get().forwardedMessage(number, GATEWAY, ACCOUNT, body, nick, millis));
+            assertSameBytes(directMessage(number, body, millis),
+                    StanzaWriter.get().direct(true).forwardedMessage(number, GATEWAY, ACCOUNT, body, millis));
+            assertSameBytes(media(number, body, millis),
+                    StanzaWriter.get().forwardedMedia(number, GATEWAY, ACCOUNT, body, millis));
+            assertSameBytes(receipt(number, id),
+                    StanzaWriter.get().forwardedReceipt(number, GATEWAY, ACCOUNT, id));
+            final String errorId = random.nextBoolean() ? null : id;
+            assertSameBytes(error(number, errorId, body),
+                    StanzaWriter.get().forwardedError(number, GATEWAY, ACCOUNT, errorId, body));
+        }
+    }
+
+    @Test
+    public void timestamps() {
+        final long[] millis = {1, 999, 1000, 59999, 86399999, 86400000, 951782400000L /* 2000-02-29 */,
+                1488738187250L, 4102444799999L /* 2099-12-31 */, 253402300799999L /* 9999-12-31 */,
+                // never written as a delay, but appendTimestamp rounds towards the past all the same, back to where
+                // SimpleDateFormat switches to the Julian calendar
+                0, -1, -999, -1000, -86400001, -2203891200000L /* 1900-02-28 */, -12219292800000L /* 1582-10-15 */};
+        for (final long m : millis) {
+            final StringBuilder sb = new StringBuilder();
+            StanzaWriter.appendTimestamp(sb, m);
+            assertEquals(stamp(m), sb.toString());
+        }
+    }
+
+    /**
+     * Forwarded messages with a single SMS and a 10 part SMS worth of body, StanzaWriter against concatenation.
+     */
+    @Test
+    public void benchmark() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final Random random = new Random(42);
+        final String number = "+15551234567", nick = "Jane <Doe>";
+        final long millis = 1488738187250L;
+        final int iterations = 200000;
+        System.out.println("  body  concatenation ns  StanzaWriter ns");
+        for (final int bodyLength : new int[]{160, 1600}) {
+            final StringBuilder sb = new StringBuilder();
+            while (sb.length() < bodyLength)
+                sb.append(randomText(random, bodyLength - sb.length()));
+            final String body = sb.toString();
+            long concatNanos = 0, writerNanos = 0, sink = 0;
+            // the first round warms both up and isn't counted
+            for (int round = 0; round < 3; ++round) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; ++i)
+                    sink += message(number, body, nick, millis).length();
+                final long concat = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; ++i)
+                    sink += StanzaWriter.get().forwardedMessage(number, GATEWAY, ACCOUNT, body, nick, millis).toString().length();
+                final long writer = System.nanoTime() - start;
+                if (round > 0) {
+                    concatNanos += concat;
+                    writerNanos += writer;
+                }
+            }
+            assertTrue(sink > 0); // keeps the loops from being optimized away
+            System.out.println(String.format("%6d  %16.0f  %15.0f", bodyLength,
+                    concatNanos / (2.0 * iterations), writerNanos / (2.0 * iterations)));
+        }
+    }
+
+    @Test
+    public void recycledWriterKeepsNothing() {
+        final StringBuilder huge = new StringBuilder();
+        for (int i = 0; i < 10000; ++i)
+            huge.append("big <text> & ");
+        StanzaWriter.get().forwardedMessage("+1", GATEWAY, ACCOUNT, huge.toString(), 1);
+        // get() hands back the same writer, emptied and out of direct mode
+        StanzaWriter.get().direct(true).forwardedReceipt("+2", GATEWAY, ACCOUNT, "x");
+        assertSameBytes(receipt("+2", "y"), StanzaWriter.get().forwardedReceipt("+2", GATEWAY, ACCOUNT, "y"));
+    }
+}
@@ -0,0 +1,178 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.moparisthebest.sms2xmpp.TraceFormat.API_CALL;
+import static com.moparisthebest.sms2xmpp.TraceFormat.API_RESULT;
+import static com.moparisthebest.sms2xmpp.TraceFormat.CAPACITY_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.HEADER_SIZE;
+import static com.moparisthebest.sms2xmpp.TraceFormat.ID_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.MAGIC;
+import static com.moparisthebest.sms2xmpp.TraceFormat.MAGIC_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.NANOS_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.RECORD_SIZE;
+import static com.moparisthebest.sms2xmpp.TraceFormat.RECORD_SIZE_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.SEQ_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.TYPE_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.VALUE_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.VERSION;
+import static com.moparisthebest.sms2xmpp.TraceFormat.VERSION_OFFSET;
+import static com.moparisthebest.sms2xmpp.TraceFormat.name;
+
+/**
+ * Decodes a trace file written by TraceRecorder and replays it, on any JVM:
+ *
+ * <pre>
+ * adb exec-out run-as com.moparisthebest.sms2xmpp cat files/trace.bin > trace.bin
+ * ./gradlew compileDebugUnitTestJavaWithJavac
+ * CP=build/intermediates/classes/debug:build/intermediates/classes/test/debug
+ * java -cp $CP com.moparisthebest.sms2xmpp.TraceReader trace.bin             # dump, with API call latencies
+ * java -cp $CP com.moparisthebest.sms2xmpp.TraceReader trace.bin replay 10   # replay at 10x speed
+ * </pre>
+ *
+ * It lives with the tests so it stays out of the APK, only TraceFormat and TraceRecorder ship.
+ *
+ * replay calls a Workload for every event at the pace they were recorded, print by default, so a bad stretch from a
+ * phone can be fed to a test setup with the same timing.
+ */
+public final class TraceReader {
+
+    public static final class Record {
+        public final long seq, nanos, id;
+        public final int type, value;
+
+        Record(final long seq, final long nanos, final int type, final int value, final long id) {
+            this.seq = seq;
+            this.nanos = nanos;
+            this.type = type;
+            this.value = value;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return name(type) + " value=" + value + " id=" + Long.toHexString(id);
+        }
+    }
+
+    public interface Workload {
+        void event(Record record) throws Exception;
+    }
+
+    private TraceReader() {
+    }
+
+    /**
+     * @return every complete record in the file, oldest first
+     */
+    public static List<Record> read(final File path) throws IOException {
+        final MappedByteBuffer file;
+        final RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            file = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (file.capacity() < HEADER_SIZE || file.getInt(MAGIC_OFFSET) != MAGIC)
+            throw new IOException(path + " is not a trace file");
+        if (file.getInt(VERSION_OFFSET) != VERSION)
+            throw new IOException(path + " has unsupported version " + file.getInt(VERSION_OFFSET));
+        final int capacity = file.getInt(CAPACITY_OFFSET), recordSize = file.getInt(RECORD_SIZE_OFFSET);
+        if (recordSize < RECORD_SIZE || HEADER_SIZE + (long) capacity * recordSize > file.capacity())
+            throw new IOException(path + " is truncated");
+        final List<Record> records = new ArrayList<>(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            final int record = HEADER_SIZE + i * recordSize;
+            final long seq = file.getLong(record + SEQ_OFFSET);
+            if (seq != 0)
+                records.add(new Record(seq - 1, file.getLong(record + NANOS_OFFSET), file.getInt(record + TYPE_OFFSET),
+                        file.getInt(record + VALUE_OFFSET), file.getLong(record + ID_OFFSET)));
+        }
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(final Record a, final Record b) {
+                return a.seq < b.seq ? -1 : a.seq == b.seq ? 0 : 1;
+            }
+        });
+        return records;
+    }
+
+    /**
+     * Hands every record to workload at its recorded time relative to the first, divided by speed.  A step back in
+     * time, the phone rebooted in between, is replayed without delay.
+     *
+     * @return how many nanoseconds the workload fell behind the recorded timing at worst
+     */
+    public static long replay(final List<Record> records, final double speed, final Workload workload) throws Exception {
+        long maxLateness = 0;
+        long base = System.nanoTime(), offset = 0, previous = Long.MIN_VALUE;
+        for (final Record record : records) {
+            if (previous == Long.MIN_VALUE || record.nanos < previous)
+                offset = record.nanos - (long) ((System.nanoTime() - base) * speed);
+            previous = record.nanos;
+            final long due = base + (long) ((record.nanos - offset) / speed);
+            final long wait = due - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+            else
+                maxLateness = Math.max(maxLateness, -wait);
+            workload.event(record);
+        }
+        return maxLateness;
+    }
+
+    private static void dump(final List<Record> records) {
+        final Map<Long, Record> calls = new HashMap<>();
+        Record previous = null;
+        for (final Record record : records) {
+            final StringBuilder line = new StringBuilder();
+            if (previous != null && record.nanos >= previous.nanos)
+                line.append(String.format("+%10.3fms ", (record.nanos - previous.nanos) / 1e6));
+            else
+                line.append(previous == null ? "             " : "   (reboot)  ");
+            line.append(record);
+            if (record.type == API_CALL) {
+                calls.put(record.id, record);
+            } else if (record.type == API_RESULT) {
+                final Record call = calls.remove(record.id);
+                if (call != null)
+                    line.append(String.format(" after %.3fms for request %d", (record.nanos - call.nanos) / 1e6, call.value));
+            }
+            System.out.println(line);
+            previous = record;
+        }
+        System.out.println(records.size() + " events, " + calls.size() + " API calls without a result");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: TraceReader trace.bin [replay [speed]]");
+            System.exit(1);
+        }
+        final List<Record> records = read(new File(args[0]));
+        if (args.length > 1 && "replay".equals(args[1])) {
+            final double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+            final long start = System.nanoTime();
+            final long lateness = replay(records, speed, new Workload() {
+                @Override
+                public void event(final Record record) {
+                    System.out.println(String.format("%10.3fms %s", (System.nanoTime() - start) / 1e6, record));
+                }
+            });
+            System.out.println(String.format("replayed %d events, at worst %.3fms late", records.size(), lateness / 1e6));
+        } else {
+            dump(records);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.moparisthebest.sms2xmpp;
+
+import java.io.InputStream;
+
+/**
+ * UTF-8 bytes of a CharSequence, encoded as they are read, so a large stanza batch goes down the pipe to the XMPP app
+ * without ever being held as a second, byte[] copy.
+ *
+ * Not used by the app, xmpp-api can't carry streamed stanzas yet, see XmppApiTransport.  Kept with the benchmark that
+ * measures where streaming would start to pay off.
+ */
+public final class Utf8InputStream extends InputStream {
+
+    private final CharSequence chars;
+    private int index = 0;
+    // at most 4 bytes of the current code point not read yet
+    private final byte[] pending = new byte[4];
+    private int pendingStart = 0, pendingEnd = 0;
+
+    public Utf8InputStream(final CharSequence chars) {
+        this.chars = chars;
+    }
+
+    @Override
+    public int read() {
+        if (pendingStart == pendingEnd && !fill())
+            return -1;
+        return pending[pendingStart++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0)
+            return 0;
+        int n = 0;
+        while (n < len) {
+            if (pendingStart < pendingEnd) {
+                b[off + n++] = pending[pendingStart++];
+                continue;
+            }
+            // the common case, ASCII straight into the caller's buffer
+            while (n < len && index < chars.length()) {
+                final char c = chars.charAt(index);
+                if (c >= 0x80)
+                    break;
+                b[off + n++] = (byte) c;
+                ++index;
+            }
+            if (n < len && !fill())
+                break;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    private boolean fill() {
+        if (index >= chars.length())
+            return false;
+        int cp = chars.charAt(index++);
+        if (Character.isHighSurrogate((char) cp) && index < chars.length() && Character.isLowSurrogate(chars.charAt(index)))
+            cp = Character.toCodePoint((char) cp, chars.charAt(index++));
+        else if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE)
+            cp = '?'; // lone surrogate, same as String.getBytes
+        pendingStart = 0;
+        if (cp < 0x80) {
+            pending[0] = (byte) cp;
+            pendingEnd = 1;
+        } else if (cp < 0x800) {
+            pending[0] = (byte) (0xC0 | (cp >> 6));
+            pending[1] = (byte) (0x80 | (cp & 0x3F));
+            pendingEnd = 2;
+        } else if (cp < 0x10000) {
+            pending[0] = (byte) (0xE0 | (cp >> 12));
+            pending[1] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            pending[2] = (byte) (0x80 | (cp & 0x3F));
+            pendingEnd = 3;
+        } else {
+            pending[0] = (byte) (0xF0 | (cp >> 18));
+            pending[1] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            pending[2] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            pending[3] = (byte) (0x80 | (cp & 0x3F));
+            pendingEnd = 4;
+        }
+        return true;
+    }
+
+    @Override
+    public int available() {
+        return pendingEnd - pendingStart;
+    }
+}
@@ -0,0 +1,166 @@
+package com.moparisthebest.sms2xmpp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class Utf8InputStreamTest {
+
+    // binder transactions fail outright past about 1MB, as UTF-16 that's this many chars
+    private static final int EXTRA_LIMIT_CHARS = 512 * 1024;
+
+    private static String randomXml(final Random random, final int length) {
+        final StringBuilder sb = new StringBuilder(length + 2);
+        while (sb.length() < length) {
+            final int r = random.nextInt(100);
+            if (r < 2)
+                sb.appendCodePoint(0x1F600 + random.nextInt(80));
+            else if (r < 6)
+                sb.append("\u00e9\u20ac\u4f8b".charAt(r % 3));
+            else
+                sb.append((char) (' ' + random.nextInt(95)));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] readAll(final InputStream in, final int bufferSize) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[bufferSize];
+        int read;
+        while ((read = in.read(buf)) != -1)
+            out.write(buf, 0, read);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void sameBytesAsGetBytes() throws IOException {
+        final Random random = new Random(19);
+        for (int i = 0; i < 2000; ++i) {
+            String s = randomXml(random, random.nextInt(300));
+            if (i % 10 == 0 && !s.isEmpty()) {
+                // lone surrogates, at the end too
+                final int at = random.nextInt(s.length() + 1);
+                s = s.substring(0, at) + (random.nextBoolean() ? '\uD83D' : '\uDE00') + s.substring(at);
+            }
+            final byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+            // odd buffer sizes split multi byte sequences between reads
+            assertArrayEquals(s, expected, readAll(new Utf8InputStream(s), 1 + random.nextInt(7)));
+            final Utf8InputStream in = new Utf8InputStream(s);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1)
+                out.write(b);
+            assertArrayEquals(s, expected, out.toByteArray());
+        }
+        assertEquals(-1, new Utf8InputStream("").read(new byte[1], 0, 1));
+        assertEquals(0, new Utf8InputStream("a").read(new byte[1], 0, 0));
+    }
+
+    /**
+     * What putting xml in EXTRA_RAW_XML costs end to end: Parcel.writeString copies it as UTF-16, binder copies that
+     * into the XMPP app, readString makes a String of it again and the XMPP app encodes that as UTF-8 for its socket.
+     */
+    private static int viaExtra(final String xml) {
+        final char[] parcel = xml.toCharArray();
+        final char[] received = Arrays.copyOf(parcel, parcel.length);
+        return new String(received).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * What streaming it costs: like xmpp-api, a pipe and a thread per call that copies the input stream into it, while
+     * the XMPP app reads the UTF-8 from the other end.
+     */
+    private static int viaStream(final String xml, final ByteArrayOutputStream check) throws Exception {
+        final Pipe pipe = Pipe.open();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (OutputStream out = Channels.newOutputStream(pipe.sink())) {
+                    final InputStream in = new Utf8InputStream(xml);
+                    final byte[] buf = new byte[8192];
+                    int read;
+                    while ((read = in.read(buf)) != -1)
+                        out.write(buf, 0, read);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        }, "Utf8InputStreamTest writer");
+        writer.start();
+        int total = 0;
+        try (InputStream in = Channels.newInputStream(pipe.source())) {
+            final byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                total += read;
+                if (check != null)
+                    check.write(buf, 0, read);
+            }
+        }
+        writer.join();
+        assertNull(error.get());
+        return total;
+    }
+
+    // keeps the JIT from dropping the calls being timed
+    private static volatile long sink;
+
+    private static double nanosPerCall(final String xml, final boolean stream) throws Exception {
+        // warm up for 50ms, then time 50ms
+        double nanos = 0;
+        for (int round = 0; round < 2; ++round) {
+            long calls = 0, bytes = 0;
+            final long start = System.nanoTime(), end = start + TimeUnit.MILLISECONDS.toNanos(50);
+            long now;
+            do {
+                bytes += stream ? viaStream(xml, null) : viaExtra(xml);
+                ++calls;
+            } while ((now = System.nanoTime()) < end);
+            sink = bytes;
+            nanos = (now - start) / (double) calls;
+        }
+        return nanos;
+    }
+
+    /**
+     * Where streaming a stanza batch would start to beat putting it in an extra, for the XMPP app side to pick a
+     * threshold from should xmpp-api learn to carry streamed stanzas.  Timings are only printed, the bytes that come
+     * out of the pipe are checked.
+     */
+    @Test(timeout = 120000)
+    public void streamingCrossover() throws Exception {
+        final Random random = new Random(1);
+        int crossover = -1;
+        System.out.println(String.format("%10s %12s %12s", "chars", "extra us", "stream us"));
+        for (int length = 256; length <= 4 * EXTRA_LIMIT_CHARS; length *= 2) {
+            final String xml = randomXml(random, length);
+            final ByteArrayOutputStream check = new ByteArrayOutputStream();
+            viaStream(xml, check);
+            assertArrayEquals(xml.getBytes(StandardCharsets.UTF_8), check.toByteArray());
+
+            final double extra = nanosPerCall(xml, false), stream = nanosPerCall(xml, true);
+            final boolean fits = length <= EXTRA_LIMIT_CHARS;
+            System.out.println(String.format("%10d %12.1f %12.1f%s", length, extra / 1000, stream / 1000,
+                    fits ? "" : "  too big for a transaction"));
+            if (crossover == -1 && fits && stream < extra)
+                crossover = length;
+        }
+        System.out.println(crossover == -1 ? "streaming never faster below the transaction limit"
+                : "streaming faster from " + crossover + " chars");
+    }
+}